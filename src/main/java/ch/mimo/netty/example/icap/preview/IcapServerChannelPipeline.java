@@ -16,12 +16,17 @@
  ******************************************************************************/
 package ch.mimo.netty.example.icap.preview;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 
+import ch.mimo.netty.handler.codec.icap.IcapRequest;
 import ch.mimo.netty.handler.codec.icap.IcapRequestDecoder;
 import ch.mimo.netty.handler.codec.icap.IcapResponseEncoder;
+import ch.mimo.netty.handler.codec.icap.PreviewDecision;
+import ch.mimo.netty.handler.codec.icap.PreviewDecisionHandler;
+import ch.mimo.netty.handler.codec.icap.PreviewInspector;
 
 public class IcapServerChannelPipeline extends ChannelInitializer {
 
@@ -30,6 +35,13 @@ public class IcapServerChannelPipeline extends ChannelInitializer {
         ChannelPipeline pipeline = ch.pipeline();
     	pipeline.addLast("decoder",new IcapRequestDecoder());
     	pipeline.addLast("encoder",new IcapResponseEncoder());
+    	pipeline.addLast("preview",new PreviewDecisionHandler("Preview-Server-1.0",new PreviewInspector() {
+			@Override
+			public PreviewDecision inspect(IcapRequest request, ByteBuf preview, boolean complete) {
+				// asking for the rest of the body in order to show the 100 continue handling
+				return PreviewDecision.CONTINUE;
+			}
+		}));
     	pipeline.addLast("handler",new IcapServerHandler());
     }
     
@@ -29,8 +29,6 @@ import ch.mimo.netty.handler.codec.icap.IcapVersion;
 
 public class IcapServerHandler extends ChannelInboundHandlerAdapter {
 
-	private boolean continueWasSent;
-
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object msg) {
 		if(msg instanceof IcapRequest) {
@@ -38,17 +36,11 @@ public class IcapServerHandler extends ChannelInboundHandlerAdapter {
 			System.out.println(request.toString());
 		} else if(msg instanceof IcapChunkTrailer) {
 			System.out.println(msg.toString());
-			if(!continueWasSent) {
-				continueWasSent = true;
-				// sending 100 continue in order to receive the rest of the message
-				IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.CONTINUE);
-				ctx.writeAndFlush(response);
-			} else {
-				// sending 204 No Content response
-				IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.NO_CONTENT);
-				ctx.writeAndFlush(response);
-				ctx.close();
-			}
+			// the preview decision handler already sent the 100 continue, the whole body is received now.
+			// sending 204 No Content response
+			IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.NO_CONTENT);
+			ctx.writeAndFlush(response);
+			ctx.close();
 		} else if(msg instanceof IcapChunk) {
 			System.out.println(msg);
 		} 
@@ -16,25 +16,30 @@
  ******************************************************************************/
 package ch.mimo.netty.example.icap.squidechoserver;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import ch.mimo.netty.handler.codec.icap.IcapTransport;
+
+/**
+ * Listens on port 1344 or, if the path of a socket file is given as argument, on that unix domain socket.
+ * The native epoll transport is used where available.
+ */
 public class IcapServer {
 
 	private static final int SERVER_PORT = 1344;
 	
 	public static void main(String[] args) {
+        IcapTransport transport = args.length > 0 ? IcapTransport.EPOLL_DOMAIN_SOCKET : IcapTransport.best();
+        SocketAddress address = args.length > 0 ? new DomainSocketAddress(args[0]) : new InetSocketAddress(SERVER_PORT);
         // Configure the server.
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap
-            .group(bossGroup, workerGroup)
-            .channel(NioServerSocketChannel.class)
-            .localAddress(SERVER_PORT)
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(1);
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(0);
+        transport.serverBootstrap(bossGroup, workerGroup)
             .childHandler(new IcapServerChannelPipeline())
-            .bind();
+            .bind(address);
 	}
 }
@@ -20,12 +20,12 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
 import ch.mimo.netty.handler.codec.icap.DefaultIcapResponse;
-import ch.mimo.netty.handler.codec.icap.IcapHeaders;
 import ch.mimo.netty.handler.codec.icap.IcapMethod;
 import ch.mimo.netty.handler.codec.icap.IcapRequest;
 import ch.mimo.netty.handler.codec.icap.IcapResponse;
 import ch.mimo.netty.handler.codec.icap.IcapResponseStatus;
 import ch.mimo.netty.handler.codec.icap.IcapVersion;
+import ch.mimo.netty.handler.codec.icap.ModificationResponseFactory;
 
 /**
  * This handler will enable squid to send all traffic and the responses from this handler will always
@@ -34,8 +34,11 @@ import ch.mimo.netty.handler.codec.icap.IcapVersion;
  * The following behavior is standard for this handler:
  * 
  * - OPTIONS: responds 204 is valid TTL 1hr and REQ RESPMOD is accepted.
- * - REQMOD:  HTTP request is returned.
- * - RESPMOD: HTTP response is returned.
+ * - REQMOD:  HTTP request is returned unmodified.
+ * - RESPMOD: HTTP response is returned unmodified.
+ * 
+ * Unmodified messages are answered with 204 No Content or, if not allowed, with 206 and use-original-body=0
+ * so that the body is not echoed back.
  * 
  * - Preview: always responds with 204 No Content. 
  * 
@@ -50,6 +53,8 @@ import ch.mimo.netty.handler.codec.icap.IcapVersion;
  */
 public class SquidEchoHandler extends ChannelInboundHandlerAdapter {
 
+	private final ModificationResponseFactory responses = new ModificationResponseFactory("Echo-Server-1.0");
+
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object message) {
 		IcapResponse response;
@@ -62,20 +67,15 @@ public class SquidEchoHandler extends ChannelInboundHandlerAdapter {
 				response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
 				response.addHeader("Options-TTL","3600");
 				response.addHeader("Service-ID","Test Icap Server");
-				response.addHeader("Allow","204");
+				response.addHeader("Allow","204, 206");
 				response.addHeader("Preview","1024");
 				response.addHeader("Methods","REQMOD, RESPMOD");
 				
-			} else if(request.isPreviewMessage()) {
-				response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.NO_CONTENT);
 			} else {
-				response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
-				response.addHeader(IcapHeaders.Names.ISTAG,"Echo-Server-1.0");
-				if(request.getMethod().equals(IcapMethod.REQMOD)) {
-					response.setHttpRequest(request.getHttpRequest());
-				}
-				response.setHttpResponse(request.getHttpResponse());
+				// previews are answered with 204 No Content
+				response = responses.createUnmodifiedResponse(request);
 			}
+			request.release();
 			System.out.println("");
 			System.out.println("---------------------------- sending " + response.getStatus() + " ----------------------------");
 			System.out.print(response.toString());
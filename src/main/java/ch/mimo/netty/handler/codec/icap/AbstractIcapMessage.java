@@ -16,6 +16,8 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -42,6 +44,7 @@ public abstract class AbstractIcapMessage implements IcapMessage {
 	private FullHttpResponse httpResponse;
 	
 	private IcapMessageElementEnum body;
+	private IcapBodyStream bodyStream;
 	
 	public AbstractIcapMessage(IcapVersion version) {
 		this.version = version;
@@ -54,7 +57,7 @@ public abstract class AbstractIcapMessage implements IcapMessage {
 	}
 
 	@Override
-	public Set<String> getHeaders(String name) {
+	public List<String> getHeaders(String name) {
 		return icapHeader.getHeaders(name);
 	}
 
@@ -63,6 +66,11 @@ public abstract class AbstractIcapMessage implements IcapMessage {
 		return icapHeader.getHeaders();
 	}
 
+	@Override
+	public Iterator<Entry<String, CharSequence>> iteratorCharSequence() {
+		return icapHeader.iteratorCharSequence();
+	}
+
 	@Override
 	public boolean containsHeader(String name) {
 		return icapHeader.containsHeader(name);
@@ -101,6 +109,21 @@ public abstract class AbstractIcapMessage implements IcapMessage {
 	public int getPreviewAmount() {
 		return icapHeader.getPreviewHeaderValue();
 	}
+	
+	@Override
+	public String getIsTag() {
+		return icapHeader.getIstagHeaderValue();
+	}
+	
+	@Override
+	public boolean isAllow204() {
+		return icapHeader.isAllow204();
+	}
+
+	@Override
+	public boolean isAllow206() {
+		return icapHeader.isAllow206();
+	}
 
 	@Override
 	public IcapMessage clearHeaders() {
@@ -166,6 +189,17 @@ public abstract class AbstractIcapMessage implements IcapMessage {
 		return icapHeader.getPreviewHeaderValue() >= 0;
 	}
 	
+	@Override
+	public IcapBodyStream getBodyStream() {
+		return bodyStream;
+	}
+	
+	@Override
+	public IcapMessage setBodyStream(IcapBodyStream bodyStream) {
+		this.bodyStream = bodyStream;
+		return this;
+	}
+	
 	public IcapMessage setBody(IcapMessageElementEnum body) {
 		this.body = body;
 		return this;
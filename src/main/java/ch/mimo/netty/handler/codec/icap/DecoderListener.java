@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+/**
+ * Instrumentation hook of @see {@link IcapMessageDecoder}.
+ * 
+ * The decoder calls the listener from its event loop for every state execution. Implementations must
+ * therefore be cheap and must not block. Without a listener the decoder does not measure anything.
+ * 
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapMessageDecoder#setDecoderListener(DecoderListener)
+ * @see DecoderStatistics
+ */
+public interface DecoderListener {
+
+	/**
+	 * a state was executed.
+	 * 
+	 * @param state the executed state.
+	 * @param bytesConsumed amount of bytes the state consumed from the cumulation buffer.
+	 * @param nanos time spent in the state.
+	 * @param incomplete true if the state found the buffer incomplete and will be executed again once more data arrived.
+	 */
+	void stateExecuted(StateEnum state, int bytesConsumed, long nanos, boolean incomplete);
+	
+	/**
+	 * the decoder moves from one state to the next.
+	 * 
+	 * @param from the completed state.
+	 * @param to the next state or null if the message was decoded completely.
+	 */
+	void stateTransition(StateEnum from, StateEnum to);
+	
+	/**
+	 * the Encapsulated offset that follows a http header section did not match the length of the section
+	 * and was ignored because the decoder does not validate offsets strictly.
+	 * 
+	 * @param entry the http header section.
+	 */
+	void encapsulatedOffsetIgnored(IcapMessageElementEnum entry);
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @see {@link DecoderListener} that counts executions, incomplete executions, consumed bytes, time
+ * and transitions per @see {@link StateEnum} as well as ignored Encapsulated offsets.
+ * 
+ * One instance can be shared by the decoders of all channels.
+ * 
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapMessageDecoder#setDecoderListener(DecoderListener)
+ */
+public class DecoderStatistics implements DecoderListener {
+
+	private static final StateEnum[] STATES = StateEnum.values();
+	
+	private final LongAdder[] executions = create();
+	private final LongAdder[] incompleteExecutions = create();
+	private final LongAdder[] bytes = create();
+	private final LongAdder[] nanos = create();
+	private final LongAdder[] transitions = create();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder ignoredEncapsulatedOffsets = new LongAdder();
+	
+	@Override
+	public void stateExecuted(StateEnum state, int bytesConsumed, long nanos, boolean incomplete) {
+		int ordinal = state.ordinal();
+		executions[ordinal].increment();
+		if(incomplete) {
+			incompleteExecutions[ordinal].increment();
+		}
+		bytes[ordinal].add(bytesConsumed);
+		this.nanos[ordinal].add(nanos);
+	}
+
+	@Override
+	public void stateTransition(StateEnum from, StateEnum to) {
+		if(to != null) {
+			transitions[to.ordinal()].increment();
+			if(to == StateEnum.READ_ICAP_HEADER_STATE) {
+				messages.increment();
+			}
+		}
+	}
+	
+	@Override
+	public void encapsulatedOffsetIgnored(IcapMessageElementEnum entry) {
+		ignoredEncapsulatedOffsets.increment();
+	}
+	
+	/**
+	 * @param state the state.
+	 * @return how often the state was executed including incomplete executions.
+	 */
+	public long getExecutions(StateEnum state) {
+		return executions[state.ordinal()].sum();
+	}
+	
+	/**
+	 * @param state the state.
+	 * @return how often the state found the buffer incomplete and had to wait for more data.
+	 */
+	public long getIncompleteExecutions(StateEnum state) {
+		return incompleteExecutions[state.ordinal()].sum();
+	}
+	
+	/**
+	 * @param state the state.
+	 * @return the amount of bytes the state consumed.
+	 */
+	public long getBytesConsumed(StateEnum state) {
+		return bytes[state.ordinal()].sum();
+	}
+	
+	/**
+	 * @param state the state.
+	 * @return the time spent in the state in nanoseconds.
+	 */
+	public long getNanos(StateEnum state) {
+		return nanos[state.ordinal()].sum();
+	}
+	
+	/**
+	 * @param state the state.
+	 * @return how often the decoder moved into the state.
+	 */
+	public long getTransitionsInto(StateEnum state) {
+		return transitions[state.ordinal()].sum();
+	}
+	
+	/**
+	 * @return the amount of messages with a valid initial line.
+	 */
+	public long getMessages() {
+		return messages.sum();
+	}
+	
+	/**
+	 * @return the amount of wrong Encapsulated offsets that were ignored.
+	 */
+	public long getIgnoredEncapsulatedOffsets() {
+		return ignoredEncapsulatedOffsets.sum();
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("DecoderStatistics: messages=").append(getMessages());
+		builder.append(" ignoredEncapsulatedOffsets=").append(getIgnoredEncapsulatedOffsets());
+		for(StateEnum state : STATES) {
+			builder.append(" [").append(state).append(" executions=").append(getExecutions(state))
+				.append(" incomplete=").append(getIncompleteExecutions(state))
+				.append(" bytes=").append(getBytesConsumed(state))
+				.append(" nanos=").append(getNanos(state)).append(']');
+		}
+		return builder.toString();
+	}
+	
+	private static LongAdder[] create() {
+		LongAdder[] adders = new LongAdder[STATES.length];
+		for(int i = 0 ; i < adders.length ; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+}
@@ -25,7 +25,7 @@ package ch.mimo.netty.handler.codec.icap;
 public class DefaultIcapRequest extends AbstractIcapMessage implements IcapRequest {
 	
 	private IcapMethod method;
-	private String uri;
+	private CharSequence uri;
 	
 	/**
 	 * This will create an initial icap request with all necessary details.
@@ -43,6 +43,15 @@ public class DefaultIcapRequest extends AbstractIcapMessage implements IcapReque
 		addHeader(IcapHeaders.Names.HOST,host);
 	}
 	
+	/**
+	 * used by the decoder, the uri is converted into a String on first access only.
+	 */
+	DefaultIcapRequest(IcapVersion icapVersion, IcapMethod method, CharSequence uri) {
+		super(icapVersion);
+		this.method = method;
+		this.uri = uri;
+	}
+	
 	public IcapMessage setMethod(IcapMethod method) {
 		this.method = method;
 		return this;
@@ -58,6 +67,6 @@ public class DefaultIcapRequest extends AbstractIcapMessage implements IcapReque
 	}
 
 	public String getUri() {
-		return uri;
+		return uri != null ? uri.toString() : null;
 	}
 }
@@ -16,27 +16,36 @@
 package ch.mimo.netty.handler.codec.icap;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Arrays;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
 
 /**
  * This class parses, creates and provides the very important Encapsulated header to the Decoder and
  * encapsulates the complexity of that header.
  * 
+ * The offsets are kept in a fixed array indexed by the ordinal of @see {@link IcapMessageElementEnum}.
+ * Header entries are ordered by their offset, the body entry always comes last.
+ * 
  * @author Michael Mimo Moratti (mimo@mimo.ch)
  *
  */
 public final class Encapsulated {
 	
-	private List<Entry> entries;
+	private static final IcapMessageElementEnum[] ELEMENTS = IcapMessageElementEnum.values();
+	private static final byte[] NAME = "Encapsulated: ".getBytes(IcapCodecUtil.ASCII_CHARSET);
+	private static final int ABSENT = -1;
+	
+	private final int[] offsets;
+	private final IcapMessageElementEnum[] order;
+	private int size;
+	private int processed;
 	
 	public Encapsulated() {
-		entries = new ArrayList<Encapsulated.Entry>();
+		offsets = new int[ELEMENTS.length];
+		order = new IcapMessageElementEnum[ELEMENTS.length];
+		Arrays.fill(offsets,ABSENT);
 	}
 	
 	/**
@@ -56,14 +65,19 @@ public final class Encapsulated {
 	 * @return boolean true if the entity in question is present.
 	 */
 	public boolean containsEntry(IcapMessageElementEnum entity) {
-		for(Entry entry : entries) {
-			if(entry.getName().equals(entity)) {
-				return true;
-			}
-		}
-		return false;
+		return offsets[entity.ordinal()] != ABSENT;
  	}
 	
+	/**
+	 * Gets the offset of an entry relative to the start of the encapsulated message part.
+	 * 
+	 * @param entity the entity such as REQHDR, RESHDR and so on.
+	 * @return the offset or -1 if the entity is not present.
+	 */
+	public int getPosition(IcapMessageElementEnum entity) {
+		return offsets[entity.ordinal()];
+	}
+	
 	/**
 	 * Gets whether the message contains a body entity. This can be any valid body entry
 	 * including the null-body entity which indicates that the message does not contain.
@@ -72,23 +86,10 @@ public final class Encapsulated {
 	 * @return the correct @see {@link IcapMessageElementEnum} value.
 	 */
 	public IcapMessageElementEnum containsBodyEntry() {
-		IcapMessageElementEnum body = null;
-		for(Entry entry : entries) {
-			if(entry.getName().equals(IcapMessageElementEnum.OPTBODY)) {
-				body = entry.getName();
-				break;
-			} else if(entry.getName().equals(IcapMessageElementEnum.REQBODY)) {
-				body = entry.getName();
-				break;
-			} else if(entry.getName().equals(IcapMessageElementEnum.RESBODY)) {
-				body = entry.getName();
-				break;
-			} else if(entry.getName().equals(IcapMessageElementEnum.NULLBODY)) {
-				body = entry.getName();
-				break;
-			}
+		if(size > 0 && order[size - 1].isBody()) {
+			return order[size - 1];
 		}
-		return body;
+		return null;
 	}
 	
 	/**
@@ -100,14 +101,12 @@ public final class Encapsulated {
 	 * @return @see {@link IcapMessageElementEnum} or null if no more entries are available.
 	 */
 	public IcapMessageElementEnum getNextEntry() {
-		IcapMessageElementEnum entryName = null;
-		for(Entry entry : entries) {
-			if(!entry.isProcessed()) {
-				entryName = entry.getName();
-				break;
+		for(int i = 0 ; i < size ; i++) {
+			if((processed & (1 << order[i].ordinal())) == 0) {
+				return order[i];
 			}
 		}
-		return entryName;
+		return null;
 	}
 	
 	/**
@@ -117,9 +116,30 @@ public final class Encapsulated {
 	 * @param entryName the entry that was procesed.
 	 */
 	public void setEntryAsProcessed(IcapMessageElementEnum entryName) {
-		Entry entry = getEntryByName(entryName);
-		if(entry != null) {
-			entry.setIsProcessed();
+		if(entryName != null && containsEntry(entryName)) {
+			processed |= 1 << entryName.ordinal();
+		}
+	}
+	
+	/**
+	 * validates that an encapsulated section of the given length ends exactly where the
+	 * following entry starts.
+	 * 
+	 * @param entryName the entry that was read.
+	 * @param length the amount of bytes the section occupied in the message.
+	 * @throws DecodingException if the section does not end at the offset of the following entry.
+	 */
+	public void validateSectionLength(IcapMessageElementEnum entryName, int length) throws DecodingException {
+		int index = indexOf(entryName);
+		if(index < 0 || index + 1 >= size) {
+			return;
+		}
+		IcapMessageElementEnum next = order[index + 1];
+		int expected = offsets[next.ordinal()];
+		int actual = offsets[entryName.ordinal()] + length;
+		if(expected != actual) {
+			throw new DecodingException(new CorruptedFrameException("Encapsulated header announces [" + next.getValue() + "] at offset [" + expected 
+					+ "] but the [" + entryName.getValue() + "] section ends at offset [" + actual + "]"));
 		}
 	}
 	
@@ -130,8 +150,22 @@ public final class Encapsulated {
 	 * @param position the position of the entry within the icap message.
 	 */
 	public void addEntry(IcapMessageElementEnum name, int position) {
-		Entry entry = new Entry(name,position);
-		entries.add(entry);
+		if(position < 0) {
+			throw new IllegalArgumentException("the position of [" + name.getValue() + "] must not be negative");
+		}
+		int ordinal = name.ordinal();
+		if(offsets[ordinal] != ABSENT) {
+			remove(indexOf(name));
+		}
+		offsets[ordinal] = position;
+		processed &= ~(1 << ordinal);
+		int index = size;
+		while(index > 0 && isBefore(name,order[index - 1])) {
+			order[index] = order[index - 1];
+			index--;
+		}
+		order[index] = name;
+		size++;
 	}
 	
 	/**
@@ -142,23 +176,21 @@ public final class Encapsulated {
 	 * @throws UnsupportedEncodingException If a character cannot be encoded in ASCII.
 	 */
 	public int encode(ByteBuf buffer) throws UnsupportedEncodingException {
-		int index = buffer.readableBytes();
-		Collections.sort(entries);
-		buffer.writeBytes("Encapsulated: ".getBytes(IcapCodecUtil.ASCII_CHARSET));
-		Iterator<Entry> entryIterator = entries.iterator();
-		while(entryIterator.hasNext()) {
-			Entry entry = entryIterator.next();
-			buffer.writeBytes(entry.getName().getValue().getBytes(IcapCodecUtil.ASCII_CHARSET));
-			buffer.writeBytes("=".getBytes(IcapCodecUtil.ASCII_CHARSET));
-			buffer.writeBytes(Integer.toString(entry.getPosition()).getBytes(IcapCodecUtil.ASCII_CHARSET));
-			if(entryIterator.hasNext()) {
+		int index = buffer.writerIndex();
+		buffer.writeBytes(NAME);
+		for(int i = 0 ; i < size ; i++) {
+			IcapMessageElementEnum entry = order[i];
+			if(i > 0) {
 				buffer.writeByte(',');
 				buffer.writeByte(IcapCodecUtil.SPACE);
 			}
+			buffer.writeBytes(entry.getEncodedName());
+			buffer.writeByte('=');
+			writeDecimal(buffer,offsets[entry.ordinal()]);
 		}
         buffer.writeBytes(IcapCodecUtil.CRLF);
         buffer.writeBytes(IcapCodecUtil.CRLF);
-		return buffer.readableBytes() - index;
+		return buffer.writerIndex() - index;
 	}
 	
 	/*
@@ -172,96 +204,108 @@ public final class Encapsulated {
 		if(headerValue == null) {
 			throw new IcapDecodingError("No value associated with Encapsualted header");
 		}
-		StringTokenizer tokenizer = new StringTokenizer(headerValue,",");
-		while(tokenizer.hasMoreTokens()) {
-			String parameterString = tokenizer.nextToken();
-			if(parameterString != null) {
-				String[] parameter = splitParameter(parameterString.trim());
-				try {
-					int value = Integer.parseInt(parameter[1]);
-					Entry entry = new Entry(IcapMessageElementEnum.fromString(parameter[0]),value);
-					entries.add(entry);
-				} catch(NumberFormatException nfe) {
-					throw new IcapDecodingError("the Encapsulated header value [" + parameter[1] + "] for the key [" + parameter[0] + "] is not a number");
+		int length = headerValue.length();
+		int index = 0;
+		while(index < length) {
+			index = skipWhitespace(headerValue,index);
+			if(index == length) {
+				break;
+			}
+			int nameStart = index;
+			while(index < length && headerValue.charAt(index) != '=' && headerValue.charAt(index) != ',') {
+				index++;
+			}
+			if(index == length || headerValue.charAt(index) != '=') {
+				throw new IcapDecodingError("Encapsulated header value was not understood [" + headerValue.substring(nameStart,index).trim() + "]");
+			}
+			int nameEnd = index;
+			while(nameEnd > nameStart && isWhitespace(headerValue.charAt(nameEnd - 1))) {
+				nameEnd--;
+			}
+			IcapMessageElementEnum name = IcapMessageElementEnum.fromCharSequence(headerValue,nameStart,nameEnd);
+			if(name == null) {
+				throw new IcapDecodingError("Encapsulated header value was not understood [" + headerValue.substring(nameStart,nameEnd) + "]");
+			}
+			index = skipWhitespace(headerValue,index + 1);
+			int valueStart = index;
+			long value = 0;
+			while(index < length && headerValue.charAt(index) >= '0' && headerValue.charAt(index) <= '9') {
+				value = value * 10 + (headerValue.charAt(index) - '0');
+				if(value > Integer.MAX_VALUE) {
+					break;
 				}
+				index++;
+			}
+			int valueEnd = index;
+			index = skipWhitespace(headerValue,index);
+			if(valueStart == valueEnd || value > Integer.MAX_VALUE || (index < length && headerValue.charAt(index) != ',')) {
+				int end = headerValue.indexOf(',',valueStart);
+				throw new IcapDecodingError("the Encapsulated header value [" + headerValue.substring(valueStart,end < 0 ? length : end) 
+						+ "] for the key [" + name.getValue() + "] is not a number");
 			}
+			addEntry(name,(int)value);
+			index++;
 		}
-		Collections.sort(entries);
 	}
 	
-	private String[] splitParameter(String parameter) {
-		int offset = parameter.indexOf('=');
-		if(offset <= 0) {
-			throw new IcapDecodingError("Encapsulated header value was not understood [" + parameter + "]");
-		}
-		String key = parameter.substring(0,offset);
-		String value = parameter.substring(offset + 1,parameter.length());
-		if(value.contains(",")) {
-			value = value.substring(0,value.indexOf(','));
+	private static int skipWhitespace(String value, int index) {
+		while(index < value.length() && isWhitespace(value.charAt(index))) {
+			index++;
 		}
-		return new String[]{key.trim(),value};
+		return index;
 	}
 	
-	private Entry getEntryByName(IcapMessageElementEnum entryName) {
-		Entry returnValue = null;
-		for(Entry entry : entries) {
-			if(entry.getName().equals(entryName)) {
-				returnValue = entry;
-				break;
-			}
-		}
-		return returnValue;
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t';
 	}
 	
-	private final static class Entry implements Comparable<Entry> {
-
-		private final IcapMessageElementEnum name;
-		private final Integer position;
-		private boolean processed;
-		
-		public Entry(IcapMessageElementEnum name, Integer position) {
-			this.name = name;
-			this.position = position;
-		}
-		
-		public IcapMessageElementEnum getName() {
-			return name;
+	private static void writeDecimal(ByteBuf buffer, int value) {
+		int divisor = 1;
+		while(value / divisor >= 10) {
+			divisor *= 10;
 		}
-		
-		public int getPosition() {
-			return position;
+		for(; divisor > 0 ; divisor /= 10) {
+			buffer.writeByte('0' + (value / divisor) % 10);
 		}
-		
-		public void setIsProcessed() {
-			processed = true;
+	}
+	
+	/**
+	 * header entries are ordered by offset and ordinal, the body entry always comes last.
+	 */
+	private boolean isBefore(IcapMessageElementEnum entry, IcapMessageElementEnum other) {
+		if(entry.isBody() != other.isBody()) {
+			return !entry.isBody();
 		}
-		
-		public boolean isProcessed() {
-			return processed;
+		int offset = offsets[entry.ordinal()];
+		int otherOffset = offsets[other.ordinal()];
+		if(offset != otherOffset) {
+			return offset < otherOffset;
 		}
-		
-		@Override
-		public int compareTo(Entry entry) {			
-			if(this.name.equals(IcapMessageElementEnum.NULLBODY)) {
-				return 1;
+		return entry.ordinal() < other.ordinal();
+	}
+	
+	private int indexOf(IcapMessageElementEnum entryName) {
+		for(int i = 0 ; i < size ; i++) {
+			if(order[i] == entryName) {
+				return i;
 			}
-			return this.position.compareTo(entry.position);
-		}
-		
-		@Override
-		public String toString() {
-			return name + "=" + position + " : " + processed;
 		}
+		return -1;
+	}
+	
+	private void remove(int index) {
+		System.arraycopy(order,index + 1,order,index,size - index - 1);
+		order[--size] = null;
 	}
 	
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("Encapsulated: ");
-		for(Entry entry : entries) {
-			if(entry != null) {
-				builder.append(" [").append(entry.toString()).append("] ");
-			}
+		for(int i = 0 ; i < size ; i++) {
+			IcapMessageElementEnum entry = order[i];
+			builder.append(" [").append(entry).append('=').append(offsets[entry.ordinal()]).append(" : ")
+				.append((processed & (1 << entry.ordinal())) != 0).append("] ");
 		}
  		return builder.toString();
 	}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+/**
+ * Instrumentation hook of @see {@link IcapMessageEncoder}.
+ * 
+ * The encoder calls the listener from its event loop for every encoded message or chunk. Implementations must
+ * therefore be cheap and must not block. Without a listener the encoder does not measure anything.
+ * 
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapMessageEncoder#setEncoderListener(EncoderListener)
+ */
+public interface EncoderListener {
+
+	/**
+	 * a message or chunk was encoded.
+	 * 
+	 * @param msg the encoded @see {@link IcapMessage} or @see {@link IcapChunk}.
+	 * @param bytesWritten amount of bytes written to the outbound buffer.
+	 * @param nanos time spent encoding.
+	 */
+	void encoded(Object msg, int bytesWritten, long nanos);
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental reader for initial lines and header blocks.
+ *
+ * Complete lines are consumed from the buffer as soon as they arrive. For a line that is not yet
+ * complete only the scan position is remembered so that the next decode call continues scanning
+ * where the previous one stopped instead of parsing the whole block again.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapMessageDecoder
+ */
+public class HeaderBlockReader {
+
+	private int scanOffset;
+	private String initialLine;
+	private List<String> lines;
+	private SizeDelimiter sizeDelimiter;
+	private int blockSize;
+	private int lastBlockSize;
+
+	/**
+	 * reads the initial line of a message. Once read the line is kept until @see {@link #reset()} is called
+	 * or the following header block was read completely.
+	 *
+	 * @param buffer @see {@link ByteBuf} that contains the line.
+	 * @param maxLineLength the maximum length of the line.
+	 * @return the initial line or null if the buffer does not yet contain a complete line.
+	 * @throws DecodingException if the line exceeds the maximum length.
+	 */
+	public String readInitialLine(ByteBuf buffer, int maxLineLength) throws DecodingException {
+		if(initialLine == null) {
+			if(findLineEnd(buffer,maxLineLength + 1) < 0) {
+				return null;
+			}
+			int readerIndex = buffer.readerIndex();
+			initialLine = IcapDecoderUtil.readLine(buffer,maxLineLength);
+			blockSize += buffer.readerIndex() - readerIndex;
+		}
+		return initialLine;
+	}
+
+	/**
+	 * finds the line feed that terminates the initial line without reading the line.
+	 *
+	 * @param buffer @see {@link ByteBuf} that contains the line.
+	 * @param maxLineLength the maximum length of the line.
+	 * @return the absolute index of the line feed or -1 if the buffer does not yet contain a complete line.
+	 * @throws DecodingException if the line exceeds the maximum length.
+	 */
+	public int findInitialLineFeed(ByteBuf buffer, int maxLineLength) throws DecodingException {
+		return findLineEnd(buffer,maxLineLength + 1);
+	}
+
+	/**
+	 * reads all header lines up to and including the empty line that terminates the header block.
+	 *
+	 * @param buffer @see {@link ByteBuf} that contains the headers.
+	 * @param maxSize the maximum size of all headers concatenated.
+	 * @return all raw header lines or null if the header block is not yet complete.
+	 * @throws DecodingException if the maximum size is reached.
+	 */
+	public List<String> readHeaderLines(ByteBuf buffer, int maxSize) throws DecodingException {
+		if(lines == null) {
+			lines = new ArrayList<String>();
+			sizeDelimiter = new SizeDelimiter(maxSize);
+		}
+		for(;;) {
+			if(findLineEnd(buffer,maxSize - sizeDelimiter.getSize() - 1) < 0) {
+				return null;
+			}
+			int readerIndex = buffer.readerIndex();
+			String line = IcapDecoderUtil.readSingleHeaderLine(buffer,sizeDelimiter);
+			blockSize += buffer.readerIndex() - readerIndex;
+			if(line.length() == 0) {
+				List<String> result = lines;
+				int size = blockSize;
+				reset();
+				lastBlockSize = size;
+				return result;
+			}
+			lines.add(line);
+		}
+	}
+
+	/**
+	 * @return the amount of bytes the last completely read block occupied in the message,
+	 * including the initial line and the empty line that terminates the block.
+	 */
+	public int getLastBlockSize() {
+		return lastBlockSize;
+	}
+
+	/**
+	 * discards all partially read data.
+	 */
+	public void reset() {
+		scanOffset = 0;
+		blockSize = 0;
+		initialLine = null;
+		lines = null;
+		sizeDelimiter = null;
+	}
+
+	private int findLineEnd(ByteBuf buffer, int maxPendingBytes) throws DecodingException {
+		int index = IcapDecoderUtil.findLineFeed(buffer,buffer.readerIndex() + scanOffset);
+		if(index >= 0) {
+			scanOffset = 0;
+			return index;
+		}
+		scanOffset = buffer.readableBytes();
+		if(scanOffset > maxPendingBytes) {
+			throw new DecodingException(new TooLongFrameException("An ICAP line is larger than " + maxPendingBytes + " bytes."));
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+
+/**
+ * Demand driven publisher of the body chunks of one ICAP message.
+ *
+ * The stream is attached to the decoded message by @see {@link IcapBodyStreamHandler}. Every published
+ * @see {@link ByteBuf} belongs to the subscriber which has to release it. As long as the subscriber has
+ * no outstanding demand the channel stops reading, so a slow consumer slows down the sending peer
+ * through the TCP window.
+ *
+ * A preview stream completes with the end of the preview. If the preview was not early terminated
+ * the rest of the body is delivered by the continuation stream once the 100 Continue was sent.
+ *
+ * The stream accepts exactly one subscriber. A stream that is never subscribed keeps its chunks until
+ * the channel is closed.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapBodyStreamHandler
+ */
+public final class IcapBodyStream implements Flow.Publisher<ByteBuf> {
+
+	private final ChannelHandlerContext ctx;
+	private final boolean preview;
+	private final Queue<ByteBuf> queue = new ArrayDeque<ByteBuf>();
+	private IcapBodyStream continuation;
+
+	private Flow.Subscriber<? super ByteBuf> subscriber;
+	private long demand;
+	private boolean draining;
+	private boolean finished;
+	private boolean terminated;
+	private boolean endOfMessage;
+	private Throwable failure;
+	private HttpHeaders trailingHeaders = EmptyHttpHeaders.INSTANCE;
+
+	IcapBodyStream(ChannelHandlerContext ctx, boolean preview) {
+		this.ctx = ctx;
+		this.preview = preview;
+		if(preview) {
+			continuation = new IcapBodyStream(ctx,false);
+		}
+	}
+
+	/**
+	 * @return true if this stream delivers the preview of the body.
+	 */
+	public boolean isPreview() {
+		return preview;
+	}
+
+	/**
+	 * @return true once the stream is complete and no continuation follows. This is the case for a preview
+	 * that was early terminated.
+	 */
+	public boolean isEndOfMessage() {
+		return endOfMessage;
+	}
+
+	/**
+	 * @return the stream of the body after the preview or null if this is not a preview stream.
+	 */
+	public IcapBodyStream getContinuation() {
+		return continuation;
+	}
+
+	/**
+	 * @return the trailing headers of the body, available after completion.
+	 */
+	public HttpHeaders getTrailingHeaders() {
+		return trailingHeaders;
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super ByteBuf> subscriber) {
+		if(subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if(IcapBodyStream.this.subscriber != null) {
+					subscriber.onSubscribe(new Flow.Subscription() {
+						@Override
+						public void request(long n) {
+						}
+
+						@Override
+						public void cancel() {
+						}
+					});
+					subscriber.onError(new IllegalStateException("body stream accepts only one subscriber"));
+					return;
+				}
+				IcapBodyStream.this.subscriber = subscriber;
+				subscriber.onSubscribe(new BodySubscription());
+				drain();
+			}
+		});
+	}
+
+	/**
+	 * adds a chunk of the body. The stream takes over the buffer.
+	 */
+	void offer(ByteBuf buffer) {
+		if(terminated) {
+			buffer.release();
+			return;
+		}
+		queue.add(buffer);
+		drain();
+	}
+
+	/**
+	 * marks the end of the chunks of this stream.
+	 */
+	void finish(HttpHeaders trailingHeaders, boolean endOfMessage) {
+		if(trailingHeaders != null) {
+			this.trailingHeaders = trailingHeaders;
+		}
+		this.endOfMessage = endOfMessage;
+		finished = true;
+		if(preview && endOfMessage) {
+			continuation.finish(null,true);
+		}
+		drain();
+	}
+
+	void fail(Throwable cause) {
+		if(finished) {
+			if(continuation != null) {
+				continuation.fail(cause);
+			}
+			return;
+		}
+		failure = cause;
+		finished = true;
+		if(continuation != null) {
+			continuation.fail(cause);
+		}
+		if(subscriber == null) {
+			releaseQueue();
+		}
+		drain();
+	}
+
+	private void drain() {
+		if(draining) {
+			return;
+		}
+		draining = true;
+		try {
+			if(subscriber != null) {
+				while(!terminated && demand > 0 && !queue.isEmpty()) {
+					demand--;
+					subscriber.onNext(queue.poll());
+				}
+				if(!terminated && finished && queue.isEmpty()) {
+					terminated = true;
+					if(failure != null) {
+						subscriber.onError(failure);
+					} else {
+						subscriber.onComplete();
+					}
+				}
+			}
+			updateAutoRead();
+		} finally {
+			draining = false;
+		}
+	}
+
+	/**
+	 * reading is paused while chunks wait for demand and resumed as soon as they were consumed.
+	 * A finished stream does not hold the channel back.
+	 */
+	private void updateAutoRead() {
+		boolean read = finished || terminated || (queue.isEmpty() && demand > 0);
+		if(ctx.channel().config().isAutoRead() != read) {
+			ctx.channel().config().setAutoRead(read);
+		}
+	}
+
+	private void releaseQueue() {
+		ByteBuf buffer;
+		while((buffer = queue.poll()) != null) {
+			buffer.release();
+		}
+	}
+
+	private void execute(Runnable task) {
+		if(ctx.executor().inEventLoop()) {
+			task.run();
+		} else {
+			ctx.executor().execute(task);
+		}
+	}
+
+	private final class BodySubscription implements Flow.Subscription {
+
+		@Override
+		public void request(final long n) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if(terminated) {
+						return;
+					}
+					if(n <= 0) {
+						terminated = true;
+						releaseQueue();
+						subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+						updateAutoRead();
+						return;
+					}
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+					drain();
+				}
+			});
+		}
+
+		@Override
+		public void cancel() {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if(!terminated) {
+						terminated = true;
+						releaseQueue();
+						updateAutoRead();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Attaches a demand driven @see {@link IcapBodyStream} to every received ICAP message that has a body.
+ *
+ * Use this handler instead of the @see {@link IcapChunkAggregator} when the body should be consumed while
+ * it is received. The message is passed on as soon as its headers are decoded, the chunks that follow are
+ * not passed on but published to the subscriber of the body stream. Reading from the channel is paused while
+ * the subscriber has no outstanding demand.
+ *
+ * A preview message gets a stream for the preview. The remaining body that is sent after the 100 Continue
+ * is published by the continuation of that stream. The continuation of an early terminated preview completes
+ * without any chunks.
+ *
+ * Chunks that do not belong to a message with a body stream are passed on untouched.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapBodyStream
+ */
+public class IcapBodyStreamHandler extends ChannelInboundHandlerAdapter {
+
+	private IcapMessage message;
+	private IcapBodyStream current;
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if(msg instanceof IcapMessage) {
+			IcapMessage icapMessage = (IcapMessage)msg;
+			if(current != null) {
+				current.fail(new IllegalStateException("message received before the body of the previous message was complete"));
+				current = null;
+			}
+			message = null;
+			if(icapMessage.getBodyType() != null && icapMessage.getBodyType() != IcapMessageElementEnum.NULLBODY) {
+				message = icapMessage;
+				current = new IcapBodyStream(ctx,icapMessage.isPreviewMessage());
+				icapMessage.setBodyStream(current);
+			}
+			ctx.fireChannelRead(icapMessage);
+		} else if(msg instanceof IcapChunk) {
+			IcapChunk chunk = (IcapChunk)msg;
+			if(current == null) {
+				ctx.fireChannelRead(chunk);
+			} else if(chunk.isLast()) {
+				finish(chunk);
+			} else {
+				current.offer(chunk.content());
+			}
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	/**
+	 * completes the current stream. A preview that was not early terminated continues with the
+	 * chunks that are sent after the 100 Continue.
+	 */
+	private void finish(IcapChunk chunk) {
+		HttpHeaders trailingHeaders = null;
+		if(chunk instanceof IcapChunkTrailer) {
+			IcapChunkTrailer trailer = (IcapChunkTrailer)chunk;
+			trailingHeaders = trailer.trailingHeaders();
+			if(message instanceof IcapResponse && trailer.getUseOriginalBody() != null) {
+				((IcapResponse)message).setUseOriginalBody(trailer.getUseOriginalBody());
+			}
+		}
+		IcapBodyStream stream = current;
+		if(stream.isPreview() && !chunk.isEarlyTerminated()) {
+			current = stream.getContinuation();
+		} else {
+			current = null;
+			message = null;
+		}
+		try {
+			stream.finish(trailingHeaders,current == null);
+		} finally {
+			chunk.release();
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if(current != null) {
+			current.fail(new ClosedChannelException());
+			current = null;
+			message = null;
+		}
+		ctx.fireChannelInactive();
+	}
+}
@@ -16,14 +16,23 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.http.FullHttpMessage;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -39,7 +48,25 @@ import io.netty.util.internal.logging.InternalLoggerFactory;
  * The reader index of an HTTP content ByteBuf can be reset to 0 via a dedicated constructor in order to handle preview aggregation.
  * This is done in order to allow server implementations to handle preview messages properly. A preview message
  * is aggregated with the 100 Continue response from the client and the buffer will be therefore reset to 0
- * so that the server handler can read the entire message.
+ * so that the server handler can read the entire message. The entire message is passed on as a new message
+ * that shares the preview body, the preview message that was passed on is not changed or released by this aggregator.
+ * <p/>
+ * Every chunk and chunk trailer that is merged into the message is released by this aggregator. This includes
+ * chunks that carry retained slices of the decoders cumulation buffer. Chunks that are passed on untouched
+ * remain owned by the next handler.
+ * <p/>
+ * The body is not copied. The chunk buffers are collected in a @see {@link CompositeByteBuf} that consolidates its
+ * components into a single buffer once more than the configured maximum number of components are added,
+ * in the same way as Netty's MessageAggregator.
+ * <p/>
+ * A Content-Length of the encapsulated HTTP message above the maximum content length is rejected as soon as the
+ * message is received, the chunks of the rejected message are discarded. If the Content-Length announces
+ * a body that would need more components than allowed, the body is copied into a single buffer of
+ * that length instead of being consolidated repeatedly.
+ * <p/>
+ * Optionally bodies above a threshold, or bodies that do not fit into a @see {@link MemoryBudget} shared by all
+ * channels, are spilled to a temporary file. Such a body is passed on as memory mapped buffer and the file is
+ * deleted when the buffer is released.
  *
  * @author Michael Mimo Moratti (mimo@mimo.ch)
  * 
@@ -52,9 +79,16 @@ public class IcapChunkAggregator extends ChannelInboundHandlerAdapter {
 	
 	private static final int READER_INDEX_RESET_VALUE = 0;
 	
+	public static final int DEFAULT_MAX_COMPOSITEBUFFER_COMPONENTS = 1024;
+	
 	private long maxContentLength;
 	private IcapMessageWrapper message;
 	private boolean resetReaderIndex;
+	private int maxCumulationBufferComponents = DEFAULT_MAX_COMPOSITEBUFFER_COMPONENTS;
+	private boolean discarding;
+	private int spillThreshold;
+	private MemoryBudget memoryBudget;
+	private Path spillDirectory;
 	
 	/**
 	 * Convenience method to retrieve a HTTP request,response or 
@@ -98,22 +132,82 @@ public class IcapChunkAggregator extends ChannelInboundHandlerAdapter {
 		this(maxContentLength);
 		this.resetReaderIndex = resetReaderIndex;
 	}
+	
+	/**
+	 * @param maxContentLength defines the maximum length of the body content that is allowed. 
+	 * @param resetReaderIndex defines if the HTTP message reader index should be reset after adding more data to it.
+	 * @param maxCumulationBufferComponents number of chunk buffers that are collected before they are consolidated into one buffer.
+	 */
+	public IcapChunkAggregator(long maxContentLength, boolean resetReaderIndex, int maxCumulationBufferComponents) {
+		this(maxContentLength,resetReaderIndex);
+		if(maxCumulationBufferComponents < 2) {
+			throw new IllegalArgumentException("maxCumulationBufferComponents: " + maxCumulationBufferComponents + " (expected: >= 2)");
+		}
+		this.maxCumulationBufferComponents = maxCumulationBufferComponents;
+	}
+	
+	/**
+	 * Constructor for an aggregator that keeps bodies in memory only up to a threshold and as long as the shared
+	 * memory budget allows it. Larger bodies are written to a temporary file and passed on as memory mapped buffer,
+	 * the file is deleted when that buffer is released.
+	 * 
+	 * @param maxContentLength defines the maximum length of the body content that is allowed. 
+	 * @param resetReaderIndex defines if the HTTP message reader index should be reset after adding more data to it.
+	 * @param maxCumulationBufferComponents number of chunk buffers that are collected before they are consolidated into one buffer.
+	 * @param spillThreshold body length in bytes up to which a body is kept in memory.
+	 * @param memoryBudget @see {@link MemoryBudget} shared by the aggregators of all channels.
+	 * @param spillDirectory directory for the temporary body files.
+	 */
+	public IcapChunkAggregator(long maxContentLength, boolean resetReaderIndex, int maxCumulationBufferComponents,
+			int spillThreshold, MemoryBudget memoryBudget, Path spillDirectory) {
+		this(maxContentLength,resetReaderIndex,maxCumulationBufferComponents);
+		if(spillThreshold < 0) {
+			throw new IllegalArgumentException("spillThreshold: " + spillThreshold + " (expected: >= 0)");
+		}
+		if(memoryBudget == null || spillDirectory == null) {
+			throw new NullPointerException("memoryBudget and spillDirectory are required");
+		}
+		this.spillThreshold = spillThreshold;
+		this.memoryBudget = memoryBudget;
+		this.spillDirectory = spillDirectory;
+	}
+	
+	/**
+	 * @return number of chunk buffers that are collected before they are consolidated into one buffer.
+	 */
+	public int getMaxCumulationBufferComponents() {
+		return maxCumulationBufferComponents;
+	}
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
     	if(msg instanceof IcapMessage) {
-    		LOG.debug("Aggregation of message [" + msg.getClass().getName() + "] ");
+    		LOG.debug("Aggregation of message [{}] ",msg.getClass().getName());
     		IcapMessage currentMessage = (IcapMessage)msg;
-    		message = new IcapMessageWrapper(ctx.alloc(), currentMessage);
+    		discarding = false;
+    		long contentLength = getContentLength(currentMessage);
+    		if(contentLength > maxContentLength) {
+    			currentMessage.release();
+    			message = null;
+    			discarding = currentMessage.getBodyType() != null && currentMessage.getBodyType() != IcapMessageElementEnum.NULLBODY;
+    			throw new TooLongFrameException("HTTP content length [" + contentLength + "] exceeds [" + maxContentLength + "] bytes");
+    		}
+    		message = new IcapMessageWrapper(ctx.alloc(), currentMessage, maxCumulationBufferComponents, contentLength);
     		if(!message.hasBody()) {
-                message.getIcapMessage().removeHeader(IcapHeaders.Names.PREVIEW);
+    			if(currentMessage instanceof IcapRequest) {
+    				// the Preview header of an OPTIONS response announces a capability and is kept
+    				message.getIcapMessage().removeHeader(IcapHeaders.Names.PREVIEW);
+    			}
                 ctx.fireChannelRead(message.getIcapMessage());
     			message = null;
     			return;
     		}
     	} else if(msg instanceof IcapChunkTrailer) {
-    		LOG.debug("Aggregation of chunk trailer [" + msg.getClass().getName() + "] ");
-    		if(message == null) {
+    		LOG.debug("Aggregation of chunk trailer [{}] ",msg.getClass().getName());
+    		if(discarding) {
+    			discarding = false;
+    			((IcapChunkTrailer)msg).release();
+    		} else if(message == null) {
     			ctx.fireChannelRead(msg);
     		} else {
     			IcapChunkTrailer trailer = (IcapChunkTrailer)msg;
@@ -129,36 +223,45 @@ public class IcapChunkAggregator extends ChannelInboundHandlerAdapter {
                 if (message.getIcapMessage() instanceof IcapResponse) {
 					((IcapResponse)message.getIcapMessage()).setUseOriginalBody(trailer.getUseOriginalBody());
 				}
-                ctx.fireChannelRead(message.getIcapMessage());
+                boolean continued = trailer.isPreviewChunk() && !trailer.isEarlyTerminated();
+                trailer.release();
+                complete(ctx,continued);
+                if(!continued) {
+                	message = null;
+                }
     		}
     	} else if(msg instanceof IcapChunk) {
-    		LOG.debug("Aggregation of chunk [" + msg.getClass().getName() + "] ");
+    		LOG.debug("Aggregation of chunk [{}] ",msg.getClass().getName());
     		IcapChunk chunk = (IcapChunk)msg;
-    		if(message == null) {
+    		if(discarding) {
+    			discarding = !chunk.isLast();
+    			chunk.release();
+    		} else if(message == null) {
     			ctx.fireChannelRead(msg);
     		} else if(chunk.isLast()) {
     			if(chunk.isEarlyTerminated()) {
                     LOG.debug("chunk is early terminated, removing PREVIEW header");
                     message.getIcapMessage().removeHeader(IcapHeaders.Names.PREVIEW);
     			}
-                ctx.fireChannelRead(message.getIcapMessage());
+                chunk.release();
+                complete(ctx,false);
     			message = null;
     		} else {
+				ByteBuf chunkBuffer = chunk.content();
+				if (message.getBodyLength() > maxContentLength - chunkBuffer.readableBytes()) {
+					chunk.release();
+					discard();
+					throw new TooLongFrameException(
+						"ICAP content length exceeded [" + maxContentLength + "] bytes");
+				}
 				try {
-					ByteBuf chunkBuffer = chunk.content();
-					ByteBuf content = message.getContent();
-					if (content.readableBytes() > maxContentLength - chunkBuffer.readableBytes()) {
-						content.release();
-						throw new TooLongFrameException(
-							"ICAP content length exceeded [" + maxContentLength + "] bytes");
-    			} else {
-    				content.writeBytes(chunkBuffer);
-    				if(resetReaderIndex) {
-    					content.readerIndex(READER_INDEX_RESET_VALUE);
-    				}
-    			}
-				} finally {
-					chunk.content().release();
+					if(!message.isPlanned()) {
+						message.plan(ctx.alloc(),chunkBuffer.readableBytes());
+					}
+					message.append(chunk);
+				} catch(IOException e) {
+					discard();
+					throw e;
 				}
     		}
     	} else {
@@ -166,34 +269,106 @@ public class IcapChunkAggregator extends ChannelInboundHandlerAdapter {
     	}
     }
     
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    	if(message != null) {
+    		message.discard();
+    		message = null;
+    	}
+    	ctx.fireChannelInactive();
+    }
+    
+    private void complete(ChannelHandlerContext ctx, boolean continued) throws IOException {
+    	try {
+    		message.complete(ctx.alloc());
+    	} catch(IOException e) {
+    		discard();
+    		throw e;
+    	}
+    	IcapMessage completed = message.getIcapMessage();
+    	if(continued) {
+    		message.continueAfterPreview(ctx.alloc());
+    	}
+    	ctx.fireChannelRead(completed);
+    }
+    
+    private void discard() {
+    	message.discard();
+    	message = null;
+    	discarding = true;
+    }
+    
+    private boolean isSpillEnabled() {
+    	return spillDirectory != null;
+    }
+    
+    private CompositeByteBuf newCompositeBuffer(ByteBufAllocator allocator) {
+    	if(isSpillEnabled()) {
+    		return new BudgetedCompositeByteBuf(allocator,maxCumulationBufferComponents,memoryBudget);
+    	}
+    	return allocator.compositeBuffer(maxCumulationBufferComponents);
+    }
+    
+    /**
+     * @return the Content-Length of the HTTP message that carries the body or -1 if it is not known.
+     */
+    private static long getContentLength(IcapMessage message) {
+    	HttpMessage httpMessage = null;
+    	if(message.getBodyType() == IcapMessageElementEnum.REQBODY) {
+    		httpMessage = message.getHttpRequest();
+    	} else if(message.getBodyType() == IcapMessageElementEnum.RESBODY) {
+    		httpMessage = message.getHttpResponse();
+    	}
+    	if(httpMessage == null) {
+    		return -1;
+    	}
+    	try {
+    		return HttpUtil.getContentLength(httpMessage,-1L);
+    	} catch(NumberFormatException e) {
+    		return -1;
+    	}
+    }
+    
     private final class IcapMessageWrapper {
     	
     	private IcapMessage message;
     	private FullHttpMessage relevantHttpMessage;
-    	private IcapResponse icapResponse;
     	private boolean messageWithBody;
 
-    	public IcapMessageWrapper(ByteBufAllocator allocator, IcapMessage message) {
+    	private ByteBuf content;
+    	private long contentLength;
+    	private boolean planned;
+    	private SpillFile spillFile;
+    	private boolean previewPassedOn;
+
+    	public IcapMessageWrapper(ByteBufAllocator allocator, IcapMessage message, int maxCumulationBufferComponents, long contentLength) {
     		this.message = message;
+    		this.contentLength = contentLength;
     		if(message.getBodyType() != null) {
 	    		if(message.getBodyType().equals(IcapMessageElementEnum.REQBODY)) {
-					FullHttpRequest newRequest = message.getHttpRequest().replace(allocator.buffer());
+					content = newCompositeBuffer(allocator);
+					FullHttpRequest newRequest = message.getHttpRequest().replace(content);
 					message.getHttpRequest().release();
 					relevantHttpMessage = newRequest;
 					message.setHttpRequest(newRequest);
 	    			messageWithBody = true;
 	    		} else if(message.getBodyType().equals(IcapMessageElementEnum.RESBODY)) {
-					FullHttpResponse newResponse =  message.getHttpResponse().replace(allocator.buffer());
+					content = newCompositeBuffer(allocator);
+					FullHttpResponse newResponse =  message.getHttpResponse().replace(content);
 					message.getHttpResponse().release();
 					relevantHttpMessage = newResponse;
 					message.setHttpResponse(newResponse);
 	    			messageWithBody = true;
 	    		} else if(message instanceof IcapResponse && message.getBodyType().equals(IcapMessageElementEnum.OPTBODY)) {
-	    			icapResponse = (IcapResponse)message;
+	    			IcapResponse icapResponse = (IcapResponse)message;
 	    			messageWithBody = true;
-					if (icapResponse.getContent() == null || icapResponse.getContent().readableBytes() <= 0) {
-						icapResponse.setContent(allocator.buffer());
+					CompositeByteBuf optionsContent = newCompositeBuffer(allocator);
+					ByteBuf existingContent = icapResponse.getContent();
+					if (existingContent != null && existingContent.readableBytes() > 0) {
+						optionsContent.addComponent(true,existingContent);
 					}
+					icapResponse.setContent(optionsContent);
+					content = optionsContent;
 				}
 			}
 		}
@@ -214,15 +389,222 @@ public class IcapChunkAggregator extends ChannelInboundHandlerAdapter {
     		}
     	}
     	
+    	public boolean isPlanned() {
+    		return planned;
+    	}
+    	
+    	/**
+    	 * decides with the first chunk how the body is collected. A body that is announced to exceed the
+    	 * spill threshold goes to disk right away. Otherwise, if the announced body needs more components
+    	 * than allowed, the composite is replaced by a buffer of the announced length.
+    	 */
+    	public void plan(ByteBufAllocator allocator, int chunkSize) throws IOException {
+    		planned = true;
+    		if(contentLength <= 0 || chunkSize <= 0 || content.isReadable()) {
+    			return;
+    		}
+    		if(isSpillEnabled()) {
+    			if(contentLength > spillThreshold) {
+    				spill();
+    			}
+    			return;
+    		}
+    		if(relevantHttpMessage == null || (contentLength + chunkSize - 1) / chunkSize <= maxCumulationBufferComponents) {
+    			return;
+    		}
+    		replaceContent(allocator.buffer((int)contentLength));
+    	}
+    	
+    	/**
+    	 * the preview is passed on and belongs to the next handler from now on. The continuation is collected
+    	 * into a new body that starts with a duplicate of the preview body and is passed on with a copy of the
+    	 * preview message, so that neither the passed on message nor its buffers are touched again.
+    	 */
+    	public void continueAfterPreview(ByteBufAllocator allocator) {
+    		IcapMessage preview = message;
+    		CompositeByteBuf continuation = newCompositeBuffer(allocator);
+    		ByteBuf previewContent = content.retainedDuplicate();
+    		if(resetReaderIndex) {
+    			previewContent.readerIndex(READER_INDEX_RESET_VALUE);
+    		}
+    		continuation.addComponent(true,previewContent);
+    		content = continuation;
+    		message = copyMessage(preview);
+    		FullHttpRequest httpRequest = preview.getHttpRequest();
+    		if(httpRequest != null) {
+    			FullHttpRequest newRequest = httpRequest == relevantHttpMessage ? httpRequest.replace(continuation) : httpRequest.retainedDuplicate();
+    			if(httpRequest == relevantHttpMessage) {
+    				relevantHttpMessage = newRequest;
+    			}
+    			message.setHttpRequest(newRequest);
+    		}
+    		FullHttpResponse httpResponse = preview.getHttpResponse();
+    		if(httpResponse != null) {
+    			FullHttpResponse newResponse = httpResponse == relevantHttpMessage ? httpResponse.replace(continuation) : httpResponse.retainedDuplicate();
+    			if(httpResponse == relevantHttpMessage) {
+    				relevantHttpMessage = newResponse;
+    			}
+    			message.setHttpResponse(newResponse);
+    		}
+    		previewPassedOn = true;
+    	}
+    	
+    	private IcapMessage copyMessage(IcapMessage original) {
+    		AbstractIcapMessage copy;
+    		if(original instanceof IcapRequest) {
+    			IcapRequest request = (IcapRequest)original;
+    			copy = new DefaultIcapRequest(request.getProtocolVersion(),request.getMethod(),request.getUri());
+    		} else {
+    			copy = new DefaultIcapResponse(original.getProtocolVersion(),((IcapResponse)original).getStatus());
+    		}
+    		Iterator<Entry<String,CharSequence>> headers = original.iteratorCharSequence();
+    		while(headers.hasNext()) {
+    			Entry<String,CharSequence> header = headers.next();
+    			copy.addHeader(header.getKey(),header.getValue().toString());
+    		}
+    		copy.setEncapsulatedHeader(original.getEncapsulatedHeader());
+    		copy.setBody(original.getBodyType());
+    		return copy;
+    	}
+    	
+    	/**
+    	 * appends a chunk within the memory budget.
+    	 */
+    	public void append(IcapChunk chunk) throws IOException {
+    		ByteBuf chunkBuffer = chunk.content();
+    		if(spillFile == null && isSpillEnabled()
+    				&& (content.readableBytes() > spillThreshold - chunkBuffer.readableBytes()
+    						|| !((BudgetedCompositeByteBuf)content).reserve(chunkBuffer.readableBytes()))) {
+    			spill();
+    		}
+    		if(spillFile != null) {
+    			try {
+    				spillFile.write(chunkBuffer);
+    			} finally {
+    				chunk.release();
+    			}
+    			return;
+    		}
+			if(content instanceof CompositeByteBuf) {
+				((CompositeByteBuf)content).addComponent(true,chunkBuffer);
+			} else {
+				content.writeBytes(chunkBuffer);
+				chunk.release();
+			}
+			if(resetReaderIndex) {
+				content.readerIndex(READER_INDEX_RESET_VALUE);
+			}
+    	}
+    	
+    	public long getBodyLength() {
+    		return spillFile != null ? spillFile.size() : content.readableBytes();
+    	}
+    	
+    	/**
+    	 * moves the body collected so far into a spill file and releases its memory.
+    	 */
+    	private void spill() throws IOException {
+    		SpillFile file = SpillFile.create(spillDirectory);
+    		if(resetReaderIndex) {
+    			content.readerIndex(READER_INDEX_RESET_VALUE);
+    		}
+    		try {
+    			file.write(content);
+    		} catch(IOException e) {
+    			file.delete();
+    			throw e;
+    		}
+    		spillFile = file;
+    		LOG.debug("Spilling body of [{}] bytes to [{}]",content.readableBytes(),file.getPath());
+    		replaceContent(Unpooled.EMPTY_BUFFER);
+    	}
+    	
+    	/**
+    	 * exposes a spilled body as memory mapped buffer before the message is passed on.
+    	 */
+    	public void complete(ByteBufAllocator allocator) throws IOException {
+    		if(spillFile != null) {
+    			ByteBuf mapped = spillFile.map(allocator);
+    			spillFile = null;
+    			replaceContent(mapped);
+    		}
+    	}
+    	
+    	/**
+    	 * releases what this aggregator owns. Once a preview was passed on this is only the copy that collects
+    	 * the continuation, the passed on preview belongs to the next handler.
+    	 */
+    	public void discard() {
+    		if(previewPassedOn) {
+    			deleteSpillFile();
+    			message.release();
+    		} else if(spillFile != null) {
+    			deleteSpillFile();
+    		} else {
+    			content.release();
+    		}
+    	}
+    	
+    	public void deleteSpillFile() {
+    		if(spillFile != null) {
+    			spillFile.delete();
+    			spillFile = null;
+    		}
+    	}
+    	
+    	private void replaceContent(ByteBuf newContent) {
+    		ByteBuf oldContent = content;
+    		content = newContent;
+    		if(relevantHttpMessage instanceof FullHttpRequest) {
+    			FullHttpRequest newRequest = ((FullHttpRequest)relevantHttpMessage).replace(content);
+    			relevantHttpMessage.release();
+    			relevantHttpMessage = newRequest;
+    			message.setHttpRequest(newRequest);
+    		} else if(relevantHttpMessage instanceof FullHttpResponse) {
+    			FullHttpResponse newResponse = ((FullHttpResponse)relevantHttpMessage).replace(content);
+    			relevantHttpMessage.release();
+    			relevantHttpMessage = newResponse;
+    			message.setHttpResponse(newResponse);
+    		} else {
+    			((IcapResponse)message).setContent(content);
+    			oldContent.release();
+    		}
+    	}
+    	
     	public ByteBuf getContent() {
     		if(messageWithBody) {
-    			if(relevantHttpMessage != null) {
-    				return relevantHttpMessage.content();
-    			} else if(icapResponse != null) {
-    				return icapResponse.getContent();
-    			}
+    			return content;
     		}
     		throw new IcapDecodingError("Message stated that there is a body but nothing found in message.");
     	}
     }
+    
+    /**
+     * composite that gives the memory of its chunks back to the @see {@link MemoryBudget} when it is released.
+     */
+    private static final class BudgetedCompositeByteBuf extends CompositeByteBuf {
+    	
+    	private final MemoryBudget budget;
+    	private long reserved;
+    	
+    	BudgetedCompositeByteBuf(ByteBufAllocator allocator, int maxNumComponents, MemoryBudget budget) {
+    		super(allocator,false,maxNumComponents);
+    		this.budget = budget;
+    	}
+    	
+    	boolean reserve(int bytes) {
+    		if(budget.tryReserve(bytes)) {
+    			reserved += bytes;
+    			return true;
+    		}
+    		return false;
+    	}
+    	
+    	@Override
+    	protected void deallocate() {
+    		super.deallocate();
+    		budget.release(reserved);
+    		reserved = 0;
+    	}
+    }
 }
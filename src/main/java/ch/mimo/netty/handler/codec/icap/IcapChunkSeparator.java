@@ -16,11 +16,16 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
+
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -33,27 +38,58 @@ import io.netty.util.internal.logging.InternalLoggerFactory;
  * This separator cannot handle trailing headers at HTTP request or response bodies. If you have to
  * send trailing headers then consider not using this separator but handling the message body by yourself.
  * 
+ * By default all chunks of a body are written in one go and flushed together. In streaming mode the next chunk
+ * is only produced while the channel is writable and the written chunks are flushed whenever the flush watermark
+ * is reached. The remaining chunks are written when the channel becomes writable again, so the outbound buffer
+ * of a connection stays around the write buffer high watermark regardless of the body size. Messages that are
+ * written while a body is streamed are queued and written in order afterwards.
+ *
  * @author Michael Mimo Moratti (mimo@mimo.ch)
  *
  */
 @ChannelHandler.Sharable
-public class IcapChunkSeparator extends ChannelOutboundHandlerAdapter {
+public class IcapChunkSeparator extends ChannelDuplexHandler {
 
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(IcapChunkSeparator.class);
 	
+	private static final AttributeKey<StreamedBody> STREAMED_BODY = AttributeKey.valueOf(IcapChunkSeparator.class,"streamedBody");
+
 	private int chunkSize;
+	private final boolean streaming;
+	private final int flushWatermark;
 	
 	/**
 	 * @param chunkSize defines the normal chunk size that is to be produced while separating.
 	 */
 	public IcapChunkSeparator(int chunkSize) {
 		this.chunkSize = chunkSize;
+		this.streaming = false;
+		this.flushWatermark = 0;
+	}
+
+	/**
+	 * creates a separator in streaming mode.
+	 *
+	 * @param chunkSize defines the normal chunk size that is to be produced while separating.
+	 * @param flushWatermark amount of written chunk content in bytes after which the channel is flushed.
+	 */
+	public IcapChunkSeparator(int chunkSize, int flushWatermark) {
+		if(flushWatermark < chunkSize) {
+			throw new IllegalArgumentException("flush watermark [" + flushWatermark + "] is smaller than the chunk size [" + chunkSize + "]");
+		}
+		this.chunkSize = chunkSize;
+		this.streaming = true;
+		this.flushWatermark = flushWatermark;
 	}
 
 	@Override
 	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if(streaming) {
+			writeStreaming(ctx,msg,promise);
+			return;
+		}
 		if(msg instanceof IcapMessage) {
-			LOG.debug("Separation of message [" + msg.getClass().getName() + "] ");
+			LOG.debug("Separation of message [{}] ",msg.getClass().getName());
 			IcapMessage message = (IcapMessage)msg;
 			ByteBuf content = setBodyTypeAndGetContent(message);
 			if (content != null) {
@@ -94,6 +130,124 @@ public class IcapChunkSeparator extends ChannelOutboundHandlerAdapter {
 		}
 	}
     
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		StreamedBody body = ctx.channel().attr(STREAMED_BODY).get();
+		if(body != null && ctx.channel().isWritable()) {
+			resume(ctx,body);
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		discard(ctx,new IllegalStateException("channel closed while a body was streamed"));
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		discard(ctx,new IllegalStateException("separator removed while a body was streamed"));
+	}
+
+	private void writeStreaming(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+		StreamedBody body = ctx.channel().attr(STREAMED_BODY).get();
+		if(body != null) {
+			body.queue.add(new PendingWrite(msg,promise));
+			return;
+		}
+		if(!(msg instanceof IcapMessage)) {
+			ctx.writeAndFlush(msg,promise);
+			return;
+		}
+		if(LOG.isDebugEnabled()) {
+			LOG.debug("Streaming separation of message [{}] ",msg.getClass().getName());
+		}
+		IcapMessage message = (IcapMessage)msg;
+		ByteBuf content = setBodyTypeAndGetContent(message);
+		boolean isPreview = message.isPreviewMessage();
+		Integer useOriginalBody = getUseOriginalBody(message);
+		if(content == null || !(content.isReadable() || useOriginalBody != null || isPreview)) {
+			ctx.writeAndFlush(message,promise);
+			return;
+		}
+		boolean isEarlyTerminated = isPreview && content.readableBytes() < message.getPreviewAmount();
+		body = new StreamedBody(content.retain(),isPreview,isEarlyTerminated,useOriginalBody,promise);
+		ctx.channel().attr(STREAMED_BODY).set(body);
+		ctx.write(message);
+		resume(ctx,body);
+	}
+
+	/**
+	 * writes chunks as long as the channel is writable. A flush can change the writability synchronously,
+	 * such nested notifications are ignored because the loop checks the writability after each flush itself.
+	 */
+	private void resume(ChannelHandlerContext ctx, StreamedBody body) {
+		if(body.resuming) {
+			return;
+		}
+		body.resuming = true;
+		try {
+			ByteBuf content = body.content;
+			while(content.isReadable()) {
+				if(!ctx.channel().isWritable()) {
+					flush(ctx,body);
+					if(!ctx.channel().isWritable()) {
+						return;
+					}
+				}
+				IcapChunk chunk = new DefaultIcapChunk(content.readRetainedSlice(Math.min(chunkSize,content.readableBytes())));
+				chunk.setPreviewChunk(body.isPreview);
+				chunk.setEarlyTermination(body.isEarlyTerminated);
+				body.unflushedBytes += chunk.content().readableBytes();
+				ctx.write(chunk);
+				if(body.unflushedBytes >= flushWatermark) {
+					flush(ctx,body);
+				}
+			}
+		} finally {
+			body.resuming = false;
+		}
+		finish(ctx,body);
+	}
+
+	private void flush(ChannelHandlerContext ctx, StreamedBody body) {
+		body.unflushedBytes = 0;
+		ctx.flush();
+	}
+
+	private void finish(ChannelHandlerContext ctx, StreamedBody body) {
+		ctx.channel().attr(STREAMED_BODY).set(null);
+		IcapChunkTrailer trailer = new DefaultIcapChunkTrailer();
+		trailer.setPreviewChunk(body.isPreview);
+		trailer.setEarlyTermination(body.isEarlyTerminated);
+		trailer.setUseOriginalBody(body.useOriginalBody);
+		body.content.release();
+		ctx.writeAndFlush(trailer,body.promise);
+		PendingWrite pending;
+		while(ctx.channel().attr(STREAMED_BODY).get() == null && (pending = body.queue.poll()) != null) {
+			writeStreaming(ctx,pending.msg,pending.promise);
+		}
+		StreamedBody next = ctx.channel().attr(STREAMED_BODY).get();
+		if(next != null) {
+			next.queue.addAll(body.queue);
+		}
+	}
+
+	private void discard(ChannelHandlerContext ctx, Throwable cause) {
+		StreamedBody body = ctx.channel().attr(STREAMED_BODY).getAndSet(null);
+		if(body == null) {
+			return;
+		}
+		body.content.release();
+		body.promise.tryFailure(cause);
+		PendingWrite pending;
+		while((pending = body.queue.poll()) != null) {
+			ReferenceCountUtil.release(pending.msg);
+			pending.promise.tryFailure(cause);
+		}
+	}
+
 	private ByteBuf setBodyTypeAndGetContent(IcapMessage message) {
 		if(message instanceof IcapResponse && ((IcapResponse)message).getContent() != null) {
 			IcapResponse response = (IcapResponse)message;
@@ -125,4 +279,38 @@ public class IcapChunkSeparator extends ChannelOutboundHandlerAdapter {
 
 		return ((IcapResponse) message).getUseOriginalBody();
 	}
+
+	/**
+	 * state of the body that is currently streamed on a channel.
+	 */
+	private static final class StreamedBody {
+
+		private final ByteBuf content;
+		private final boolean isPreview;
+		private final boolean isEarlyTerminated;
+		private final Integer useOriginalBody;
+		private final ChannelPromise promise;
+		private final Queue<PendingWrite> queue = new ArrayDeque<PendingWrite>();
+		private int unflushedBytes;
+		private boolean resuming;
+
+		StreamedBody(ByteBuf content, boolean isPreview, boolean isEarlyTerminated, Integer useOriginalBody, ChannelPromise promise) {
+			this.content = content;
+			this.isPreview = isPreview;
+			this.isEarlyTerminated = isEarlyTerminated;
+			this.useOriginalBody = useOriginalBody;
+			this.promise = promise;
+		}
+	}
+
+	private static final class PendingWrite {
+
+		private final Object msg;
+		private final ChannelPromise promise;
+
+		PendingWrite(Object msg, ChannelPromise promise) {
+			this.msg = msg;
+			this.promise = promise;
+		}
+	}
 }
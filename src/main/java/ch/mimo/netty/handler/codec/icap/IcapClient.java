@@ -0,0 +1,571 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPoolHandler;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Asynchronous ICAP client that keeps a pool of persistent connections per ICAP server.
+ * <p/>
+ * Every connection carries one request at a time. The request is encoded by @see {@link IcapRequestEncoder}
+ * and @see {@link IcapChunkSeparator}, the response is decoded by @see {@link IcapResponseDecoder} and aggregated by
+ * @see {@link IcapChunkAggregator}. Once the response is complete the connection is given back to the pool and reused
+ * by the next request, unless the server answered with Connection: close.
+ * <p/>
+ * A request that does not complete in time fails with a @see {@link TimeoutException}, the time it waits for a free
+ * connection counts towards its timeout. Its connection is closed
+ * because a late response would otherwise be taken as the response of the next request on the same connection.
+ * The same applies to a request whose future is cancelled.
+ * <p/>
+ * A response that ends with use-original-body=N only carries the modified prefix of the body. For requests that list 206
+ * in their Allow header the client keeps a retained reference to the body it sent until the response arrived and completes
+ * the response body with the original body from offset N on. Prefix and original body are combined in a @see {@link CompositeByteBuf} without copying. A body that was
+ * spilled to disk by @see {@link IcapChunkAggregator} stays in its mapped file.
+ * <p/>
+ * Preview requests are not supported since they require the client to answer the 100 Continue of the server.
+ * <p/>
+ * The response belongs to the caller and has to be released.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapRequest
+ * @see IcapResponse
+ */
+public class IcapClient implements Closeable {
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(IcapClient.class);
+
+	public static final int DEFAULT_PORT = 1344;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 16;
+	public static final int DEFAULT_MAX_CONTENT_LENGTH = 10 * 1024 * 1024;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+	private static final int CHUNK_SIZE = 8192;
+	private static final AttributeKey<Exchange> EXCHANGE = AttributeKey.valueOf(IcapClient.class,"exchange");
+
+	private final Bootstrap bootstrap;
+	private final ChannelPoolHandler poolHandler;
+	private final int maxConnectionsPerEndpoint;
+	private final long timeoutMillis;
+	private final ConcurrentMap<SocketAddress,EndpointPool> pools = new ConcurrentHashMap<SocketAddress,EndpointPool>();
+	private final ConcurrentMap<SocketAddress,Integer> connectionLimits = new ConcurrentHashMap<SocketAddress,Integer>();
+	private volatile boolean closed;
+
+	/**
+	 * creates a client with default limits.
+	 *
+	 * @param bootstrap bootstrap with event loop group and channel type. It is cloned for every endpoint.
+	 */
+	public IcapClient(Bootstrap bootstrap) {
+		this(bootstrap,DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT,DEFAULT_MAX_CONTENT_LENGTH,DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param bootstrap bootstrap with event loop group and channel type. It is cloned for every endpoint.
+	 * @param maxConnectionsPerEndpoint maximum amount of connections to one ICAP server. Further requests wait for a free connection.
+	 * @param maxContentLength maximum body size of a response.
+	 * @param timeoutMillis default time in milliseconds a request may take until the response is complete. It also limits
+	 * the time a request waits for a free connection.
+	 */
+	public IcapClient(final Bootstrap bootstrap, final int maxConnectionsPerEndpoint, final int maxContentLength, final long timeoutMillis) {
+		if(maxConnectionsPerEndpoint < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerEndpoint: " + maxConnectionsPerEndpoint + " (expected: >= 1)");
+		}
+		if(timeoutMillis <= 0) {
+			throw new IllegalArgumentException("timeoutMillis: " + timeoutMillis + " (expected: > 0)");
+		}
+		this.bootstrap = bootstrap;
+		this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+		this.timeoutMillis = timeoutMillis;
+		final ExchangeHandler exchangeHandler = new ExchangeHandler();
+		poolHandler = new AbstractChannelPoolHandler() {
+			@Override
+			public void channelCreated(Channel channel) {
+				ChannelPipeline pipeline = channel.pipeline();
+				pipeline.addLast("encoder",new IcapRequestEncoder());
+				pipeline.addLast("chunkSeparator",new IcapChunkSeparator(CHUNK_SIZE));
+				pipeline.addLast("decoder",new IcapResponseDecoder());
+				pipeline.addLast("chunkAggregator",new IcapChunkAggregator(maxContentLength));
+				pipeline.addLast("exchange",exchangeHandler);
+			}
+		};
+	}
+
+	/**
+	 * limits the connections to one server, typically to the Max-Connections announced in its OPTIONS response.
+	 * The limit never exceeds the maximum connections per endpoint of this client. If the limit changes, requests
+	 * from now on use a new pool while the requests in progress complete on the connections of the former pool.
+	 *
+	 * @param endpoint address of the ICAP server.
+	 * @param maxConnections maximum amount of connections to the server.
+	 */
+	public void setMaxConnections(SocketAddress endpoint, int maxConnections) {
+		if(maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections: " + maxConnections + " (expected: >= 1)");
+		}
+		int limit = Math.min(maxConnections,maxConnectionsPerEndpoint);
+		Integer previous = connectionLimits.put(endpoint,limit);
+		if(previous == null || previous != limit) {
+			EndpointPool pool = pools.remove(endpoint);
+			if(pool != null) {
+				pool.retire();
+			}
+		}
+	}
+
+	/**
+	 * @return the maximum amount of connections to the server.
+	 */
+	public int getMaxConnections(SocketAddress endpoint) {
+		Integer limit = connectionLimits.get(endpoint);
+		return limit == null ? maxConnectionsPerEndpoint : limit;
+	}
+
+	/**
+	 * sends the request to the server of its ICAP URI, e.g. icap://icap-server.net:1344/reqmod.
+	 */
+	public CompletableFuture<IcapResponse> send(IcapRequest request) {
+		InetSocketAddress endpoint;
+		try {
+			endpoint = getEndpoint(request);
+		} catch(IllegalArgumentException e) {
+			ReferenceCountUtil.release(request);
+			CompletableFuture<IcapResponse> future = new CompletableFuture<IcapResponse>();
+			future.completeExceptionally(e);
+			return future;
+		}
+		return send(endpoint,request);
+	}
+
+	public CompletableFuture<IcapResponse> send(SocketAddress endpoint, IcapRequest request) {
+		return send(endpoint,request,timeoutMillis,TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * sends the request to the given server.
+	 *
+	 * @param endpoint address of the ICAP server.
+	 * @param request the request that is released once it is written.
+	 * @param timeout time the request may take from this call until the response is complete, including the time it waits
+	 * for a free connection.
+	 * @param unit unit of the timeout.
+	 * @return future of the response.
+	 */
+	public CompletableFuture<IcapResponse> send(SocketAddress endpoint, final IcapRequest request, long timeout, TimeUnit unit) {
+		final CompletableFuture<IcapResponse> future = new CompletableFuture<IcapResponse>();
+		if(request.isPreviewMessage()) {
+			ReferenceCountUtil.release(request);
+			future.completeExceptionally(new IllegalArgumentException("preview requests are not supported"));
+			return future;
+		}
+		final EndpointPool pool = acquirePool(endpoint);
+		if(pool == null) {
+			ReferenceCountUtil.release(request);
+			future.completeExceptionally(new IllegalStateException("client is closed"));
+			return future;
+		}
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		// the pool only gives up waiting for a connection after the client wide timeout
+		final ScheduledFuture<?> acquireTimeout = bootstrap.config().group().schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.completeExceptionally(new TimeoutException("no connection available in time"));
+			}
+		},timeout,unit);
+		future.whenComplete(new BiConsumer<IcapResponse,Throwable>() {
+			@Override
+			public void accept(IcapResponse response, Throwable cause) {
+				acquireTimeout.cancel(false);
+				pool.exchangeCompleted();
+			}
+		});
+		pool.channelPool.acquire().addListener(new FutureListener<Channel>() {
+			@Override
+			public void operationComplete(Future<Channel> acquired) {
+				if(!acquired.isSuccess()) {
+					ReferenceCountUtil.release(request);
+					future.completeExceptionally(acquired.cause());
+					return;
+				}
+				Channel channel = acquired.getNow();
+				long remaining = deadline - System.nanoTime();
+				if(!acquireTimeout.cancel(false) || remaining <= 0 || future.isDone()) {
+					// the request timed out or was cancelled while it waited, the late connection goes back to the pool
+					ReferenceCountUtil.release(request);
+					pool.channelPool.release(channel);
+					future.completeExceptionally(new TimeoutException("no connection available in time"));
+					return;
+				}
+				new Exchange(pool.channelPool,channel,future).start(request,remaining);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * closes all pooled connections. Requests in progress fail.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for(SocketAddress endpoint : pools.keySet()) {
+			EndpointPool pool = pools.remove(endpoint);
+			if(pool != null) {
+				pool.channelPool.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the pool of the endpoint with the exchange already counted or null if the client is closed.
+	 */
+	private EndpointPool acquirePool(SocketAddress endpoint) {
+		for(;;) {
+			if(closed) {
+				return null;
+			}
+			EndpointPool pool = pools.get(endpoint);
+			if(pool == null) {
+				EndpointPool created = new EndpointPool(new FixedChannelPool(bootstrap.clone().remoteAddress(endpoint),poolHandler,ChannelHealthChecker.ACTIVE,
+						FixedChannelPool.AcquireTimeoutAction.FAIL,timeoutMillis,getMaxConnections(endpoint),Integer.MAX_VALUE,true,true));
+				pool = pools.putIfAbsent(endpoint,created);
+				if(pool == null) {
+					pool = created;
+				} else {
+					created.channelPool.closeAsync();
+				}
+			}
+			if(pool.exchangeStarted()) {
+				return pool;
+			}
+		}
+	}
+
+	static InetSocketAddress getEndpoint(IcapRequest request) {
+		return getEndpoint(request.getUri());
+	}
+
+	/**
+	 * @param icapUri ICAP URI like icap://icap-server.net:1344/reqmod.
+	 * @return the unresolved address of the ICAP server.
+	 */
+	static InetSocketAddress getEndpoint(String icapUri) {
+		try {
+			URI uri = new URI(icapUri);
+			if(uri.getHost() == null) {
+				throw new IllegalArgumentException("ICAP URI [" + icapUri + "] contains no host");
+			}
+			return InetSocketAddress.createUnresolved(uri.getHost(),uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+		} catch(URISyntaxException e) {
+			throw new IllegalArgumentException("invalid ICAP URI [" + icapUri + "]",e);
+		}
+	}
+
+	/**
+	 * connection pool of one server. A retired pool is closed as soon as its last exchange completed.
+	 */
+	private static final class EndpointPool {
+
+		private final FixedChannelPool channelPool;
+		private final AtomicInteger exchanges = new AtomicInteger();
+		private volatile boolean retired;
+
+		EndpointPool(FixedChannelPool channelPool) {
+			this.channelPool = channelPool;
+		}
+
+		/**
+		 * @return false if the pool was retired in the meantime.
+		 */
+		boolean exchangeStarted() {
+			exchanges.incrementAndGet();
+			if(retired) {
+				exchangeCompleted();
+				return false;
+			}
+			return true;
+		}
+
+		void exchangeCompleted() {
+			if(exchanges.decrementAndGet() == 0 && retired) {
+				channelPool.closeAsync();
+			}
+		}
+
+		void retire() {
+			retired = true;
+			if(exchanges.get() == 0) {
+				channelPool.closeAsync();
+			}
+		}
+	}
+
+	/**
+	 * one request and response on a pooled connection. All state changes happen on the event loop of the connection.
+	 */
+	private static final class Exchange {
+
+		private final FixedChannelPool pool;
+		private final Channel channel;
+		private final CompletableFuture<IcapResponse> future;
+		private ScheduledFuture<?> timeout;
+		private boolean allow206;
+		private ByteBuf originalBody;
+		private boolean done;
+
+		Exchange(FixedChannelPool pool, Channel channel, CompletableFuture<IcapResponse> future) {
+			this.pool = pool;
+			this.channel = channel;
+			this.future = future;
+		}
+
+		void start(final IcapRequest request, final long timeoutNanos) {
+			if(!channel.eventLoop().inEventLoop()) {
+				channel.eventLoop().execute(new Runnable() {
+					@Override
+					public void run() {
+						start(request,timeoutNanos);
+					}
+				});
+				return;
+			}
+			channel.attr(EXCHANGE).set(this);
+			allow206 = request.isAllow206();
+			if(allow206) {
+				originalBody = retainOriginalBody(request);
+			}
+			timeout = channel.eventLoop().schedule(new Runnable() {
+				@Override
+				public void run() {
+					fail(new TimeoutException("no response within the timeout"));
+				}
+			},timeoutNanos,TimeUnit.NANOSECONDS);
+			future.whenComplete(new BiConsumer<IcapResponse,Throwable>() {
+				@Override
+				public void accept(IcapResponse response, final Throwable cause) {
+					if(future.isCancelled()) {
+						channel.eventLoop().execute(new Runnable() {
+							@Override
+							public void run() {
+								fail(cause);
+							}
+						});
+					}
+				}
+			});
+			channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture written) {
+					if(!written.isSuccess()) {
+						fail(written.cause());
+					}
+				}
+			});
+		}
+
+		void complete(IcapResponse response) {
+			if(done) {
+				ReferenceCountUtil.release(response);
+				return;
+			}
+			RuntimeException spliceFailure = null;
+			try {
+				splice(response);
+			} catch(RuntimeException e) {
+				spliceFailure = e;
+			}
+			finish();
+			if(isKeepAlive(response)) {
+				pool.release(channel);
+			} else {
+				close();
+			}
+			if(spliceFailure != null) {
+				ReferenceCountUtil.release(response);
+				future.completeExceptionally(spliceFailure);
+			} else if(!future.complete(response)) {
+				ReferenceCountUtil.release(response);
+			}
+		}
+
+		/**
+		 * replaces the body prefix of a use-original-body response with the prefix followed by the original body from the offset on.
+		 */
+		private void splice(IcapResponse response) {
+			Integer offset = response.getUseOriginalBody();
+			if(offset == null) {
+				return;
+			}
+			if(!allow206) {
+				throw new IllegalStateException("use-original-body response to a request that does not allow 206");
+			}
+			FullHttpMessage message = response.getHttpResponse() != null ? response.getHttpResponse() : response.getHttpRequest();
+			if(message == null) {
+				throw new IllegalStateException("use-original-body response without encapsulated HTTP message");
+			}
+			int originalLength = originalBody == null ? 0 : originalBody.readableBytes();
+			if(offset < 0 || offset > originalLength) {
+				throw new IllegalStateException("use-original-body offset [" + offset + "] exceeds the original body of [" + originalLength + "] bytes");
+			}
+			if(offset == originalLength) {
+				response.setUseOriginalBody(null);
+				return;
+			}
+			ByteBuf prefix = message.content();
+			CompositeByteBuf body = channel.alloc().compositeBuffer(2);
+			body.addComponent(true,prefix.retain());
+			body.addComponent(true,originalBody.retainedSlice(originalBody.readerIndex() + offset,originalBody.readableBytes() - offset));
+			FullHttpMessage spliced = message.replace(body);
+			if(HttpUtil.isContentLengthSet(spliced)) {
+				HttpUtil.setContentLength(spliced,body.readableBytes());
+			}
+			if(spliced instanceof FullHttpResponse) {
+				response.setHttpResponse((FullHttpResponse)spliced);
+			} else {
+				response.setHttpRequest((FullHttpRequest)spliced);
+			}
+			message.release();
+			response.setUseOriginalBody(null);
+		}
+
+		/**
+		 * the connection is in an unknown state and cannot be reused.
+		 */
+		void fail(Throwable cause) {
+			if(done) {
+				return;
+			}
+			finish();
+			close();
+			future.completeExceptionally(cause);
+		}
+
+		private void finish() {
+			done = true;
+			timeout.cancel(false);
+			if(originalBody != null) {
+				originalBody.release();
+				originalBody = null;
+			}
+			if(channel.attr(EXCHANGE).get() == this) {
+				channel.attr(EXCHANGE).set(null);
+			}
+		}
+
+		private void close() {
+			channel.close().addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture closed) {
+					pool.release(channel);
+				}
+			});
+		}
+
+		/**
+		 * the body is sent in chunks by the separator, the same way it chooses the body is chosen here.
+		 */
+		private static ByteBuf retainOriginalBody(IcapRequest request) {
+			if(request.getHttpResponse() != null && request.getHttpResponse().content().isReadable()) {
+				return request.getHttpResponse().content().retainedDuplicate();
+			}
+			if(request.getHttpRequest() != null && request.getHttpRequest().content().isReadable()) {
+				return request.getHttpRequest().content().retainedDuplicate();
+			}
+			return null;
+		}
+
+		private static boolean isKeepAlive(IcapResponse response) {
+			String connection = response.getHeader(IcapHeaders.Names.CONNECTION);
+			return connection == null || !HttpHeaderValues.CLOSE.contentEqualsIgnoreCase(connection);
+		}
+	}
+
+	@ChannelHandler.Sharable
+	private static final class ExchangeHandler extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+			if(exchange == null || !(msg instanceof IcapResponse)) {
+				LOG.debug("closing connection after unexpected message [{}]",msg.getClass().getName());
+				ReferenceCountUtil.release(msg);
+				ctx.close();
+				return;
+			}
+			exchange.complete((IcapResponse)msg);
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+			if(exchange != null) {
+				exchange.fail(new ClosedChannelException());
+			}
+			ctx.fireChannelInactive();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			Exchange exchange = ctx.channel().attr(EXCHANGE).get();
+			if(exchange != null) {
+				exchange.fail(cause);
+			} else {
+				LOG.debug("closing idle connection after exception",cause);
+				ctx.close();
+			}
+		}
+	}
+}
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+
 import java.nio.charset.Charset;
 
 
@@ -67,6 +69,8 @@ public final class IcapCodecUtil {
 
     
 	public static final Charset ASCII_CHARSET = Charset.forName("ASCII");
+	
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(ASCII_CHARSET);
     
 	public static final String ENCAPSULATION_ELEMENT_REQHDR = "req-hdr";
 	public static final String ENCAPSULATION_ELEMENT_RESHDR = "res-hdr";
@@ -78,6 +82,22 @@ public final class IcapCodecUtil {
     private IcapCodecUtil() {
     }
 
+    /**
+     * writes a value as lower case hexadecimal number without leading zeros, same as @see {@link Integer#toHexString(int)}.
+     * 
+     * @param buffer the buffer to write to.
+     * @param value the value to write.
+     */
+    public static void writeHex(ByteBuf buffer, int value) {
+    	int shift = 28;
+    	while(shift > 0 && (value >>> shift) == 0) {
+    		shift -= 4;
+    	}
+    	for(; shift >= 0 ; shift -= 4) {
+    		buffer.writeByte(HEX_DIGITS[(value >>> shift) & 0x0F]);
+    	}
+    }
+
     /**
      * Valiation method for Icap header names.
      * 
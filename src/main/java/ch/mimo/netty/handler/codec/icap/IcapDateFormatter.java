@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.util.AsciiString;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Thread safe RFC 1123 date formatter for ICAP date headers (e.g. {@code Sun, 06 Nov 1994 08:49:37 GMT}).
+ *
+ * Formatting keeps the pre-encoded value of the last formatted second, a server that stamps every response
+ * with the current time therefore formats only once per second.
+ * Parsing reads the fixed RFC 1123 layout directly and falls back to a general parser only for other
+ * layouts. Neither path uses exceptions for control flow.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapHeaders
+ */
+public final class IcapDateFormatter {
+
+	private static final DateTimeFormatter RFC_1123 =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'",Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+	private static final String LEGACY_FORMAT = "E, dd MMM yyyy HH:mm:ss z";
+
+	private static final int RFC_1123_LENGTH = 29;
+
+	private static final String[] MONTHS = new String[] {
+		"Jan","Feb","Mar","Apr","May","Jun","Jul","Aug","Sep","Oct","Nov","Dec"
+	};
+
+	private static volatile CachedDate cache = new CachedDate(Long.MIN_VALUE,null);
+
+	private IcapDateFormatter() {
+	}
+
+	/**
+	 * formats a date as RFC 1123 date in GMT.
+	 *
+	 * @param date @see {@link Date} to format
+	 * @return pre-encoded date value.
+	 */
+	public static AsciiString format(Date date) {
+		return format(date.getTime());
+	}
+
+	/**
+	 * formats the time in milliseconds since the epoch as RFC 1123 date in GMT.
+	 *
+	 * @param millis milliseconds since the epoch
+	 * @return pre-encoded date value.
+	 */
+	public static AsciiString format(long millis) {
+		long second = Math.floorDiv(millis,1000L);
+		CachedDate cachedDate = cache;
+		if(cachedDate.second != second) {
+			cachedDate = new CachedDate(second,new AsciiString(RFC_1123.format(Instant.ofEpochSecond(second))));
+			cache = cachedDate;
+		}
+		return cachedDate.value;
+	}
+
+	/**
+	 * parses a date header value.
+	 *
+	 * @param value the header value
+	 * @return the @see {@link Date} or null if the value is not a valid date.
+	 */
+	public static Date parse(CharSequence value) {
+		if(value == null) {
+			return null;
+		}
+		long seconds = parseRfc1123(value);
+		if(seconds != Long.MIN_VALUE) {
+			return new Date(seconds * 1000L);
+		}
+		SimpleDateFormat format = new SimpleDateFormat(LEGACY_FORMAT,Locale.ENGLISH);
+		format.setLenient(false);
+		ParsePosition position = new ParsePosition(0);
+		Date date = format.parse(value.toString(),position);
+		if(date == null || position.getIndex() != value.length()) {
+			return null;
+		}
+		return date;
+	}
+
+	/**
+	 * @return seconds since the epoch or Long.MIN_VALUE if the value is not in the exact RFC 1123 layout.
+	 */
+	private static long parseRfc1123(CharSequence value) {
+		if(value.length() != RFC_1123_LENGTH || value.charAt(3) != ',' || value.charAt(4) != ' '
+				|| value.charAt(7) != ' ' || value.charAt(11) != ' ' || value.charAt(16) != ' '
+				|| value.charAt(19) != ':' || value.charAt(22) != ':' || value.charAt(25) != ' '
+				|| value.charAt(26) != 'G' || value.charAt(27) != 'M' || value.charAt(28) != 'T') {
+			return Long.MIN_VALUE;
+		}
+		int day = digits(value,5,2);
+		int month = month(value,8);
+		int year = digits(value,12,4);
+		int hour = digits(value,17,2);
+		int minute = digits(value,20,2);
+		int second = digits(value,23,2);
+		if(day < 1 || month < 1 || year < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return Long.MIN_VALUE;
+		}
+		if(day > Month.of(month).length(Year.isLeap(year))) {
+			return Long.MIN_VALUE;
+		}
+		return LocalDate.of(year,month,day).toEpochDay() * 86400L + hour * 3600L + minute * 60L + second;
+	}
+
+	private static int digits(CharSequence value, int offset, int length) {
+		int result = 0;
+		for(int i = offset ; i < offset + length ; i++) {
+			char c = value.charAt(i);
+			if(c < '0' || c > '9') {
+				return -1;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	private static int month(CharSequence value, int offset) {
+		for(int i = 0 ; i < MONTHS.length ; i++) {
+			String month = MONTHS[i];
+			if(month.charAt(0) == value.charAt(offset) && month.charAt(1) == value.charAt(offset + 1) && month.charAt(2) == value.charAt(offset + 2)) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static final class CachedDate {
+
+		private final long second;
+		private final AsciiString value;
+
+		CachedDate(long second, AsciiString value) {
+			this.second = second;
+			this.value = value;
+		}
+	}
+}
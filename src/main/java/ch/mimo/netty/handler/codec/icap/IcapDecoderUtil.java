@@ -17,6 +17,8 @@
 package ch.mimo.netty.handler.codec.icap;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.AsciiString;
+import io.netty.util.ByteProcessor;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -32,6 +34,17 @@ import java.util.Map;
  */
 public final class IcapDecoderUtil {
 
+	/**
+	 * stops at the first byte that is neither an ISO control character nor whitespace.
+	 */
+	private static final ByteProcessor SKIP_CONTROL_CHARACTERS = new ByteProcessor() {
+		@Override
+		public boolean process(byte value) {
+			char c = (char)(value & 0xFF);
+			return Character.isISOControl(c) || Character.isWhitespace(c);
+		}
+	};
+
 	private IcapDecoderUtil() {
 	}
 
@@ -39,81 +52,86 @@ public final class IcapDecoderUtil {
 	 * finds the true beginning of the request 
 	 * by skipping all prepended control and whitespace characters.
 	 * @param buffer
+	 * @return true if the beginning was found, false if the buffer was exhausted while skipping.
 	 */
-    public static void skipControlCharacters(ByteBuf buffer) {
-        for (;;) {
-            char c = (char) buffer.readUnsignedByte();
-            if (!Character.isISOControl(c) &&
-                !Character.isWhitespace(c)) {
-                buffer.readerIndex(buffer.readerIndex() - 1);
-                break;
-            }
+    public static boolean skipControlCharacters(ByteBuf buffer) {
+        int index = buffer.forEachByte(SKIP_CONTROL_CHARACTERS);
+        if(index < 0) {
+        	buffer.readerIndex(buffer.writerIndex());
+        	return false;
         }
+        buffer.readerIndex(index);
+        return true;
     }
 	
     /**
-     * reads a line until CR / LF / CRLF
-     * @param buffer
+     * reads a line until LF / CRLF
+     * @param buffer that has to contain a complete line.
      * @param maxLineLength
      * @return the first line found in the buffer.
      * @throws TooLongFrameException
+     * @throws IndexOutOfBoundsException if the buffer does not contain a line feed.
      */
     public static String readLine(ByteBuf buffer, int maxLineLength) throws DecodingException {
-        StringBuilder sb = new StringBuilder(64);
-        int lineLength = 0;
-        while (true) {
-            byte nextByte = buffer.readByte();
-            if (nextByte == IcapCodecUtil.CR) {
-                nextByte = buffer.readByte();
-                if (nextByte == IcapCodecUtil.LF) {
-                    return sb.toString();
-                }
-            } else if (nextByte == IcapCodecUtil.LF) {
-                return sb.toString();
-            } else {
-                if (lineLength >= maxLineLength) {
-                    throw new DecodingException(new TooLongFrameException(
-                            "An HTTP line is larger than " + maxLineLength +
-                            " bytes."));
-                }
-                lineLength ++;
-                sb.append((char) nextByte);
-            }
+        int lineFeed = findLineFeed(buffer,buffer.readerIndex());
+        if(lineFeed < 0) {
+        	checkLineLength(buffer.readableBytes(),maxLineLength);
+        	throw new IndexOutOfBoundsException("no line feed found within " + buffer.readableBytes() + " readable bytes");
         }
+        String line = decodeLine(buffer,buffer.readerIndex(),lineFeed,maxLineLength);
+        buffer.readerIndex(lineFeed + 1);
+        return line;
     }
     
     /**
-     * previews a line until CR / LF / CRLF
+     * finds the next line feed without changing the buffers readerIndex.
+     * @param buffer
+     * @param fromIndex absolute index to start searching from.
+     * @return the absolute index of the line feed or -1 if the buffer does not contain one.
+     */
+    public static int findLineFeed(ByteBuf buffer, int fromIndex) {
+        int length = buffer.writerIndex() - fromIndex;
+        if(length <= 0) {
+        	return -1;
+        }
+        return buffer.forEachByte(fromIndex,length,ByteProcessor.FIND_LF);
+    }
+
+    /**
+     * previews a line until LF / CRLF
      * this will not increase the buffers readerIndex!
      * @param buffer
      * @param maxLineLength
-     * @return the first line found in the buffer
+     * @return the first line found in the buffer or all readable bytes if no line feed is present.
      * @throws DecodingException
      */
     public static String previewLine(ByteBuf buffer, int maxLineLength) throws DecodingException {
-        StringBuilder sb = new StringBuilder(64);
-        int lineLength = 0;
-        for(int i = buffer.readerIndex() ; i < buffer.readableBytes() ; i++) {
-            byte nextByte = buffer.getByte(i);
-            if (nextByte == IcapCodecUtil.CR) {
-                nextByte = buffer.getByte(++i);
-                if (nextByte == IcapCodecUtil.LF) {
-                	break;
-                }
-            } else if (nextByte == IcapCodecUtil.LF) {
-            	break;
-            } else {
-                if (lineLength >= maxLineLength) {
-                    throw new DecodingException(new TooLongFrameException(
-                            "An HTTP line is larger than " + maxLineLength +
-                            " bytes."));
-                }
-                lineLength ++;
-                sb.append((char) nextByte);
-            }
+        int lineFeed = findLineFeed(buffer,buffer.readerIndex());
+        if(lineFeed < 0) {
+        	lineFeed = buffer.writerIndex();
         }
-        return sb.toString();
-    }    
+        return decodeLine(buffer,buffer.readerIndex(),lineFeed,maxLineLength);
+    }
+    
+    /**
+     * decodes the bytes between start and the line feed in one pass, a preceding CR is not part of the line.
+     */
+    private static String decodeLine(ByteBuf buffer, int start, int lineFeed, int maxLineLength) throws DecodingException {
+        int end = lineFeed;
+        if(end > start && buffer.getByte(end - 1) == IcapCodecUtil.CR) {
+        	end--;
+        }
+        checkLineLength(end - start,maxLineLength);
+        return buffer.toString(start,end - start,IcapCodecUtil.ASCII_CHARSET);
+    }
+    
+    private static void checkLineLength(int lineLength, int maxLineLength) throws DecodingException {
+        if (lineLength > maxLineLength) {
+            throw new DecodingException(new TooLongFrameException(
+                    "An HTTP line is larger than " + maxLineLength +
+                    " bytes."));
+        }
+    }
 	
     /**
      * Splits an initial line.
@@ -174,6 +192,106 @@ public final class IcapDecoderUtil {
 		return result;
 	}
 
+	/**
+	 * finds the end of the line that is terminated by the given line feed, a preceding CR is not part of the line.
+	 * @param buffer
+	 * @param start absolute index of the first byte of the line.
+	 * @param lineFeed absolute index of the line feed.
+	 * @param maxLineLength
+	 * @return the absolute index right after the last byte of the line.
+	 * @throws DecodingException if the line is longer than allowed.
+	 */
+	public static int findEndOfLine(ByteBuf buffer, int start, int lineFeed, int maxLineLength) throws DecodingException {
+		int end = lineFeed;
+		if(end > start && buffer.getByte(end - 1) == IcapCodecUtil.CR) {
+			end--;
+		}
+		checkLineLength(end - start,maxLineLength);
+		return end;
+	}
+
+	/**
+	 * finds the first occurrence of a non whitespace byte.
+	 * @param buffer
+	 * @param offset absolute index to search from.
+	 * @param end absolute index to stop at.
+	 * @return the absolute index of the first non-whitespace or end.
+	 */
+	public static int findNonWhitespace(ByteBuf buffer, int offset, int end) {
+		int result;
+		for (result = offset; result < end; result++) {
+			if (!isWhitespace(buffer.getByte(result))) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * finds the first occurrence of a whitespace byte.
+	 * @param buffer
+	 * @param offset absolute index to search from.
+	 * @param end absolute index to stop at.
+	 * @return the absolute index of the first whitespace or end.
+	 */
+	public static int findWhitespace(ByteBuf buffer, int offset, int end) {
+		int result;
+		for (result = offset; result < end; result++) {
+			if (isWhitespace(buffer.getByte(result))) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * finds the end of the content by ignoring trailing whitespaces.
+	 * @param buffer
+	 * @param start absolute index the content starts at.
+	 * @param end absolute index the content ends at.
+	 * @return the absolute index right after the last non-whitespace byte.
+	 */
+	public static int findEndOfContent(ByteBuf buffer, int start, int end) {
+		int result;
+		for (result = end; result > start; result--) {
+			if (!isWhitespace(buffer.getByte(result - 1))) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * compares a region of a buffer with an ASCII value ignoring the case.
+	 * @param buffer
+	 * @param index absolute index of the region.
+	 * @param length length of the region.
+	 * @param value the value to compare with.
+	 * @return true if the region contains the value.
+	 */
+	public static boolean equalsIgnoreCase(ByteBuf buffer, int index, int length, AsciiString value) {
+		if(length != value.length()) {
+			return false;
+		}
+		for(int i = 0 ; i < length ; i++) {
+			if(toUpperCase(buffer.getByte(index + i)) != toUpperCase(value.byteAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte toUpperCase(byte value) {
+		return value >= 'a' && value <= 'z' ? (byte)(value - 32) : value;
+	}
+
+	/**
+	 * same whitespace definition as @see {@link Character#isWhitespace(char)} for ASCII characters.
+	 */
+	private static boolean isWhitespace(byte value) {
+		return value == IcapCodecUtil.SPACE || (value >= 0x09 && value <= 0x0D) || (value >= 0x1C && value <= 0x1F);
+	}
+
 	/**
 	 * finds the end of a string.
 	 * @param sb string to find the end from
@@ -255,28 +373,39 @@ public final class IcapDecoderUtil {
      * @throws TooLongFrameException if the maximum size is reached.
      */
 	public static List<String[]> readHeaders(ByteBuf buffer, int maxSize) throws DecodingException {
-		List<String[]> headerList = new ArrayList<String[]>();
+		List<String> lines = new ArrayList<String>();
 		SizeDelimiter sizeDelimiter = new SizeDelimiter(maxSize);
 		String line = IcapDecoderUtil.readSingleHeaderLine(buffer,sizeDelimiter);
+		while(line.length() != 0) {
+			lines.add(line);
+			line = IcapDecoderUtil.readSingleHeaderLine(buffer,sizeDelimiter);
+		}
+		return parseHeaders(lines);
+	}
+
+	/**
+	 * parses raw header lines and joins folded values.
+	 * @param lines raw header lines without the terminating empty line.
+	 * @return a list of String arrays containing [0] key [1] value of each header.
+	 */
+	public static List<String[]> parseHeaders(List<String> lines) {
+		List<String[]> headerList = new ArrayList<String[]>();
 		String name = null;
 		String value = null;
-		if(line.length() != 0) {
-			while(line.length() != 0) {
-				if(name != null && IcapDecoderUtil.isHeaderLineSimpleValue(line)) {
-					value = value + ' ' + line.trim();
-				} else {
-					if(name != null) {
-						headerList.add(new String[]{name,value});
-					}
-					String[] header = IcapDecoderUtil.splitHeader(line);
-					name = header[0];
-					value = header[1];
+		for(String line : lines) {
+			if(name != null && IcapDecoderUtil.isHeaderLineSimpleValue(line)) {
+				value = value + ' ' + line.trim();
+			} else {
+				if(name != null) {
+					headerList.add(new String[]{name,value});
 				}
-				line = IcapDecoderUtil.readSingleHeaderLine(buffer,sizeDelimiter);
+				String[] header = IcapDecoderUtil.splitHeader(line);
+				name = header[0];
+				value = header[1];
 			}
-            if (name != null) {
-            	headerList.add(new String[]{name,value});
-            }
+		}
+		if (name != null) {
+			headerList.add(new String[]{name,value});
 		}
 		return headerList;
 	}
@@ -292,25 +421,18 @@ public final class IcapDecoderUtil {
 	 * @param sizeDelimiter the current header size, accumulated for all headers.
 	 * @return one complete header containing key and value.
 	 * @throws TooLongFrameException In case the total header length is exceeded.
+	 * @throws IndexOutOfBoundsException if the buffer does not contain a line feed.
 	 */
 	public static String readSingleHeaderLine(ByteBuf buffer, SizeDelimiter sizeDelimiter) throws DecodingException {
-		StringBuilder sb = new StringBuilder(64);
-		loop: for (;;) {
-			char nextByte = (char) buffer.readByte();
-			sizeDelimiter.increment();
-
-			if(nextByte == IcapCodecUtil.CR) {
-				nextByte = (char) buffer.readByte();
-				sizeDelimiter.increment();
-				if (nextByte == IcapCodecUtil.LF) {
-					break loop;
-				}
-			} else if(nextByte == IcapCodecUtil.LF) {
-				break loop;
-			}
-			sb.append(nextByte);
+		int lineFeed = findLineFeed(buffer,buffer.readerIndex());
+		if(lineFeed < 0) {
+			sizeDelimiter.increment(buffer.readableBytes());
+			throw new IndexOutOfBoundsException("no line feed found within " + buffer.readableBytes() + " readable bytes");
 		}
-		return sb.toString();
+		sizeDelimiter.increment(lineFeed - buffer.readerIndex() + 1);
+		String line = decodeLine(buffer,buffer.readerIndex(),lineFeed,Integer.MAX_VALUE);
+		buffer.readerIndex(lineFeed + 1);
+		return line;
 	}
 	
 	/**
@@ -16,31 +16,68 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import io.netty.util.AsciiString;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Icap Headers
  * 
- * This class provides a linked list implementation in order to store Icap headers.
+ * This class stores Icap headers in a hash indexed multimap. Names are hashed and compared
+ * case-insensitive (@see {@link AsciiString#hashCode(CharSequence)}), each bucket chains the entries
+ * of one hash while all entries are additionally linked in insertion order. Lookups by name therefore
+ * do not scan the entire list and iterating the headers does not copy them.
+ * 
+ * The parsed values of Preview, ISTag and Allow are cached and dropped as soon as a header with the same
+ * name is added, set or removed.
  * 
  * @author Michael Mimo Moratti (mimo@mimo.ch)
  *
  */
-public final class IcapHeaders {
+public final class IcapHeaders implements Iterable<Map.Entry<String, String>> {
 
-	private final List<Entry> entries = new LinkedList<Entry>();
-
-	private static final String DATE_FORMAT = "E, dd MMM yyyy HH:mm:ss z";
+	private static final int BUCKET_SIZE = 16;
+	
+	private static final int CACHED_PREVIEW = 1;
+	private static final int CACHED_ISTAG = 1 << 1;
+	private static final int CACHED_ALLOW = 1 << 2;
+	private static final int PREVIEW_HASH = AsciiString.hashCode(Names.PREVIEW);
+	private static final int ISTAG_HASH = AsciiString.hashCode(Names.ISTAG);
+	private static final int ALLOW_HASH = AsciiString.hashCode(Names.ALLOW);
+	private static final String ALLOW_204 = "204";
+	private static final String ALLOW_206 = "206";
 	
+	private final Entry[] buckets = new Entry[BUCKET_SIZE];
+	private final Entry head = new Entry();
+	private int size;
+	
+	private int cached;
+	private int previewValue;
+	private String istagValue;
+	private boolean allow204;
+	private boolean allow206;
+	
+	private final Set<Map.Entry<String, String>> entrySet = new AbstractSet<Map.Entry<String,String>>() {
+		@Override
+		public Iterator<Map.Entry<String, String>> iterator() {
+			return new EntryIterator();
+		}
+		
+		@Override
+		public int size() {
+			return size;
+		}
+	};
+
 	/**
 	 * The most common Icap Header names.
 	 * 
@@ -161,10 +198,14 @@ public final class IcapHeaders {
 	}
 	
 	public IcapHeaders() {
+		head.before = head.after = head;
 	}
 	
 	public void clearHeaders() {
-		entries.clear();
+		Arrays.fill(buckets,null);
+		head.before = head.after = head;
+		size = 0;
+		cached = 0;
 	}
 	
 	/**
@@ -176,12 +217,24 @@ public final class IcapHeaders {
 	 * @param value Icap message header value. Can also be null
 	 */
 	public void addHeader(String name, Object value) {
-		entries.add(new Entry(name, value));
+		Entry entry = new Entry(name,value);
+		int index = index(entry.hash);
+		entry.next = buckets[index];
+		buckets[index] = entry;
+		entry.addBefore(head);
+		size++;
+		invalidate(entry.hash,name);
 	}
 	
+	/**
+	 * Adds a date header formatted as RFC 1123 date in GMT.
+	 * 
+	 * @param name Icap message header name
+	 * @param value the date
+	 * @see IcapDateFormatter
+	 */
 	public void addDateHeader(String name, Date value) {
-		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT,Locale.ENGLISH);
-		addHeader(name,format.format(value));
+		addHeader(name,IcapDateFormatter.format(value));
 	}
 	
 	/**
@@ -221,12 +274,18 @@ public final class IcapHeaders {
 	 * @return String value or null
 	 */
 	public String getHeader(String name) {
-		for(Entry entry : entries) {
-			if(identicalKeys(entry.getKey(), name)) {
-				return entry.getValue();
+		if(name == null) {
+			return null;
+		}
+		int hash = AsciiString.hashCode(name);
+		String value = null;
+		// bucket chains hold the latest entry first, the last match is the first one added.
+		for(Entry entry = buckets[index(hash)] ; entry != null ; entry = entry.next) {
+			if(entry.matches(hash,name)) {
+				value = entry.getValue();
 			}
 		}
-		return null;
+		return value;
 	}
 	
 	/**
@@ -239,31 +298,34 @@ public final class IcapHeaders {
 	 * @throws IllegalArgumentException if the date string value cannot be parsed.
 	 */
 	public Date getDateHeader(String name) {
-		Date date = null;
-		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT,Locale.ENGLISH);
 		String value = getHeader(name);
-		if(value != null) {
-			try {
-				date = format.parse(value);
-			} catch (ParseException e) {
-				throw new IllegalArgumentException("The header value [" + value + "] is not a valid date",e);
-			}
+		if(value == null) {
+			return null;
+		}
+		Date date = IcapDateFormatter.parse(value);
+		if(date == null) {
+			throw new IllegalArgumentException("The header value [" + value + "] is not a valid date");
 		}
 		return date;
 	}
 	
 	/**
-	 * retrieves all values for one header name.
-	 * If no header exists with that given name an empty set is returned.
+	 * retrieves all values for one header name in the order they were added.
+	 * Duplicate values are all returned.
+	 * If no header exists with that given name an empty list is returned.
 	 * 
 	 * @param name Icap message header name
-	 * @return Set of values from all headers with the same name, or empty set.
+	 * @return List of values from all headers with the same name, or empty list.
 	 */
-	public Set<String> getHeaders(String name) {
-		Set<String> values = new LinkedHashSet<String>();
-		for(Entry entry : entries) {
-			if(identicalKeys(entry.getKey(),name)) {
-				values.add(entry.getValue());
+	public List<String> getHeaders(String name) {
+		LinkedList<String> values = new LinkedList<String>();
+		if(name == null) {
+			return values;
+		}
+		int hash = AsciiString.hashCode(name);
+		for(Entry entry = buckets[index(hash)] ; entry != null ; entry = entry.next) {
+			if(entry.matches(hash,name)) {
+				values.addFirst(entry.getValue());
 			}
 		}
 		return values;
@@ -271,15 +333,36 @@ public final class IcapHeaders {
 	
 	/**
 	 * retrieval method for all headers that are currently in this list.
+	 * The returned set is a read only view in insertion order, no copy is made.
 	 * 
 	 * @return Set of Map Entry instances.
 	 */
 	public Set<Map.Entry<String, String>> getHeaders() {
-		Set<Map.Entry<String, String>> headers = new LinkedHashSet<Map.Entry<String,String>>();
-		for(Entry entry : entries) {
-			headers.add(entry);
-		}
-		return headers;
+		return entrySet;
+	}
+	
+	/**
+	 * iterates all headers in the order they were added without copying them.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new EntryIterator();
+	}
+	
+	/**
+	 * iterates all headers in the order they were added with the values as they are stored, e.g. the cached
+	 * @see {@link AsciiString} of a date header, so that they can be encoded without creating a String.
+	 * The returned entry is reused by the iterator and only valid until the next call of next().
+	 */
+	public Iterator<Map.Entry<String, CharSequence>> iteratorCharSequence() {
+		return new CharSequenceEntryIterator();
+	}
+	
+	/**
+	 * @return amount of headers including duplicate names.
+	 */
+	public int size() {
+		return size;
 	}
 	
 	/**
@@ -298,11 +381,24 @@ public final class IcapHeaders {
 	 * @param name Icap message header name
 	 */
 	public void removeHeader(String name) {
-		Iterator<Entry> i = entries.iterator();
-		while(i.hasNext()) {
-			Entry entry = i.next();
-			if (identicalKeys(entry.getKey(), name)) {
-				i.remove();
+		if(name == null) {
+			return;
+		}
+		int hash = AsciiString.hashCode(name);
+		invalidate(hash,name);
+		int index = index(hash);
+		Entry previous = null;
+		for(Entry entry = buckets[index] ; entry != null ; entry = entry.next) {
+			if(entry.matches(hash,name)) {
+				if(previous == null) {
+					buckets[index] = entry.next;
+				} else {
+					previous.next = entry.next;
+				}
+				entry.remove();
+				size--;
+			} else {
+				previous = entry;
 			}
 		}
 	}
@@ -315,8 +411,8 @@ public final class IcapHeaders {
 	 */
 	public Set<String> getHeaderNames() {
 		Set<String> names = new LinkedHashSet<String>();
-		for(Entry entry : entries) {
-			names.add(entry.getKey());
+		for(Entry entry = head.after ; entry != head ; entry = entry.after) {
+			names.add(entry.key);
 		}
 		return names;
 	}
@@ -329,37 +425,207 @@ public final class IcapHeaders {
 	 * @return int value of preview header.
 	 */
 	public int getPreviewHeaderValue() {
-		String value = getHeader(Names.PREVIEW);
-		int result = -1;
-		try {
-			if(value != null) {
-				result = Integer.parseInt(value);
+		if((cached & CACHED_PREVIEW) == 0) {
+			String value = getHeader(Names.PREVIEW);
+			int result = -1;
+			try {
+				if(value != null) {
+					result = Integer.parseInt(value);
+				}
+			} catch(NumberFormatException nfe) {
+				throw new IcapDecodingError("Unable to understand the preview amount value [" + value + "]");
 			}
-		} catch(NumberFormatException nfe) {
-			throw new IcapDecodingError("Unable to understand the preview amount value [" + value + "]");
+			previewValue = result;
+			cached |= CACHED_PREVIEW;
 		}
-		return result;
+		return previewValue;
 	}
 	
-	private boolean identicalKeys(String key1, String key2) {
-		if(key1 != null & key2 != null) {
-			return key1.equalsIgnoreCase(key2);
+	/**
+	 * Convenience method to retrieve the raw value of the ISTag header.
+	 * 
+	 * @return ISTag value or null if the header does not exist.
+	 */
+	public String getIstagHeaderValue() {
+		if((cached & CACHED_ISTAG) == 0) {
+			istagValue = getHeader(Names.ISTAG);
+			cached |= CACHED_ISTAG;
+		}
+		return istagValue;
+	}
+	
+	/**
+	 * Convenience method to find out whether an Allow header lists 204.
+	 * 
+	 * @return true if any Allow header contains the 204 token.
+	 */
+	public boolean isAllow204() {
+		parseAllow();
+		return allow204;
+	}
+	
+	/**
+	 * Convenience method to find out whether an Allow header lists 206, which allows partial
+	 * content responses that end with use-original-body.
+	 * 
+	 * @return true if any Allow header contains the 206 token.
+	 */
+	public boolean isAllow206() {
+		parseAllow();
+		return allow206;
+	}
+	
+	private void parseAllow() {
+		if((cached & CACHED_ALLOW) == 0) {
+			allow204 = false;
+			allow206 = false;
+			for(String value : getHeaders(Names.ALLOW)) {
+				if(value != null) {
+					allow204 |= containsToken(value,ALLOW_204);
+					allow206 |= containsToken(value,ALLOW_206);
+				}
+			}
+			cached |= CACHED_ALLOW;
+		}
+	}
+	
+	private static boolean containsToken(String value, String token) {
+		for(String element : value.split(",")) {
+			if(element.trim().equals(token)) {
+				return true;
+			}
 		}
 		return false;
 	}
+	
+	/**
+	 * drops a cached value whenever a header of the same name is modified.
+	 */
+	private void invalidate(int hash, String name) {
+		if(cached == 0) {
+			return;
+		}
+		if(hash == PREVIEW_HASH && AsciiString.contentEqualsIgnoreCase(name,Names.PREVIEW)) {
+			cached &= ~CACHED_PREVIEW;
+		} else if(hash == ISTAG_HASH && AsciiString.contentEqualsIgnoreCase(name,Names.ISTAG)) {
+			cached &= ~CACHED_ISTAG;
+		} else if(hash == ALLOW_HASH && AsciiString.contentEqualsIgnoreCase(name,Names.ALLOW)) {
+			cached &= ~CACHED_ALLOW;
+		}
+	}
+	
+	private static int index(int hash) {
+		return hash & (BUCKET_SIZE - 1);
+	}
+
+	private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		
+		private Entry current = head;
+		
+		@Override
+		public boolean hasNext() {
+			return current.after != head;
+		}
+		
+		@Override
+		public Map.Entry<String, String> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			current = current.after;
+			return current;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("read only view");
+		}
+	}
+
+	private final class CharSequenceEntryIterator implements Iterator<Map.Entry<String, CharSequence>>, Map.Entry<String, CharSequence> {
+		
+		private Entry current = head;
+		
+		@Override
+		public boolean hasNext() {
+			return current.after != head;
+		}
+		
+		@Override
+		public Map.Entry<String, CharSequence> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			current = current.after;
+			return this;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("read only view");
+		}
+		
+		@Override
+		public String getKey() {
+			return current.key;
+		}
+		
+		@Override
+		public CharSequence getValue() {
+			return current.value;
+		}
+		
+		@Override
+		public CharSequence setValue(CharSequence value) {
+			throw new UnsupportedOperationException("read only view");
+		}
+	}
 
 	private static final class Entry implements Map.Entry<String, String> {
 		
-		private String key;
-		private String value;
+		private final int hash;
+		private final String key;
+		private CharSequence value;
+		private Entry next;
+		private Entry before;
+		private Entry after;
 
+		/**
+		 * creates the head of the insertion ordered list.
+		 */
+		Entry() {
+			hash = -1;
+			key = null;
+		}
+		
 		Entry(String key, Object value) {
 			IcapCodecUtil.validateHeaderName(key);
 			this.key = key;
-			if(value != null) {
+			this.hash = AsciiString.hashCode(key);
+			if(value instanceof AsciiString) {
+				this.value = (AsciiString)value;
+			} else if(value != null) {
 				this.value = value.toString();
-				IcapCodecUtil.validateHeaderValue(this.value);
 			}
+			if(this.value != null) {
+				IcapCodecUtil.validateHeaderValue(this.value.toString());
+			}
+		}
+		
+		boolean matches(int hash, String name) {
+			return this.hash == hash && AsciiString.contentEqualsIgnoreCase(key,name);
+		}
+		
+		void addBefore(Entry entry) {
+			after = entry;
+			before = entry.before;
+			before.after = this;
+			after.before = this;
+		}
+		
+		void remove() {
+			before.after = after;
+			after.before = before;
 		}
 		
 		public String getKey() {
@@ -367,7 +633,7 @@ public final class IcapHeaders {
 		}
 		
 		public String getValue() {
-			return value;
+			return value != null ? value.toString() : null;
 		}
 		
 		@Override
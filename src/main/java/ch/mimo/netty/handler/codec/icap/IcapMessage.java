@@ -16,6 +16,7 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,12 +46,13 @@ public interface IcapMessage extends ReferenceCounted {
     String getHeader(String name);
 
     /**
-     * Returns the header values with the specified header name.
+     * Returns the header values with the specified header name in the order they were added.
+     * Duplicate values are not dropped.
      *
      * @return the {@link List} of header values.  An empty list if there is no
      *         such header.
      */
-    Set<String> getHeaders(String name);
+    List<String> getHeaders(String name);
 
     /**
      * Returns the all header names and values that this message contains.
@@ -60,6 +62,14 @@ public interface IcapMessage extends ReferenceCounted {
      */
     Set<Map.Entry<String, String>> getHeaders();
 
+    /**
+     * iterates the headers with their values as stored, without converting them to String.
+     * The returned entry is only valid until the next call of next().
+     *
+     * @return iterator over the header name-value pairs in insertion order.
+     */
+    Iterator<Map.Entry<String, CharSequence>> iteratorCharSequence();
+
     /**
      * @param name header name
      * @return {@code true} if and only if there is a header with the specified
@@ -108,6 +118,21 @@ public interface IcapMessage extends ReferenceCounted {
      * @return the @see {@link Integer} preview header value.
      */
     int getPreviewAmount();
+    
+    /**
+     * @return the ISTag header value or null if there is no such header.
+     */
+    String getIsTag();
+    
+    /**
+     * @return true if an Allow header lists 204.
+     */
+    boolean isAllow204();
+    
+    /**
+     * @return true if an Allow header lists 206.
+     */
+    boolean isAllow206();
 
     /**
      * Removes all headers from this message.
@@ -178,6 +203,19 @@ public interface IcapMessage extends ReferenceCounted {
 	 */
 	Encapsulated getEncapsulatedHeader();
 
+	/**
+	 * @return the @see {@link IcapBodyStream} that delivers the body of this message or null if the body is not streamed.
+	 * 
+	 * @see IcapBodyStreamHandler
+	 */
+	IcapBodyStream getBodyStream();
+	
+	/**
+	 * @param bodyStream @see {@link IcapBodyStream} that delivers the body of this message.
+	 * @return self in order to chain the method calls
+	 */
+	IcapMessage setBodyStream(IcapBodyStream bodyStream);
+
 	/**
 	 * Sets the indication that this icap message contains a body of some kind.
 	 * @param body @see {@link IcapMessageElementEnum}
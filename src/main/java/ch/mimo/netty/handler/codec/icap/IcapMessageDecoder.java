@@ -18,27 +18,39 @@ package ch.mimo.netty.handler.codec.icap;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.util.List;
 
 /**
- * Main ICAP message decoder implementation. this decoder is bases on a @see {@link ReplayingDecoder}
+ * Main ICAP message decoder implementation. this decoder is based on a @see {@link ByteToMessageDecoder}
  * 
  * Due to the complexity of an ICAP message the decoder was implement with individual states that reside
  * in their own classes.
  * 
+ * The decoder does not replay. A state that finds the cumulated buffer incomplete returns
+ * @see StateReturnValue#createIncompleteResult() and keeps its parse progress (scan position, header lines
+ * read so far) so that it continues where it stopped once more data arrives.
+ * 
  * For a full list of states that are used within this decoder: @see {@link StateEnum}  
  * 
+ * Chunk content is by default copied out of the cumulation buffer. When the decoder is created with
+ * {@code retainedSlices} enabled each @see {@link IcapChunk} carries a retained slice of the cumulation buffer
+ * instead (@see {@link ByteBuf#readRetainedSlice(int)}). Such a slice shares memory with the bytes received from
+ * the channel and holds one reference on them: the handler that finally consumes the chunk has to release it
+ * exactly once (@see {@link IcapChunkAggregator} does so). Keeping slices around keeps the underlying
+ * receive buffer alive, so chunks should be released as soon as their content was processed.
+ * 
  * @author Michael Mimo Moratti (mimo@mimo.ch)
  *
  * @see IcapRequestDecoder
  * @see IcapResponseDecoder
  */
 
-public abstract class IcapMessageDecoder extends ReplayingDecoder<StateEnum> {
+public abstract class IcapMessageDecoder extends ByteToMessageDecoder {
 
 	private final InternalLogger LOG;
 	
@@ -46,12 +58,21 @@ public abstract class IcapMessageDecoder extends ReplayingDecoder<StateEnum> {
     protected final int maxIcapHeaderSize;
     protected final int maxHttpHeaderSize;
     protected final int maxChunkSize;
+    protected final boolean retainedSlices;
     
 	protected IcapMessage message;
 	
 	protected int currentChunkSize;
 	
+	protected final HeaderBlockReader headerBlockReader = new HeaderBlockReader();
+	
+	private StateEnum currentState = StateEnum.SKIP_CONTROL_CHARS;
 	
+	private DecoderListener listener;
+	
+	private boolean strictEncapsulatedOffsets;
+	
+	private boolean messageEmitted;
 	
     /**
      * Creates a new instance with the default
@@ -70,7 +91,18 @@ public abstract class IcapMessageDecoder extends ReplayingDecoder<StateEnum> {
      * @param maxChunkSize
      */
     protected IcapMessageDecoder(int maxInitialLineLength, int maxIcapHeaderSize, int maxHttpHeaderSize, int maxChunkSize) {
-		super(StateEnum.SKIP_CONTROL_CHARS);
+        this(maxInitialLineLength,maxIcapHeaderSize,maxHttpHeaderSize,maxChunkSize,false);
+    }
+    
+    /**
+     * Creates a new instance with the specified parameters.
+     * @param maxInitialLineLength
+     * @param maxIcapHeaderSize
+     * @param maxHttpHeaderSize
+     * @param maxChunkSize the maximum size of a single emitted chunk fragment.
+     * @param retainedSlices emit chunk content as retained slices of the cumulation buffer instead of copies.
+     */
+    protected IcapMessageDecoder(int maxInitialLineLength, int maxIcapHeaderSize, int maxHttpHeaderSize, int maxChunkSize, boolean retainedSlices) {
         LOG = InternalLoggerFactory.getInstance(getClass());
         if (maxInitialLineLength <= 0) {
             throw new IllegalArgumentException("maxInitialLineLength must be a positive integer: " + maxInitialLineLength);
@@ -88,30 +120,59 @@ public abstract class IcapMessageDecoder extends ReplayingDecoder<StateEnum> {
         this.maxIcapHeaderSize = maxIcapHeaderSize;
         this.maxHttpHeaderSize = maxHttpHeaderSize;
         this.maxChunkSize = maxChunkSize;
+        this.retainedSlices = retainedSlices;
     }
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-    	StateEnum stateEnumValue = state();
-		if(stateEnumValue != null) {
+		boolean debug = LOG.isDebugEnabled();
+		DecoderListener listener = this.listener;
+		for(;;) {
 			try {
-				State state = stateEnumValue.getState();
-				LOG.debug("Executing state [" + state + ']');
+				StateEnum stateEnum = currentState;
+				State state = stateEnum.getState();
+				if(debug) {
+					LOG.debug("Executing state [{}]",state);
+				}
+				int readerIndex = in.readerIndex();
+				long start = listener != null ? System.nanoTime() : 0L;
 				state.onEntry(in,this);
 				StateReturnValue returnValue = state.execute(in,this);
-				LOG.debug("Return value from state [" + state + "] = [" + returnValue + "]");
+				if(returnValue.isIncomplete()) {
+					if(listener != null) {
+						listener.stateExecuted(stateEnum,in.readerIndex() - readerIndex,System.nanoTime() - start,true);
+					}
+					return;
+				}
+				if(debug) {
+					LOG.debug("Return value from state [{}] = [{}]",state,returnValue);
+				}
 				StateEnum nextState = state.onExit(in,this,returnValue.getDecisionInformation());
-				LOG.debug("Next State [" + nextState + "]");
+				if(listener != null) {
+					listener.stateExecuted(stateEnum,in.readerIndex() - readerIndex,System.nanoTime() - start,false);
+					listener.stateTransition(stateEnum,nextState);
+				}
+				if(debug) {
+					LOG.debug("Next State [{}]",nextState);
+				}
 				if(nextState != null) {
-					checkpoint(nextState);
+					currentState = nextState;
 				} else {
 					reset();
 				}
 				if(returnValue.isRelevant()) {
+					messageEmitted |= returnValue.getValue() == message;
 					out.add(returnValue.getValue());
 				}
 			} catch(DecodingException e) {
+				if(message != null && !messageEmitted) {
+					message.release();
+				}
+				if(e.getCause() instanceof CorruptedFrameException) {
+					// wrong Encapsulated offsets, the framing of the stream is lost and the rest of the received data cannot be decoded
+					in.skipBytes(in.readableBytes());
+				}
 				reset();
 				throw e;
 			}
@@ -119,14 +180,88 @@ public abstract class IcapMessageDecoder extends ReplayingDecoder<StateEnum> {
 	}
 	
 	/**
-	 * set the decoders message to NULL and the next checkpoint to @see {@link StateEnum#SKIP_CONTROL_CHARS}
+	 * installs an instrumentation hook. Without a listener the decoder does not measure anything.
+	 * The listener has to be set before the decoder receives data.
+	 * 
+	 * @param listener @see {@link DecoderListener} or null to remove the current one.
+	 */
+	public void setDecoderListener(DecoderListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Encapsulated offsets that do not match the length of the http headers are reported to the
+	 * @see {@link DecoderListener} and otherwise ignored unless strict validation is enabled, in which case
+	 * the message is rejected.
+	 * 
+	 * @param strictEncapsulatedOffsets true to reject messages with wrong Encapsulated offsets.
+	 */
+	public void setStrictEncapsulatedOffsets(boolean strictEncapsulatedOffsets) {
+		this.strictEncapsulatedOffsets = strictEncapsulatedOffsets;
+	}
+	
+	/**
+	 * validates the length of a http header section against the Encapsulated header.
+	 * 
+	 * @throws DecodingException if the offsets do not match and strict validation is enabled.
+	 */
+	protected void validateSectionLength(Encapsulated encapsulated, IcapMessageElementEnum entry, int length) throws DecodingException {
+		try {
+			encapsulated.validateSectionLength(entry,length);
+		} catch(DecodingException e) {
+			if(strictEncapsulatedOffsets) {
+				throw e;
+			}
+			// a peer that always sends wrong offsets would flood the log, the listener counts them instead
+			LOG.debug("Ignoring wrong Encapsulated offset: {}",e.getCause().getMessage());
+			DecoderListener listener = this.listener;
+			if(listener != null) {
+				listener.encapsulatedOffsetIgnored(entry);
+			}
+		}
+	}
+	
+	/**
+	 * reads chunk content either as retained slice or as copy depending on how this decoder was created.
+	 * 
+	 * @param buffer the cumulation buffer.
+	 * @param length amount of bytes to read.
+	 * @return @see {@link ByteBuf} that has to be released by the consumer of the chunk.
+	 */
+	protected ByteBuf readChunkContent(ByteBuf buffer, int length) {
+		if(retainedSlices) {
+			return buffer.readRetainedSlice(length);
+		}
+		return buffer.readBytes(length);
+	}
+	
+	/**
+	 * @return the state the decoder is currently in.
+	 */
+	protected StateEnum state() {
+		return currentState;
+	}
+	
+	/**
+	 * set the decoders message to NULL and the next state to @see {@link StateEnum#SKIP_CONTROL_CHARS}
 	 */
     private void reset() {
         this.message = null;
-        checkpoint(StateEnum.SKIP_CONTROL_CHARS);
+        messageEmitted = false;
+        headerBlockReader.reset();
+        currentState = StateEnum.SKIP_CONTROL_CHARS;
     }
 	
 	public abstract boolean isDecodingResponse();
 	
-	protected abstract IcapMessage createMessage(String[] initialLine);
+	/**
+	 * creates the message from the initial line without materialising the line as String.
+	 * 
+	 * @param buffer the buffer containing the initial line.
+	 * @param start absolute index of the first byte of the line.
+	 * @param end absolute index right after the last byte of the line, excluding CRLF.
+	 * @return the message.
+	 * @throws IllegalArgumentException if the initial line is not valid.
+	 */
+	protected abstract IcapMessage createMessage(ByteBuf buffer, int start, int end);
 }
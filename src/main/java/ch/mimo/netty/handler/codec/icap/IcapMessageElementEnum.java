@@ -23,23 +23,43 @@ package ch.mimo.netty.handler.codec.icap;
  *
  */
 public enum IcapMessageElementEnum {
-	REQHDR(IcapCodecUtil.ENCAPSULATION_ELEMENT_REQHDR),
-	RESHDR(IcapCodecUtil.ENCAPSULATION_ELEMENT_RESHDR),
-	REQBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_REQBODY),
-	RESBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_RESBODY),
-	OPTBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_OPTBODY),
-	NULLBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_NULLBODY);
+	REQHDR(IcapCodecUtil.ENCAPSULATION_ELEMENT_REQHDR,false),
+	RESHDR(IcapCodecUtil.ENCAPSULATION_ELEMENT_RESHDR,false),
+	REQBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_REQBODY,true),
+	RESBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_RESBODY,true),
+	OPTBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_OPTBODY,true),
+	NULLBODY(IcapCodecUtil.ENCAPSULATION_ELEMENT_NULLBODY,true);
 	
-	private String value;
+	private static final IcapMessageElementEnum[] VALUES = values();
 	
-	IcapMessageElementEnum(String value) {
+	private final String value;
+	private final byte[] encodedName;
+	private final boolean body;
+	
+	IcapMessageElementEnum(String value, boolean body) {
 		this.value = value;
+		this.encodedName = value.getBytes(IcapCodecUtil.ASCII_CHARSET);
+		this.body = body;
 	}
 	
 	public String getValue() {
 		return value;
 	}
 	
+	/**
+	 * @return the ASCII encoded name. The returned array is shared and must not be modified.
+	 */
+	byte[] getEncodedName() {
+		return encodedName;
+	}
+	
+	/**
+	 * @return true if the element is a body element including null-body.
+	 */
+	public boolean isBody() {
+		return body;
+	}
+	
 	public static IcapMessageElementEnum fromString(String value) {
 		if(value != null) {
 			for(IcapMessageElementEnum entryName : IcapMessageElementEnum.values()) {
@@ -50,4 +70,33 @@ public enum IcapMessageElementEnum {
 		}
 		return null;
 	}
+	
+	/**
+	 * resolves an element name from a region of a character sequence without copying it.
+	 * 
+	 * @param value the sequence containing the name.
+	 * @param start start index, inclusive.
+	 * @param end end index, exclusive.
+	 * @return the element or null if the region does not contain a known element name.
+	 */
+	static IcapMessageElementEnum fromCharSequence(CharSequence value, int start, int end) {
+		int length = end - start;
+		for(IcapMessageElementEnum entryName : VALUES) {
+			String name = entryName.value;
+			if(name.length() == length && regionMatchesIgnoreCase(value,start,name)) {
+				return entryName;
+			}
+		}
+		return null;
+	}
+	
+	private static boolean regionMatchesIgnoreCase(CharSequence value, int start, String name) {
+		for(int i = 0 ; i < name.length() ; i++) {
+			char c = value.charAt(start + i);
+			if(c != name.charAt(i) && Character.toLowerCase(c) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
@@ -16,155 +16,350 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
-import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 /**
- * Main ICAP message encoder. This encoder is based on @see {@link OneToOneEncoder}
+ * Main ICAP message encoder. This encoder is based on @see {@link MessageToMessageEncoder}
+ * 
+ * Messages are encoded into a single buffer. Chunks below the copy threshold are copied into a single buffer
+ * as well. The content of a larger @see {@link IcapChunk} is not copied: such a chunk is emitted as
+ * @see {@link CompositeByteBuf} made of the size line, a retained slice of the chunk content and a shared CRLF,
+ * so the transport can write it with a gathering write.
+ * 
+ * The output buffer of messages and last chunks is allocated with the size computed from the header lengths,
+ * the number of buffers that had to grow nevertheless is exposed by @see {@link #getBufferExpansions()}.
  * 
  * @author Michael Mimo Moratti (mimo@mimo.ch)
  *
  * @see IcapRequestEncoder
  * @see IcapResponseEncoder
  */
-public abstract class IcapMessageEncoder extends MessageToByteEncoder<Object> {
+public abstract class IcapMessageEncoder extends MessageToMessageEncoder<Object> {
+	
+	/**
+	 * eight hex digits and CRLF.
+	 */
+	private static final int CHUNK_SIZE_LINE_LENGTH = 10;
+	
+	private static final ByteBuf CRLF_BUFFER = Unpooled.unreleasableBuffer(Unpooled.directBuffer(2).writeBytes(IcapCodecUtil.CRLF).asReadOnly());
+	
+	/**
+	 * "Encapsulated: " and three entries with up to ten digits each.
+	 */
+	private static final int ENCAPSULATED_HEADER_LENGTH = 80;
+	
+	/**
+	 * "0", use-original-body extension, CRLF CRLF.
+	 */
+	private static final int LAST_CHUNK_LENGTH = 32;
+	
+	/**
+	 * chunk content length from which on a chunk is not copied. Below it copying is cheaper than the composite.
+	 */
+	public static final int DEFAULT_CHUNK_COPY_THRESHOLD = 16 * 1024;
+	
+	private static final byte[] USE_ORIGINAL_BODY_EXTENSION = (";" + IcapCodecUtil.EXTENSION_USE_ORIGINAL_BODY + "=").getBytes(IcapCodecUtil.ASCII_CHARSET);
 	
 	private final InternalLogger LOG;
 	
+	private EncoderListener listener;
+	
+	private int chunkCopyThreshold = DEFAULT_CHUNK_COPY_THRESHOLD;
+	
+	private final LongAdder bufferExpansions = new LongAdder();
+	
 	public IcapMessageEncoder() {
 		LOG = InternalLoggerFactory.getInstance(getClass());
 	}
 
-    @Override
-    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
-        LOG.debug("Encoding [" + msg.getClass().getName() + "]");
-		if(msg instanceof IcapMessage) {
-			IcapMessage message = (IcapMessage)msg;
-			encodeInitialLine(out, message);
-			encodeHeaders(out, message);
+	/**
+	 * installs an instrumentation hook. Without a listener the encoder does not measure anything.
+	 * The listener has to be set before the encoder is added to a pipeline.
+	 * 
+	 * @param listener @see {@link EncoderListener} or null to remove the current one.
+	 */
+	public void setEncoderListener(EncoderListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param chunkCopyThreshold chunk content length from which on the content is not copied but emitted
+	 * as part of a @see {@link CompositeByteBuf}. 0 never copies chunk content.
+	 */
+	public void setChunkCopyThreshold(int chunkCopyThreshold) {
+		if(chunkCopyThreshold < 0) {
+			throw new IllegalArgumentException("chunkCopyThreshold: " + chunkCopyThreshold + " (expected: >= 0)");
+		}
+		this.chunkCopyThreshold = chunkCopyThreshold;
+	}
 
-			Encapsulated encapsulated = new Encapsulated();
-            int index = 0;
+	/**
+	 * @return number of output buffers that had to grow beyond their estimated initial capacity.
+	 */
+	public long getBufferExpansions() {
+		return bufferExpansions.sum();
+	}
 
-			ByteBuf httpMessagesBuffer = null;
-			try {
-				httpMessagesBuffer = ctx.alloc().buffer();
-				encodeHttpRequestHeader(httpMessagesBuffer, message.getHttpRequest());
-				if(httpMessagesBuffer.readableBytes() > 0) {
-					encapsulated.addEntry(IcapMessageElementEnum.REQHDR, index);
-					index += httpMessagesBuffer.readableBytes();
-				}
+	@Override
+	public boolean acceptOutboundMessage(Object msg) throws Exception {
+		return msg instanceof IcapMessage || msg instanceof IcapChunk;
+	}
 
-				encodeHttpResponseHeader(httpMessagesBuffer, message.getHttpResponse());
-				if(httpMessagesBuffer.readableBytes() > index) {
-					encapsulated.addEntry(IcapMessageElementEnum.RESHDR, index);
-					index += httpMessagesBuffer.readableBytes() - index;
-				}
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+    	if(LOG.isDebugEnabled()) {
+    		LOG.debug("Encoding [{}]",msg.getClass().getName());
+    	}
+    	EncoderListener listener = this.listener;
+    	long start = listener != null ? System.nanoTime() : 0L;
+    	ByteBuf encoded;
+    	if(msg instanceof IcapMessage) {
+    		encoded = encodeMessage(ctx,(IcapMessage)msg);
+    	} else {
+    		IcapChunk chunk = (IcapChunk)msg;
+    		if(chunk.isLast()) {
+    			encoded = encodeLastChunk(ctx,chunk);
+    		} else {
+    			encoded = encodeChunk(ctx,chunk);
+    		}
+    	}
+    	out.add(encoded);
+    	if(listener != null) {
+    		listener.encoded(msg,encoded.readableBytes(),System.nanoTime() - start);
+    	}
+    }
 
-				if(message.getBodyType() != null) {
-					encapsulated.addEntry(message.getBodyType(), index);
-				} else {
-					encapsulated.addEntry(IcapMessageElementEnum.NULLBODY, index);
-				}
+    /**
+     * the length of the http sections is computed first so that the Encapsulated header can be written
+     * before the sections and the sections go straight into the output buffer. The same lengths size the
+     * output buffer.
+     */
+    private ByteBuf encodeMessage(ChannelHandlerContext ctx, IcapMessage message) throws Exception {
+		HttpRequest httpRequest = message.getHttpRequest();
+		HttpResponse httpResponse = message.getHttpResponse();
+		int httpRequestHeaderLength = getHttpRequestHeaderLength(httpRequest);
+		int httpResponseHeaderLength = getHttpResponseHeaderLength(httpResponse);
+		int estimate = getInitialLineLength(message) + getHeadersLength(message) + ENCAPSULATED_HEADER_LENGTH
+				+ httpRequestHeaderLength + httpResponseHeaderLength;
+		ByteBuf out = ctx.alloc().buffer(estimate);
+		int capacity = out.capacity();
+		try {
+			encodeMessage(out,message,httpRequest,httpRequestHeaderLength,httpResponse,httpResponseHeaderLength);
+		} catch(Exception e) {
+			out.release();
+			throw e;
+		}
+		countExpansion(out,capacity);
+		return out;
+    }
+    
+    private void encodeMessage(ByteBuf out, IcapMessage message, HttpRequest httpRequest, int httpRequestHeaderLength,
+    		HttpResponse httpResponse, int httpResponseHeaderLength) throws Exception {
+		encodeInitialLine(out, message);
+		encodeHeaders(out, message);
 
-				encapsulated.encode(out);
-				out.writeBytes(httpMessagesBuffer);
-			} finally {
-				if (httpMessagesBuffer != null) {
-				    httpMessagesBuffer.release();
-                }
-			}
-		} else if(msg instanceof IcapChunk) {
-			IcapChunk chunk = (IcapChunk)msg;
-			if(chunk.isLast()) {
-				if(chunk.isEarlyTerminated()) {
-					out.writeBytes(IcapCodecUtil.NATIVE_IEOF_SEQUENCE);
-					out.writeBytes(IcapCodecUtil.CRLF);
-					out.writeBytes(IcapCodecUtil.CRLF);
-				} else if(msg instanceof IcapChunkTrailer) {
-					out.writeByte((byte) '0');
-					if (((IcapChunkTrailer)msg).getUseOriginalBody() != null) {
-						out.writeBytes(";use-original-body=".getBytes(IcapCodecUtil.ASCII_CHARSET));
-						out.writeBytes(Integer.toString(((IcapChunkTrailer)msg).getUseOriginalBody()).getBytes(IcapCodecUtil.ASCII_CHARSET));
-					}
-					out.writeBytes(IcapCodecUtil.CRLF);
-					encodeTrailingHeaders(out,(IcapChunkTrailer)msg);
-					out.writeBytes(IcapCodecUtil.CRLF);
-				} else {
-					out.writeByte((byte) '0');
-					out.writeBytes(IcapCodecUtil.CRLF);
-					out.writeBytes(IcapCodecUtil.CRLF);
-				}
-			} else {
-				ByteBuf chunkBuffer = chunk.content();
-				int contentLength = chunkBuffer.readableBytes();
-				out.writeBytes(Integer.toHexString(contentLength).getBytes(IcapCodecUtil.ASCII_CHARSET));
-				out.writeBytes(IcapCodecUtil.CRLF);
-				out.writeBytes(chunkBuffer);
-				out.writeBytes(IcapCodecUtil.CRLF);
+		Encapsulated encapsulated = new Encapsulated();
+		int index = 0;
+		if(httpRequestHeaderLength > 0) {
+			encapsulated.addEntry(IcapMessageElementEnum.REQHDR, index);
+			index += httpRequestHeaderLength;
+		}
+		if(httpResponseHeaderLength > 0) {
+			encapsulated.addEntry(IcapMessageElementEnum.RESHDR, index);
+			index += httpResponseHeaderLength;
+		}
+		if(message.getBodyType() != null) {
+			encapsulated.addEntry(message.getBodyType(), index);
+		} else {
+			encapsulated.addEntry(IcapMessageElementEnum.NULLBODY, index);
+		}
+		encapsulated.encode(out);
+
+		int start = out.writerIndex();
+		encodeHttpRequestHeader(out, httpRequest);
+		encodeHttpResponseHeader(out, httpResponse);
+		if(out.writerIndex() - start != index) {
+			throw new IllegalStateException("encoded http headers are [" + (out.writerIndex() - start) + "] bytes long but [" + index + "] were announced");
+		}
+    }
+
+    private ByteBuf encodeLastChunk(ChannelHandlerContext ctx, IcapChunk chunk) {
+    	int estimate = LAST_CHUNK_LENGTH;
+    	if(chunk instanceof IcapChunkTrailer) {
+    		estimate += getHttpHeadersLength(((IcapChunkTrailer)chunk).trailingHeaders());
+    	}
+		ByteBuf out = ctx.alloc().buffer(estimate);
+		int capacity = out.capacity();
+		encodeLastChunk(chunk,out);
+		countExpansion(out,capacity);
+		return out;
+    }
+    
+    private void encodeLastChunk(IcapChunk chunk, ByteBuf out) {
+		if(chunk.isEarlyTerminated()) {
+			out.writeBytes(IcapCodecUtil.NATIVE_IEOF_SEQUENCE);
+			out.writeBytes(IcapCodecUtil.CRLF);
+			out.writeBytes(IcapCodecUtil.CRLF);
+		} else if(chunk instanceof IcapChunkTrailer) {
+			IcapChunkTrailer trailer = (IcapChunkTrailer)chunk;
+			out.writeByte((byte) '0');
+			if (trailer.getUseOriginalBody() != null) {
+				out.writeBytes(USE_ORIGINAL_BODY_EXTENSION);
+				out.writeBytes(Integer.toString(trailer.getUseOriginalBody()).getBytes(IcapCodecUtil.ASCII_CHARSET));
 			}
+			out.writeBytes(IcapCodecUtil.CRLF);
+			encodeTrailingHeaders(out,trailer);
+			out.writeBytes(IcapCodecUtil.CRLF);
+		} else {
+			out.writeByte((byte) '0');
+			out.writeBytes(IcapCodecUtil.CRLF);
+			out.writeBytes(IcapCodecUtil.CRLF);
 		}
-	}
+    }
+
+    /**
+     * the chunk content is not copied. It is passed on as retained slice between a small size line buffer
+     * and the shared CRLF constant.
+     */
+    private ByteBuf encodeChunk(ChannelHandlerContext ctx, IcapChunk chunk) {
+		ByteBuf content = chunk.content();
+		int length = content.readableBytes();
+		if(length < chunkCopyThreshold) {
+			ByteBuf out = ctx.alloc().buffer(CHUNK_SIZE_LINE_LENGTH + length + IcapCodecUtil.CRLF.length);
+			IcapCodecUtil.writeHex(out,length);
+			out.writeBytes(IcapCodecUtil.CRLF);
+			out.writeBytes(content,content.readerIndex(),length);
+			out.writeBytes(IcapCodecUtil.CRLF);
+			return out;
+		}
+		ByteBuf sizeLine = ctx.alloc().buffer(CHUNK_SIZE_LINE_LENGTH);
+		IcapCodecUtil.writeHex(sizeLine,length);
+		sizeLine.writeBytes(IcapCodecUtil.CRLF);
+		CompositeByteBuf composite = ctx.alloc().compositeBuffer(3);
+		composite.addComponents(true,sizeLine,content.retainedSlice(),CRLF_BUFFER.duplicate());
+		return composite;
+    }
+
+    private void countExpansion(ByteBuf out, int capacity) {
+    	if(out.capacity() > capacity) {
+    		bufferExpansions.increment();
+    	}
+    }
 
 	protected abstract int encodeInitialLine(ByteBuf buffer, IcapMessage message)  throws Exception;
 	
-	private void encodeHttpRequestHeader(ByteBuf buffer, HttpRequest httpRequest) throws UnsupportedEncodingException {
+	/**
+	 * @param message the message to encode.
+	 * @return the length of the initial line including CRLF, used to size the output buffer.
+	 */
+	protected abstract int getInitialLineLength(IcapMessage message);
+	
+	private void encodeHttpRequestHeader(ByteBuf buffer, HttpRequest httpRequest) {
 		if(httpRequest != null) {
-			buffer.writeBytes(httpRequest.getMethod().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+			ByteBufUtil.writeAscii(buffer,httpRequest.method().asciiName());
 			buffer.writeByte(IcapCodecUtil.SPACE);
-			buffer.writeBytes(httpRequest.getUri().getBytes(IcapCodecUtil.ASCII_CHARSET));
+			ByteBufUtil.writeAscii(buffer,httpRequest.uri());
 			buffer.writeByte(IcapCodecUtil.SPACE);
-			buffer.writeBytes(httpRequest.getProtocolVersion().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+			ByteBufUtil.writeAscii(buffer,httpRequest.protocolVersion().text());
 			buffer.writeBytes(IcapCodecUtil.CRLF);
-            for (Map.Entry<String, String> h: httpRequest.headers()) {
-                encodeHeader(buffer, h.getKey(), h.getValue());
-            }
+			encodeHttpHeaders(buffer,httpRequest.headers());
 			buffer.writeBytes(IcapCodecUtil.CRLF);
 		}
 	}
 	
-	private void encodeHttpResponseHeader(ByteBuf buffer, HttpResponse httpResponse) throws UnsupportedEncodingException {
+	private int getHttpRequestHeaderLength(HttpRequest httpRequest) {
+		if(httpRequest == null) {
+			return 0;
+		}
+		return httpRequest.method().asciiName().length() + 1 + httpRequest.uri().length() + 1
+				+ httpRequest.protocolVersion().text().length() + 2 + getHttpHeadersLength(httpRequest.headers()) + 2;
+	}
+	
+	private void encodeHttpResponseHeader(ByteBuf buffer, HttpResponse httpResponse) {
 		if(httpResponse != null) {
-			buffer.writeBytes(httpResponse.getProtocolVersion().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+			ByteBufUtil.writeAscii(buffer,httpResponse.protocolVersion().text());
+			buffer.writeByte(IcapCodecUtil.SPACE);
+			ByteBufUtil.writeAscii(buffer,httpResponse.status().codeAsText());
 			buffer.writeByte(IcapCodecUtil.SPACE);
-			buffer.writeBytes(httpResponse.getStatus().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+			ByteBufUtil.writeAscii(buffer,httpResponse.status().reasonPhrase());
 			buffer.writeBytes(IcapCodecUtil.CRLF);
-            for (Map.Entry<String, String> h: httpResponse.headers()) {
-                encodeHeader(buffer, h.getKey(), h.getValue());
-            }
+			encodeHttpHeaders(buffer,httpResponse.headers());
 			buffer.writeBytes(IcapCodecUtil.CRLF);
 		}
 	}
 	
+	private int getHttpResponseHeaderLength(HttpResponse httpResponse) {
+		if(httpResponse == null) {
+			return 0;
+		}
+		return httpResponse.protocolVersion().text().length() + 1 + httpResponse.status().codeAsText().length() + 1
+				+ httpResponse.status().reasonPhrase().length() + 2 + getHttpHeadersLength(httpResponse.headers()) + 2;
+	}
+	
+	private void encodeHttpHeaders(ByteBuf buffer, HttpHeaders headers) {
+		Iterator<Map.Entry<CharSequence, CharSequence>> iterator = headers.iteratorCharSequence();
+		while(iterator.hasNext()) {
+			Map.Entry<CharSequence, CharSequence> header = iterator.next();
+			encodeHeader(buffer,header.getKey(),header.getValue());
+		}
+	}
+	
+	private int getHttpHeadersLength(HttpHeaders headers) {
+		int length = 0;
+		Iterator<Map.Entry<CharSequence, CharSequence>> iterator = headers.iteratorCharSequence();
+		while(iterator.hasNext()) {
+			Map.Entry<CharSequence, CharSequence> header = iterator.next();
+			length += header.getKey().length() + 2 + header.getValue().length() + 2;
+		}
+		return length;
+	}
+	
     private int encodeTrailingHeaders(ByteBuf buffer, IcapChunkTrailer chunkTrailer) {
     	int index = buffer.readableBytes();
-        for (Map.Entry<String, String> h: chunkTrailer.trailingHeaders()) {
-            encodeHeader(buffer, h.getKey(), h.getValue());
-        }
+    	encodeHttpHeaders(buffer, chunkTrailer.trailingHeaders());
         return buffer.readableBytes() - index;
     }
 	
     private int encodeHeaders(ByteBuf buffer, IcapMessage message) {
     	int index = buffer.readableBytes();
-        for (Map.Entry<String, String> h: message.getHeaders()) {
+    	Iterator<Map.Entry<String, CharSequence>> iterator = message.iteratorCharSequence();
+    	while(iterator.hasNext()) {
+    		Map.Entry<String, CharSequence> h = iterator.next();
             encodeHeader(buffer, h.getKey(), h.getValue());
         }
         return buffer.readableBytes() - index;
     }
     
-    private void encodeHeader(ByteBuf buf, String header, String value) {
-		buf.writeBytes(header.getBytes(IcapCodecUtil.ASCII_CHARSET));
+    private int getHeadersLength(IcapMessage message) {
+    	int length = 0;
+    	Iterator<Map.Entry<String, CharSequence>> iterator = message.iteratorCharSequence();
+    	while(iterator.hasNext()) {
+    		Map.Entry<String, CharSequence> h = iterator.next();
+        	length += h.getKey().length() + 2 + h.getValue().length() + 2;
+        }
+        return length;
+    }
+    
+    private void encodeHeader(ByteBuf buf, CharSequence header, CharSequence value) {
+		ByteBufUtil.writeAscii(buf,header);
 		buf.writeByte(IcapCodecUtil.COLON);
 		buf.writeByte(IcapCodecUtil.SPACE);
-		buf.writeBytes(value.getBytes(IcapCodecUtil.ASCII_CHARSET));
+		ByteBufUtil.writeAscii(buf,value);
 		buf.writeBytes(IcapCodecUtil.CRLF);
     }
 }
@@ -15,6 +15,9 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AsciiString;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -50,10 +53,12 @@ public final class IcapMethod {
 	    METHOD_MAP.put(OPTIONS.toString(),OPTIONS);
 	}
 	
-	private String name;
+	private final String name;
+	private final AsciiString asciiName;
 	
 	IcapMethod(String name) {
 		this.name = name;
+		this.asciiName = new AsciiString(name);
 	}
 	
     /**
@@ -79,6 +84,25 @@ public final class IcapMethod {
         }
     }
     
+    /**
+     * Returns the {@link IcapMethod} that is stored in the given buffer region.
+     * The standard methods are recognised without creating a String.
+     * 
+     * @param buffer the buffer containing the method name.
+     * @param index absolute index of the name.
+     * @param length length of the name.
+     */
+    public static IcapMethod valueOf(ByteBuf buffer, int index, int length) {
+    	if(IcapDecoderUtil.equalsIgnoreCase(buffer,index,length,REQMOD.asciiName)) {
+    		return REQMOD;
+    	} else if(IcapDecoderUtil.equalsIgnoreCase(buffer,index,length,RESPMOD.asciiName)) {
+    		return RESPMOD;
+    	} else if(IcapDecoderUtil.equalsIgnoreCase(buffer,index,length,OPTIONS.asciiName)) {
+    		return OPTIONS;
+    	}
+    	return valueOf(buffer.toString(index,length,IcapCodecUtil.ASCII_CHARSET));
+    }
+    
     @Override
     public String toString() {
     	return name;
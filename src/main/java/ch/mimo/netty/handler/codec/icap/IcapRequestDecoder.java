@@ -15,6 +15,10 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.AsciiString;
+
 /**
  * Decodes an ICAP Request into @see {@link IcapRequest} instance.
  * 
@@ -39,9 +43,31 @@ public class IcapRequestDecoder extends IcapMessageDecoder {
 		super(maxInitialLineLength, maxIcapHeaderSize, maxHttpHeaderSize, maxChunkSize);
 	}
 
+	/**
+	 * @see IcapMessageDecoder IcapMessageDecoder constructor for more details.
+	 * 
+	 * @param maxInitialLineLength
+	 * @param maxIcapHeaderSize
+	 * @param maxHttpHeaderSize
+	 * @param maxChunkSize
+	 * @param retainedSlices emit chunk content as retained slices instead of copies.
+	 */
+	public IcapRequestDecoder(int maxInitialLineLength, int maxIcapHeaderSize, int maxHttpHeaderSize, int maxChunkSize, boolean retainedSlices) {
+		super(maxInitialLineLength, maxIcapHeaderSize, maxHttpHeaderSize, maxChunkSize, retainedSlices);
+	}
+
 	@Override
-	protected IcapRequest createMessage(String[] initialLine) {
-		return new DefaultIcapRequest(IcapVersion.valueOf(initialLine[2]),IcapMethod.valueOf(initialLine[0]),initialLine[1],"");
+	protected IcapRequest createMessage(ByteBuf buffer, int start, int end) {
+		int methodStart = IcapDecoderUtil.findNonWhitespace(buffer,start,end);
+		int methodEnd = IcapDecoderUtil.findWhitespace(buffer,methodStart,end);
+		int uriStart = IcapDecoderUtil.findNonWhitespace(buffer,methodEnd,end);
+		int uriEnd = IcapDecoderUtil.findWhitespace(buffer,uriStart,end);
+		int versionStart = IcapDecoderUtil.findNonWhitespace(buffer,uriEnd,end);
+		int versionEnd = IcapDecoderUtil.findEndOfContent(buffer,versionStart,end);
+		IcapVersion version = IcapVersion.valueOf(buffer,versionStart,versionEnd - versionStart);
+		IcapMethod method = IcapMethod.valueOf(buffer,methodStart,methodEnd - methodStart);
+		AsciiString uri = new AsciiString(ByteBufUtil.getBytes(buffer,uriStart,uriEnd - uriStart),false);
+		return new DefaultIcapRequest(version,method,uri);
 	}
 
 	@Override
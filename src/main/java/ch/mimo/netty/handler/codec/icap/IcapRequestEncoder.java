@@ -17,6 +17,7 @@
 package ch.mimo.netty.handler.codec.icap;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandler;
 
 /**
@@ -36,13 +37,20 @@ public class IcapRequestEncoder extends IcapMessageEncoder {
 	protected int encodeInitialLine(ByteBuf buffer, IcapMessage message) throws Exception {
 		IcapRequest request = (IcapRequest) message;
 		int index = buffer.readableBytes();
-        buffer.writeBytes(request.getMethod().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+        ByteBufUtil.writeAscii(buffer,request.getMethod().toString());
         buffer.writeByte(IcapCodecUtil.SPACE);
-        buffer.writeBytes(request.getUri().getBytes(IcapCodecUtil.ASCII_CHARSET));
+        ByteBufUtil.writeAscii(buffer,request.getUri());
         buffer.writeByte(IcapCodecUtil.SPACE);
-        buffer.writeBytes(request.getProtocolVersion().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+        ByteBufUtil.writeAscii(buffer,request.getProtocolVersion().toString());
         buffer.writeBytes(IcapCodecUtil.CRLF);
         return buffer.readableBytes() - index;
 	}
 
+	@Override
+	protected int getInitialLineLength(IcapMessage message) {
+		IcapRequest request = (IcapRequest) message;
+		return request.getMethod().toString().length() + 1 + request.getUri().length() + 1
+				+ request.getProtocolVersion().toString().length() + 2;
+	}
+
 }
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * ICAP Response decoder which creates an @see {@link IcapResponse} instance.
  * 
@@ -38,10 +40,28 @@ public class IcapResponseDecoder extends IcapMessageDecoder {
 	public IcapResponseDecoder (int maxInitialLineLength, int maxIcapHeaderSize, int maxHttpHeaderSize, int maxChunkSize) {
 		super(maxInitialLineLength, maxIcapHeaderSize, maxHttpHeaderSize, maxChunkSize);
 	}
+
+	/**
+	 * @see IcapMessageDecoder IcapMessageDecoder constructor for more details.
+	 * 
+	 * @param maxInitialLineLength
+	 * @param maxIcapHeaderSize
+	 * @param maxHttpHeaderSize
+	 * @param maxChunkSize
+	 * @param retainedSlices emit chunk content as retained slices instead of copies.
+	 */
+	public IcapResponseDecoder(int maxInitialLineLength, int maxIcapHeaderSize, int maxHttpHeaderSize, int maxChunkSize, boolean retainedSlices) {
+		super(maxInitialLineLength, maxIcapHeaderSize, maxHttpHeaderSize, maxChunkSize, retainedSlices);
+	}
 	
 	@Override
-	protected IcapMessage createMessage(String[] initialLine) {
-		return new DefaultIcapResponse(IcapVersion.valueOf(initialLine[0]),IcapResponseStatus.fromCode(initialLine[1]));
+	protected IcapMessage createMessage(ByteBuf buffer, int start, int end) {
+		int versionStart = IcapDecoderUtil.findNonWhitespace(buffer,start,end);
+		int versionEnd = IcapDecoderUtil.findWhitespace(buffer,versionStart,end);
+		int codeStart = IcapDecoderUtil.findNonWhitespace(buffer,versionEnd,end);
+		int codeEnd = IcapDecoderUtil.findWhitespace(buffer,codeStart,end);
+		IcapVersion version = IcapVersion.valueOf(buffer,versionStart,versionEnd - versionStart);
+		return new DefaultIcapResponse(version,IcapResponseStatus.fromCode(buffer,codeStart,codeEnd - codeStart));
 	}
 
 	@Override
@@ -31,10 +31,20 @@ public class IcapResponseEncoder extends IcapMessageEncoder {
 	protected int encodeInitialLine(ByteBuf buffer, IcapMessage message) {
 		IcapResponse request = (IcapResponse)message;
 		int index = buffer.readableBytes();
-		buffer.writeBytes(request.getProtocolVersion().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
-        buffer.writeByte(IcapCodecUtil.SPACE);
-        request.getStatus().toResponseInitialLineValue(buffer);
-        buffer.writeBytes(IcapCodecUtil.CRLF);
+		if(request.getProtocolVersion() == IcapVersion.ICAP_1_0) {
+			request.getStatus().toIcap10ResponseInitialLine(buffer);
+		} else {
+			buffer.writeBytes(request.getProtocolVersion().toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+	        buffer.writeByte(IcapCodecUtil.SPACE);
+	        request.getStatus().toResponseInitialLineValue(buffer);
+	        buffer.writeBytes(IcapCodecUtil.CRLF);
+		}
         return buffer.readableBytes() - index;
 	}
+
+	@Override
+	protected int getInitialLineLength(IcapMessage message) {
+		IcapResponse response = (IcapResponse)message;
+		return response.getProtocolVersion().toString().length() + 1 + response.getStatus().getResponseInitialLineValueLength() + 2;
+	}
 }
@@ -36,7 +36,7 @@ public enum IcapResponseStatus {
 	RESET_CONTENT(205,"Reset Content"),
 	PARTIAL_CONTENT(206,"Partial Content"),
 	MULTI_STATUS(207,"Multi-Status"),
-	MULTIPLE_CHIOCES(207,"Multiple-Choices"),
+	MULTIPLE_CHIOCES(300,"Multiple Choices"),
 	MOVED_PERMANENTLY(301,"Moved Permanently"),
 	FOUND(302,"Found"),
 	SEE_OTHER(303,"See Other"),
@@ -77,30 +77,103 @@ public enum IcapResponseStatus {
 	NOT_EXTENDED(510,"Not Extended");
 
 	
-	private String status;
-	private int code;
+	private static final int MAX_CODE = 599;
+	private static final IcapResponseStatus[] BY_CODE = new IcapResponseStatus[MAX_CODE + 1];
+	
+	static {
+		for(IcapResponseStatus status : values()) {
+			if(BY_CODE[status.code] != null) {
+				throw new ExceptionInInitializerError("Duplicate Icap response code [" + status.code + "]");
+			}
+			BY_CODE[status.code] = status;
+		}
+	}
+	
+	private final String status;
+	private final int code;
+	private final byte[] encodedValue;
+	private final byte[] encodedInitialLine;
 	
 	IcapResponseStatus(int code, String status) {
 		this.code = code;
 		this.status = status;
+		String value = code + " " + status;
+		this.encodedValue = value.getBytes(IcapCodecUtil.ASCII_CHARSET);
+		this.encodedInitialLine = (IcapVersion.ICAP_1_0.getText() + " " + value + "\r\n").getBytes(IcapCodecUtil.ASCII_CHARSET);
 	}
 	
 	public int getCode() {
 		return code;
 	}
 	
+	/**
+	 * @return length of the "code reason" value of the initial line.
+	 */
+	public int getResponseInitialLineValueLength() {
+		return encodedValue.length;
+	}
+	
 	public void toResponseInitialLineValue(ByteBuf buffer) {
-		buffer.writeBytes(Integer.toString(code).getBytes(IcapCodecUtil.ASCII_CHARSET));
-		buffer.writeByte(IcapCodecUtil.SPACE);
-		buffer.writeBytes(status.getBytes(IcapCodecUtil.ASCII_CHARSET));
+		buffer.writeBytes(encodedValue);
+	}
+	
+	/**
+	 * writes the complete ICAP/1.0 initial line including the terminating CRLF.
+	 * 
+	 * @param buffer the buffer to write to.
+	 */
+	public void toIcap10ResponseInitialLine(ByteBuf buffer) {
+		buffer.writeBytes(encodedInitialLine);
+	}
+	
+	/**
+	 * resolves a status from its numeric code.
+	 * 
+	 * @param code the numeric status code.
+	 * @return the @see {@link IcapResponseStatus}.
+	 * @throws IllegalArgumentException if the code is unknown.
+	 */
+	public static IcapResponseStatus fromCode(int code) {
+		IcapResponseStatus status = code >= 0 && code <= MAX_CODE ? BY_CODE[code] : null;
+		if(status == null) {
+			throw new IllegalArgumentException("Unknown Icap response code [" + code + "]");
+		}
+		return status;
+	}
+	
+	/**
+	 * resolves a status from its code that is stored in the given buffer region.
+	 * 
+	 * @param buffer the buffer containing the code.
+	 * @param index absolute index of the code.
+	 * @param length length of the code.
+	 * @return the @see {@link IcapResponseStatus}.
+	 * @throws IllegalArgumentException if the code is unknown.
+	 */
+	public static IcapResponseStatus fromCode(ByteBuf buffer, int index, int length) {
+		int value = 0;
+		for(int i = 0 ; i < length && value >= 0 ; i++) {
+			byte b = buffer.getByte(index + i);
+			value = b >= '0' && b <= '9' ? value * 10 + (b - '0') : -1;
+		}
+		if(length != 3 || value < 0) {
+			throw new IllegalArgumentException("Unknown Icap response code [" + buffer.toString(index,length,IcapCodecUtil.ASCII_CHARSET) + "]");
+		}
+		return fromCode(value);
 	}
 	
 	public static IcapResponseStatus fromCode(String code) {
-		for(IcapResponseStatus status : IcapResponseStatus.values()) {
-			if(Integer.toString(status.getCode()).equalsIgnoreCase(code)) {
-				return status;
+		if(code == null || code.length() != 3) {
+			throw new IllegalArgumentException("Unknown Icap response code [" + code + "]");
+		}
+		int value = 0;
+		for(int i = 0 ; i < 3 ; i++) {
+			char c = code.charAt(i);
+			if(c < '0' || c > '9') {
+				throw new IllegalArgumentException("Unknown Icap response code [" + code + "]");
 			}
+			value = value * 10 + (c - '0');
 		}
-		throw new IllegalArgumentException("Unknown Icap response code [" + code + "]");
+		return fromCode(value);
 	}
 }
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.concurrent.Executor;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+
+/**
+ * Transports an ICAP client or server can run on, together with bootstraps that are configured for them.
+ *
+ * EPOLL uses the Linux native transport with edge triggered I/O. Its server bootstraps set SO_REUSEPORT so that
+ * several event loops or processes can bind the same port. EPOLL_DOMAIN_SOCKET connects a proxy with an ICAP
+ * server on the same host through an AF_UNIX socket and bypasses the loopback TCP stack entirely, addresses are
+ * @see {@link DomainSocketAddress} instances.
+ *
+ * The native transports need netty-transport-native-epoll with the classifier of the platform on the class path.
+ * 
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapClient
+ */
+public enum IcapTransport {
+
+	NIO {
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, Executor executor) {
+			return new NioEventLoopGroup(threads,executor);
+		}
+
+		@Override
+		public Class<? extends ServerChannel> getServerChannelClass() {
+			return NioServerSocketChannel.class;
+		}
+
+		@Override
+		public Class<? extends Channel> getChannelClass() {
+			return NioSocketChannel.class;
+		}
+	},
+
+	EPOLL {
+		@Override
+		public boolean isAvailable() {
+			return isEpollAvailable();
+		}
+
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, Executor executor) {
+			return new EpollEventLoopGroup(threads,executor);
+		}
+
+		@Override
+		public Class<? extends ServerChannel> getServerChannelClass() {
+			return EpollServerSocketChannel.class;
+		}
+
+		@Override
+		public Class<? extends Channel> getChannelClass() {
+			return EpollSocketChannel.class;
+		}
+
+		@Override
+		public ServerBootstrap serverBootstrap(EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+			return super.serverBootstrap(bossGroup,workerGroup).option(EpollChannelOption.SO_REUSEPORT,true);
+		}
+	},
+
+	EPOLL_DOMAIN_SOCKET {
+		@Override
+		public boolean isAvailable() {
+			return isEpollAvailable();
+		}
+
+		@Override
+		public boolean isDomainSocket() {
+			return true;
+		}
+
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, Executor executor) {
+			return new EpollEventLoopGroup(threads,executor);
+		}
+
+		@Override
+		public Class<? extends ServerChannel> getServerChannelClass() {
+			return EpollServerDomainSocketChannel.class;
+		}
+
+		@Override
+		public Class<? extends Channel> getChannelClass() {
+			return EpollDomainSocketChannel.class;
+		}
+	};
+
+	/**
+	 * @return EPOLL if the native transport can be loaded on this platform, NIO otherwise.
+	 */
+	public static IcapTransport best() {
+		return EPOLL.isAvailable() ? EPOLL : NIO;
+	}
+
+	/**
+	 * @return true if this transport can be used on this platform.
+	 */
+	public abstract boolean isAvailable();
+
+	/**
+	 * @return true if this transport connects through unix domain sockets instead of TCP.
+	 */
+	public boolean isDomainSocket() {
+		return false;
+	}
+
+	/**
+	 * @param threads amount of event loops, 0 for the netty default.
+	 * @return event loop group the channels of this transport can be registered with.
+	 */
+	public EventLoopGroup newEventLoopGroup(int threads) {
+		return newEventLoopGroup(threads,null);
+	}
+
+	/**
+	 * @param threads amount of event loops, 0 for the netty default.
+	 * @param executor executor that runs the event loops or null for the netty default.
+	 * @return event loop group the channels of this transport can be registered with.
+	 */
+	public abstract EventLoopGroup newEventLoopGroup(int threads, Executor executor);
+
+	public abstract Class<? extends ServerChannel> getServerChannelClass();
+
+	public abstract Class<? extends Channel> getChannelClass();
+
+	/**
+	 * creates a server bootstrap. TCP transports disable Nagle on accepted connections because ICAP messages are
+	 * written with explicit flushes.
+	 */
+	public ServerBootstrap serverBootstrap(EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+		ServerBootstrap bootstrap = new ServerBootstrap().group(bossGroup,workerGroup).channel(getServerChannelClass());
+		if(!isDomainSocket()) {
+			bootstrap.option(ChannelOption.SO_REUSEADDR,true).childOption(ChannelOption.TCP_NODELAY,true);
+		}
+		return bootstrap;
+	}
+
+	/**
+	 * creates a client bootstrap, for instance for @see {@link IcapClient}.
+	 */
+	public Bootstrap bootstrap(EventLoopGroup group) {
+		Bootstrap bootstrap = new Bootstrap().group(group).channel(getChannelClass());
+		if(!isDomainSocket()) {
+			bootstrap.option(ChannelOption.TCP_NODELAY,true);
+		}
+		return bootstrap;
+	}
+
+	private static boolean isEpollAvailable() {
+		try {
+			return Epoll.isAvailable();
+		} catch(NoClassDefFoundError e) {
+			return false;
+		}
+	}
+}
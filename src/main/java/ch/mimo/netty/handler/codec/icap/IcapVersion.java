@@ -19,7 +19,9 @@ package ch.mimo.netty.handler.codec.icap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
 
 /**
  * Provides translation and handling for Icap version string.
@@ -37,6 +39,8 @@ public final class IcapVersion {
 	private String text;
 	
 	public static final IcapVersion ICAP_1_0 = new IcapVersion("ICAP", 1, 0);
+	
+	private static final AsciiString ICAP_1_0_TEXT = new AsciiString(ICAP_1_0.getText());
 
 	/**
 	 * @param protocolName ICAP or different
@@ -117,6 +121,21 @@ public final class IcapVersion {
         return new IcapVersion(text);
     }
     
+    /**
+     * Returns the {@link IcapVersion} that is stored in the given buffer region.
+     * {@code "ICAP/1.0"} is recognised without creating a String.
+     * 
+     * @param buffer the buffer containing the version.
+     * @param index absolute index of the version.
+     * @param length length of the version.
+     */
+    public static IcapVersion valueOf(ByteBuf buffer, int index, int length) {
+    	if(IcapDecoderUtil.equalsIgnoreCase(buffer,index,length,ICAP_1_0_TEXT)) {
+    		return ICAP_1_0;
+    	}
+    	return valueOf(buffer.toString(index,length,IcapCodecUtil.ASCII_CHARSET));
+    }
+    
     @Override
     public String toString() {
     	return text;
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Amount of memory that aggregated message bodies may occupy in total. One instance is shared by the
+ * aggregators of all channels, a body that does not fit into the remaining budget is spilled to disk.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapChunkAggregator
+ */
+public final class MemoryBudget {
+
+	private final long limit;
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * @param limit maximum amount of bytes that can be reserved at the same time.
+	 */
+	public MemoryBudget(long limit) {
+		if(limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit + " (expected: >= 0)");
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * reserves memory if the budget allows it.
+	 *
+	 * @param bytes amount of bytes to reserve.
+	 * @return true if the bytes were reserved.
+	 */
+	public boolean tryReserve(long bytes) {
+		for(;;) {
+			long current = used.get();
+			long next = current + bytes;
+			if(next > limit) {
+				return false;
+			}
+			if(used.compareAndSet(current,next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * gives previously reserved memory back to the budget.
+	 *
+	 * @param bytes amount of bytes that were reserved.
+	 */
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return amount of bytes that are currently reserved.
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AsciiString;
+
+/**
+ * Creates the response of a modifying service by comparing the modified HTTP message with the one of the request,
+ * so that the body is only sent back to the client if it actually changed.
+ * <ul>
+ * <li>Nothing changed: 204 No Content if the client allows it.</li>
+ * <li>The body ends with the same bytes as the original body: 206 Partial Content with the modified headers, the
+ * changed prefix of the body and use-original-body pointing to the unchanged rest. For a header only modification
+ * the response carries no body chunks at all and use-original-body=0. Requires Allow: 206.</li>
+ * <li>Otherwise: 200 OK with the complete modified message.</li>
+ * </ul>
+ * The modified message has to be a separate instance, e.g. created with retainedDuplicate() from the message of the
+ * request, because a message modified in place cannot be compared. The factory takes over the modified message,
+ * the request stays with the caller.
+ * <p/>
+ * Bodies are compared from their end without copying. The response is written through
+ * @see {@link IcapChunkSeparator} that encodes the body prefix and the use-original-body extension.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapResponse#setUseOriginalBody(Integer)
+ */
+public final class ModificationResponseFactory {
+
+	private final String isTag;
+
+	/**
+	 * @param isTag ISTag of the service that is set on every response.
+	 */
+	public ModificationResponseFactory(String isTag) {
+		if(isTag == null) {
+			throw new NullPointerException("isTag");
+		}
+		this.isTag = isTag;
+	}
+
+	/**
+	 * @param request the received request with the complete body.
+	 * @return response for a request the service did not modify.
+	 */
+	public IcapResponse createUnmodifiedResponse(IcapRequest request) {
+		FullHttpMessage original = getOriginal(request);
+		if(original == null || request.isAllow204() || request.isPreviewMessage()) {
+			return createResponse(request,IcapResponseStatus.NO_CONTENT);
+		}
+		return createResponse(request,original.retainedDuplicate());
+	}
+
+	/**
+	 * @param request the received request with the complete body.
+	 * @param modified the modified HTTP request of a REQMOD or HTTP response of a RESPMOD request.
+	 * @return the response that transfers as little of the body as possible.
+	 */
+	public IcapResponse createResponse(IcapRequest request, FullHttpMessage modified) {
+		FullHttpMessage original = getOriginal(request);
+		if(original == null || !isSameType(original,modified)) {
+			return createFullResponse(request,modified);
+		}
+		ByteBuf originalBody = original.content();
+		ByteBuf modifiedBody = modified.content();
+		int suffix = commonSuffixLength(originalBody,modifiedBody);
+		boolean headersModified = !isInitialLineEqual(original,modified) || !isEqual(original.headers(),modified.headers());
+		boolean bodyModified = suffix != originalBody.readableBytes() || suffix != modifiedBody.readableBytes();
+		if(!headersModified && !bodyModified && (request.isAllow204() || request.isPreviewMessage())) {
+			modified.release();
+			return createResponse(request,IcapResponseStatus.NO_CONTENT);
+		}
+		if(request.isAllow206() && (suffix > 0 || originalBody.readableBytes() == 0)) {
+			ByteBuf prefix = modifiedBody.retainedSlice(modifiedBody.readerIndex(),modifiedBody.readableBytes() - suffix);
+			FullHttpMessage partial = modified.replace(prefix);
+			modified.release();
+			IcapResponse response = createResponse(request,IcapResponseStatus.PARTIAL_CONTENT);
+			setHttpMessage(response,partial);
+			response.setUseOriginalBody(originalBody.readableBytes() - suffix);
+			return response;
+		}
+		return createFullResponse(request,modified);
+	}
+
+	private IcapResponse createFullResponse(IcapRequest request, FullHttpMessage modified) {
+		IcapResponse response = createResponse(request,IcapResponseStatus.OK);
+		setHttpMessage(response,modified);
+		return response;
+	}
+
+	private IcapResponse createResponse(IcapRequest request, IcapResponseStatus status) {
+		IcapResponse response = new DefaultIcapResponse(request.getProtocolVersion(),status);
+		response.addHeader(IcapHeaders.Names.ISTAG,isTag);
+		return response;
+	}
+
+	private static void setHttpMessage(IcapResponse response, FullHttpMessage message) {
+		if(message instanceof FullHttpRequest) {
+			response.setHttpRequest((FullHttpRequest)message);
+		} else {
+			response.setHttpResponse((FullHttpResponse)message);
+		}
+	}
+
+	private static FullHttpMessage getOriginal(IcapRequest request) {
+		if(IcapMethod.REQMOD.equals(request.getMethod())) {
+			return request.getHttpRequest();
+		}
+		return request.getHttpResponse();
+	}
+
+	private static boolean isSameType(HttpMessage original, HttpMessage modified) {
+		return original instanceof HttpRequest ? modified instanceof HttpRequest : modified instanceof HttpResponse;
+	}
+
+	private static boolean isInitialLineEqual(HttpMessage original, HttpMessage modified) {
+		if(!original.protocolVersion().equals(modified.protocolVersion())) {
+			return false;
+		}
+		if(original instanceof HttpRequest) {
+			HttpRequest originalRequest = (HttpRequest)original;
+			HttpRequest modifiedRequest = (HttpRequest)modified;
+			return originalRequest.method().equals(modifiedRequest.method()) && originalRequest.uri().equals(modifiedRequest.uri());
+		}
+		return ((HttpResponse)original).status().equals(((HttpResponse)modified).status());
+	}
+
+	/**
+	 * headers are equal if they contain the same names and values in the same order.
+	 */
+	private static boolean isEqual(HttpHeaders original, HttpHeaders modified) {
+		if(original.size() != modified.size()) {
+			return false;
+		}
+		Iterator<Entry<CharSequence,CharSequence>> originalEntries = original.iteratorCharSequence();
+		Iterator<Entry<CharSequence,CharSequence>> modifiedEntries = modified.iteratorCharSequence();
+		while(originalEntries.hasNext() && modifiedEntries.hasNext()) {
+			Entry<CharSequence,CharSequence> originalEntry = originalEntries.next();
+			Entry<CharSequence,CharSequence> modifiedEntry = modifiedEntries.next();
+			if(!AsciiString.contentEqualsIgnoreCase(originalEntry.getKey(),modifiedEntry.getKey())
+					|| !AsciiString.contentEquals(originalEntry.getValue(),modifiedEntry.getValue())) {
+				return false;
+			}
+		}
+		return !originalEntries.hasNext() && !modifiedEntries.hasNext();
+	}
+
+	/**
+	 * @return amount of bytes both buffers end with, compared eight bytes at a time where possible.
+	 */
+	static int commonSuffixLength(ByteBuf original, ByteBuf modified) {
+		int originalIndex = original.writerIndex();
+		int modifiedIndex = modified.writerIndex();
+		int limit = Math.min(original.readableBytes(),modified.readableBytes());
+		int length = 0;
+		while(limit - length >= 8 && original.getLong(originalIndex - length - 8) == modified.getLong(modifiedIndex - length - 8)) {
+			length += 8;
+		}
+		while(length < limit && original.getByte(originalIndex - length - 1) == modified.getByte(modifiedIndex - length - 1)) {
+			length++;
+		}
+		return length;
+	}
+}
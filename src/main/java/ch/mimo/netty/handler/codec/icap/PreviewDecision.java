@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+/**
+ * Outcome of the inspection of a preview.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see PreviewInspector
+ * @see PreviewDecisionHandler
+ */
+public final class PreviewDecision {
+
+	public enum Action {
+		/**
+		 * the message is not modified, a 204 No Content is sent without receiving the rest of the body.
+		 */
+		ACCEPT_204,
+		/**
+		 * the rest of the body is required, a 100 Continue is sent unless the preview already contains the whole body.
+		 */
+		CONTINUE,
+		/**
+		 * the given response is sent without receiving the rest of the body.
+		 */
+		RESPOND
+	}
+
+	public static final PreviewDecision ACCEPT_204 = new PreviewDecision(Action.ACCEPT_204,null);
+	public static final PreviewDecision CONTINUE = new PreviewDecision(Action.CONTINUE,null);
+
+	private final Action action;
+	private final IcapResponse response;
+
+	private PreviewDecision(Action action, IcapResponse response) {
+		this.action = action;
+		this.response = response;
+	}
+
+	/**
+	 * @param response the response that is sent instead of receiving the rest of the body.
+	 * @return decision to answer the preview with the given response.
+	 */
+	public static PreviewDecision respond(IcapResponse response) {
+		if(response == null) {
+			throw new NullPointerException("response");
+		}
+		return new PreviewDecision(Action.RESPOND,response);
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	/**
+	 * @return the response of a RESPOND decision, null otherwise.
+	 */
+	public IcapResponse getResponse() {
+		return response;
+	}
+
+	@Override
+	public String toString() {
+		return action.name();
+	}
+}
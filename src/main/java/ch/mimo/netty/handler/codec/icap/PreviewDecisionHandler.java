@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Server side handler that answers preview requests on behalf of the application.
+ * <p/>
+ * The handler belongs behind the request decoder and response encoder and in front of an optional
+ * @see {@link IcapChunkAggregator}. A preview request is held back together with its preview chunks until the
+ * preview is complete, then the @see {@link PreviewInspector} decides:
+ * <ul>
+ * <li>ACCEPT_204: a 204 No Content with the ISTag of the service is sent and the request is discarded.</li>
+ * <li>RESPOND: the given response is sent and the request is discarded.</li>
+ * <li>CONTINUE: a 100 Continue is sent and the request is passed on as regular message without Preview header,
+ * followed by the preview chunks and the chunks of the rest of the body. An early terminated preview (ieof)
+ * already contains the whole body, so it is passed on without sending a 100 Continue.</li>
+ * </ul>
+ * Only the preview is buffered, never more than the announced preview amount. The rest of the body is not sent
+ * by the client at all unless the inspector asks for it. Requests without preview are passed on untouched.
+ * <p/>
+ * The state is reset after every message so the handler works on keep-alive connections. It is not sharable.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see PreviewInspector
+ * @see PreviewDecision
+ */
+public class PreviewDecisionHandler extends ChannelInboundHandlerAdapter {
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(PreviewDecisionHandler.class);
+
+	private final String isTag;
+	private final PreviewInspector inspector;
+
+	private IcapRequest request;
+	private final List<IcapChunk> previewChunks = new ArrayList<IcapChunk>();
+	private int previewBytes;
+	private boolean continued;
+
+	/**
+	 * @param isTag ISTag of the service that is set on the 204 No Content responses.
+	 * @param inspector decides on every received preview.
+	 */
+	public PreviewDecisionHandler(String isTag, PreviewInspector inspector) {
+		if(isTag == null) {
+			throw new NullPointerException("isTag");
+		}
+		if(inspector == null) {
+			throw new NullPointerException("inspector");
+		}
+		this.isTag = isTag;
+		this.inspector = inspector;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if(msg instanceof IcapRequest) {
+			IcapRequest icapRequest = (IcapRequest)msg;
+			reset();
+			continued = false;
+			if(icapRequest.isPreviewMessage() && icapRequest.getBodyType() != null && icapRequest.getBodyType() != IcapMessageElementEnum.NULLBODY) {
+				request = icapRequest;
+			} else {
+				ctx.fireChannelRead(icapRequest);
+			}
+		} else if(msg instanceof IcapChunk) {
+			IcapChunk chunk = (IcapChunk)msg;
+			if(request != null) {
+				if(chunk.isLast()) {
+					decide(ctx,chunk);
+				} else {
+					buffer(chunk);
+				}
+			} else if(continued) {
+				continued = !chunk.isLast();
+				ctx.fireChannelRead(chunk);
+			} else {
+				ctx.fireChannelRead(chunk);
+			}
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		reset();
+		continued = false;
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		reset();
+	}
+
+	private void buffer(IcapChunk chunk) throws TooLongFrameException {
+		previewBytes += chunk.content().readableBytes();
+		if(previewBytes > request.getPreviewAmount()) {
+			chunk.release();
+			int announced = request.getPreviewAmount();
+			reset();
+			throw new TooLongFrameException("preview exceeds the announced amount of [" + announced + "] bytes");
+		}
+		chunk.setPreviewChunk(false);
+		previewChunks.add(chunk);
+	}
+
+	private void decide(ChannelHandlerContext ctx, IcapChunk last) throws Exception {
+		boolean complete = last.isEarlyTerminated();
+		PreviewDecision decision;
+		CompositeByteBuf preview = ctx.alloc().compositeBuffer(Math.max(2,previewChunks.size()));
+		try {
+			for(IcapChunk chunk : previewChunks) {
+				preview.addComponent(true,chunk.content().retainedDuplicate());
+			}
+			decision = inspector.inspect(request,preview,complete);
+		} catch(Exception e) {
+			last.release();
+			reset();
+			throw e;
+		} finally {
+			preview.release();
+		}
+		if(decision == null) {
+			last.release();
+			reset();
+			throw new IllegalStateException("preview inspector returned no decision");
+		}
+		LOG.debug("preview decision [{}] for complete body [{}]",decision,complete);
+		switch(decision.getAction()) {
+		case ACCEPT_204:
+			last.release();
+			reset();
+			IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.NO_CONTENT);
+			response.addHeader(IcapHeaders.Names.ISTAG,isTag);
+			ctx.writeAndFlush(response);
+			break;
+		case RESPOND:
+			last.release();
+			reset();
+			ctx.writeAndFlush(decision.getResponse());
+			break;
+		default:
+			proceed(ctx,last,complete);
+		}
+	}
+
+	/**
+	 * passes the request on as regular message. The chunks of the rest of the body follow after the 100 Continue.
+	 */
+	private void proceed(ChannelHandlerContext ctx, IcapChunk last, boolean complete) {
+		IcapRequest icapRequest = request;
+		List<IcapChunk> chunks = new ArrayList<IcapChunk>(previewChunks);
+		request = null;
+		previewChunks.clear();
+		previewBytes = 0;
+		icapRequest.removeHeader(IcapHeaders.Names.PREVIEW);
+		if(!complete) {
+			continued = true;
+			ctx.writeAndFlush(new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.CONTINUE));
+		}
+		ctx.fireChannelRead(icapRequest);
+		for(IcapChunk chunk : chunks) {
+			ctx.fireChannelRead(chunk);
+		}
+		if(complete) {
+			IcapChunkTrailer trailer = new DefaultIcapChunkTrailer();
+			if(last instanceof IcapChunkTrailer) {
+				trailer.trailingHeaders().set(((IcapChunkTrailer)last).trailingHeaders());
+			}
+			ctx.fireChannelRead(trailer);
+		}
+		last.release();
+	}
+
+	private void reset() {
+		if(request != null) {
+			request.release();
+			request = null;
+		}
+		for(IcapChunk chunk : previewChunks) {
+			chunk.release();
+		}
+		previewChunks.clear();
+		previewBytes = 0;
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Decides on a received preview whether the rest of the body is required.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see PreviewDecisionHandler
+ */
+public interface PreviewInspector {
+
+	/**
+	 * Called once per preview message on the event loop of the channel.
+	 *
+	 * @param request the received request including its HTTP headers.
+	 * @param preview the preview bytes. The buffer belongs to the handler and must neither be released nor retained.
+	 * @param complete true if the preview was early terminated and therefore contains the whole body.
+	 * @return the decision, never null.
+	 * @throws Exception the exception is propagated through the pipeline and the preview is discarded.
+	 */
+	PreviewDecision inspect(IcapRequest request, ByteBuf preview, boolean complete) throws Exception;
+}
@@ -38,16 +38,12 @@ public class ReadChunkDelimiterState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
-        for (;;) {
-            byte next = buffer.readByte();
-            if (next == IcapCodecUtil.CR) {
-                if (buffer.readByte() == IcapCodecUtil.LF) {
-                    return StateReturnValue.createIrrelevantResult();
-                }
-            } else if (next == IcapCodecUtil.LF) {
-                return StateReturnValue.createIrrelevantResult();
-            }
-        }
+		int lineFeed = IcapDecoderUtil.findLineFeed(buffer,buffer.readerIndex());
+		if(lineFeed < 0) {
+			return StateReturnValue.createIncompleteResult();
+		}
+		buffer.readerIndex(lineFeed + 1);
+		return StateReturnValue.createIrrelevantResult();
 	}
 
 	@Override
@@ -83,12 +83,22 @@ public class ReadChunkSizeState extends State<ReadChunkSizeState.DecisionState>
 	 * 6. chunk size == 0 step out (END STATE/reset).
 	 */
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
+		int lineFeed = IcapDecoderUtil.findLineFeed(buffer,buffer.readerIndex());
+		if(lineFeed < 0) {
+			if(buffer.readableBytes() > icapMessageDecoder.maxInitialLineLength + 1) {
+				return StateReturnValue.createIrrelevantResultWithDecisionInformation(DecisionState.RESET);
+			}
+			return StateReturnValue.createIncompleteResult();
+		}
 		int chunkSize;
 		Map<String, String> extensions;
-		String previewLine = IcapDecoderUtil.previewLine(buffer,icapMessageDecoder.maxInitialLineLength);
 		try {
+			String previewLine = IcapDecoderUtil.previewLine(buffer,icapMessageDecoder.maxInitialLineLength);
 			chunkSize = IcapDecoderUtil.getChunkSize(previewLine);
 			extensions = IcapDecoderUtil.getExtensions(previewLine);
+			if(chunkSize == 0 && !isTerminationComplete(buffer,lineFeed,extensions)) {
+				return StateReturnValue.createIncompleteResult();
+			}
 			IcapDecoderUtil.readLine(buffer,icapMessageDecoder.maxInitialLineLength);
 		} catch(DecodingException de) {
 			return StateReturnValue.createIrrelevantResultWithDecisionInformation(DecisionState.RESET);
@@ -130,6 +140,24 @@ public class ReadChunkSizeState extends State<ReadChunkSizeState.DecisionState>
 		return decisionInformation.getNextState();
 	}
 	
+	/**
+	 * A zero sized chunk is followed either by an empty line or by trailing headers. Before the
+	 * chunk size line is consumed the bytes required to take that decision have to be present.
+	 */
+	private boolean isTerminationComplete(ByteBuf buffer, int lineFeed, Map<String, String> extensions) {
+		if(extensions.containsKey(IcapCodecUtil.EXTENSION_IEOF)) {
+			return IcapDecoderUtil.findLineFeed(buffer,lineFeed + 1) >= 0;
+		}
+		if(buffer.writerIndex() <= lineFeed + 2) {
+			return false;
+		}
+		byte previewByte = buffer.getByte(lineFeed + 2);
+		if(previewByte == IcapCodecUtil.CR || previewByte == IcapCodecUtil.LF) {
+			return IcapDecoderUtil.findLineFeed(buffer,lineFeed + 1) >= 0;
+		}
+		return true;
+	}
+	
 	private boolean checkForLineBreak(ByteBuf buffer) {
 		byte previewByte = buffer.getByte(buffer.readerIndex() + 1);
 		return previewByte == IcapCodecUtil.CR || previewByte == IcapCodecUtil.LF;
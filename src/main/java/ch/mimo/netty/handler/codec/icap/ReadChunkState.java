@@ -38,7 +38,10 @@ public class ReadChunkState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {		
-		IcapChunk chunk = new DefaultIcapChunk(buffer.readBytes(icapMessageDecoder.currentChunkSize));
+		if(buffer.readableBytes() < icapMessageDecoder.currentChunkSize) {
+			return StateReturnValue.createIncompleteResult();
+		}
+		IcapChunk chunk = new DefaultIcapChunk(icapMessageDecoder.readChunkContent(buffer,icapMessageDecoder.currentChunkSize));
 		chunk.setPreviewChunk(icapMessageDecoder.message.isPreviewMessage());
 		return StateReturnValue.createRelevantResult(chunk);
 	}
@@ -38,12 +38,15 @@ public class ReadChunkedContentAsChunksState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
+		if(buffer.readableBytes() < Math.min(icapMessageDecoder.currentChunkSize,icapMessageDecoder.maxChunkSize)) {
+			return StateReturnValue.createIncompleteResult();
+		}
 		IcapChunk chunk = null;
 		if(icapMessageDecoder.currentChunkSize > icapMessageDecoder.maxChunkSize) {
-			chunk = new DefaultIcapChunk(buffer.readBytes(icapMessageDecoder.maxChunkSize));
+			chunk = new DefaultIcapChunk(icapMessageDecoder.readChunkContent(buffer,icapMessageDecoder.maxChunkSize));
 			icapMessageDecoder.currentChunkSize -= icapMessageDecoder.maxChunkSize;
 		} else {
-			chunk = new DefaultIcapChunk(buffer.readBytes(icapMessageDecoder.currentChunkSize));
+			chunk = new DefaultIcapChunk(icapMessageDecoder.readChunkContent(buffer,icapMessageDecoder.currentChunkSize));
 			icapMessageDecoder.currentChunkSize = 0;
 		}
 		chunk.setPreviewChunk(icapMessageDecoder.message.isPreviewMessage());
@@ -50,16 +50,26 @@ public class ReadHttpResponseInitalAndHeadersState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
-		String line = IcapDecoderUtil.readLine(buffer,icapMessageDecoder.maxInitialLineLength);
+		HeaderBlockReader reader = icapMessageDecoder.headerBlockReader;
+		String line = reader.readInitialLine(buffer,icapMessageDecoder.maxInitialLineLength);
+		if(line == null) {
+			return StateReturnValue.createIncompleteResult();
+		}
+		List<String> lines = reader.readHeaderLines(buffer,icapMessageDecoder.maxHttpHeaderSize);
+		if(lines == null) {
+			return StateReturnValue.createIncompleteResult();
+		}
 		String[] initialLine = IcapDecoderUtil.splitInitialLine(line);
 		FullHttpResponse message = new DefaultFullHttpResponse(HttpVersion.valueOf(initialLine[0]),HttpResponseStatus.valueOf(Integer.parseInt(initialLine[1])));
 		icapMessageDecoder.message.setHttpResponse(message);
-		List<String[]> headerList = IcapDecoderUtil.readHeaders(buffer,icapMessageDecoder.maxHttpHeaderSize);
+		List<String[]> headerList = IcapDecoderUtil.parseHeaders(lines);
 		for(String[] header : headerList) {
 			message.headers().add(header[0],header[1]);
 		}
 		Encapsulated encapsulated = icapMessageDecoder.message.getEncapsulatedHeader();
-		encapsulated.setEntryAsProcessed(encapsulated.getNextEntry());
+		IcapMessageElementEnum entry = encapsulated.getNextEntry();
+		icapMessageDecoder.validateSectionLength(encapsulated,entry,reader.getLastBlockSize());
+		encapsulated.setEntryAsProcessed(entry);
 		if(encapsulated.getNextEntry() != null && encapsulated.getNextEntry().equals(IcapMessageElementEnum.REQHDR)) {
 			return StateReturnValue.createIrrelevantResult();
 		}
@@ -45,7 +45,11 @@ public class ReadIcapHeaderState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
-		List<String[]> headerList = IcapDecoderUtil.readHeaders(buffer,icapMessageDecoder.maxIcapHeaderSize);
+		List<String> lines = icapMessageDecoder.headerBlockReader.readHeaderLines(buffer,icapMessageDecoder.maxIcapHeaderSize);
+		if(lines == null) {
+			return StateReturnValue.createIncompleteResult();
+		}
+		List<String[]> headerList = IcapDecoderUtil.parseHeaders(lines);
 		icapMessageDecoder.message.clearHeaders();
 		for(String[] header : headerList) {
 			icapMessageDecoder.message.addHeader(header[0],header[1]);
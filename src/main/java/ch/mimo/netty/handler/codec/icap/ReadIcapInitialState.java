@@ -39,15 +39,19 @@ public class ReadIcapInitialState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
-		String[] initialLine = IcapDecoderUtil.splitInitialLine(IcapDecoderUtil.readLine(buffer,icapMessageDecoder.maxInitialLineLength));
-		if (initialLine.length >= 3) {
-			try {
-				icapMessageDecoder.message = icapMessageDecoder.createMessage(initialLine);
-			}
-			catch (IllegalArgumentException e) {
-				icapMessageDecoder.message = null;
-			}
+		int lineFeed = icapMessageDecoder.headerBlockReader.findInitialLineFeed(buffer,icapMessageDecoder.maxInitialLineLength);
+		if(lineFeed < 0) {
+			return StateReturnValue.createIncompleteResult();
 		}
+		icapMessageDecoder.headerBlockReader.reset();
+		int start = buffer.readerIndex();
+		int end = IcapDecoderUtil.findEndOfLine(buffer,start,lineFeed,icapMessageDecoder.maxInitialLineLength);
+		try {
+			icapMessageDecoder.message = icapMessageDecoder.createMessage(buffer,start,end);
+		} catch (IllegalArgumentException e) {
+			icapMessageDecoder.message = null;
+		}
+		buffer.readerIndex(lineFeed + 1);
 		return StateReturnValue.createIrrelevantResult();
 	}
 
@@ -42,13 +42,15 @@ public class ReadTrailingHeadersState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
-		SizeDelimiter sizeDelimiter = new SizeDelimiter(icapMessageDecoder.maxHttpHeaderSize);
+		List<String> lines = icapMessageDecoder.headerBlockReader.readHeaderLines(buffer,icapMessageDecoder.maxHttpHeaderSize);
+		if(lines == null) {
+			return StateReturnValue.createIncompleteResult();
+		}
 		boolean preview = icapMessageDecoder.message.isPreviewMessage();
-        String line = IcapDecoderUtil.readSingleHeaderLine(buffer,sizeDelimiter);
         String lastHeader = null;
-        if (line.length() != 0) {
+        if (!lines.isEmpty()) {
             LastHttpContent trailer = new DefaultIcapChunkTrailer(preview,false);
-            do {
+            for(String line : lines) {
                 char firstChar = line.charAt(0);
                 if (lastHeader != null && (firstChar == ' ' || firstChar == '\t')) {
                     List<String> current = trailer.trailingHeaders().getAll(lastHeader);
@@ -69,9 +71,7 @@ public class ReadTrailingHeadersState extends State<Object> {
                     }
                     lastHeader = name;
                 }
-
-                line = IcapDecoderUtil.readSingleHeaderLine(buffer,sizeDelimiter);
-            } while (line.length() != 0);
+            }
 
             return StateReturnValue.createRelevantResult(trailer);
         }
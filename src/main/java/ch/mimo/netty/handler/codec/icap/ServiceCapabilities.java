@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Capabilities of an ICAP service as announced by its OPTIONS response.
+ *
+ * The values are immutable. Headers that are missing or cannot be parsed are reported as not announced.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see ServiceCapabilitiesCache
+ */
+public final class ServiceCapabilities {
+
+	/**
+	 * value of numeric capabilities the service did not announce.
+	 */
+	public static final int NOT_ANNOUNCED = -1;
+
+	private final String serviceUri;
+	private final String isTag;
+	private final List<IcapMethod> methods;
+	private final String service;
+	private final int preview;
+	private final boolean allow204;
+	private final boolean allow206;
+	private final int maxConnections;
+	private final int optionsTtl;
+	private final List<String> transferPreview;
+	private final List<String> transferIgnore;
+	private final List<String> transferComplete;
+	private final TransferMatcher transferMatcher;
+
+	private ServiceCapabilities(String serviceUri, IcapResponse response) {
+		this.serviceUri = serviceUri;
+		this.isTag = response.getIsTag();
+		this.methods = Collections.unmodifiableList(parseMethods(response.getHeader(IcapHeaders.Names.METHODS)));
+		this.service = response.getHeader(IcapHeaders.Names.SERVICE);
+		this.preview = parseNumber(response.getHeader(IcapHeaders.Names.PREVIEW));
+		this.allow204 = response.isAllow204();
+		this.allow206 = response.isAllow206();
+		this.maxConnections = parseNumber(response.getHeader(IcapHeaders.Names.MAX_CONNECTIONS));
+		this.optionsTtl = parseNumber(response.getHeader(IcapHeaders.Names.OPTIONS_TTL));
+		this.transferPreview = parseList(response.getHeader(IcapHeaders.Names.TRANSFER_PREVIEW));
+		this.transferIgnore = parseList(response.getHeader(IcapHeaders.Names.TRANSFER_IGNORE));
+		this.transferComplete = parseList(response.getHeader(IcapHeaders.Names.TRANSFER_COMPLETE));
+		this.transferMatcher = compileTransferMatcher(transferPreview,transferIgnore,transferComplete);
+	}
+
+	/**
+	 * @param serviceUri the ICAP URI the OPTIONS request was sent to.
+	 * @param response the OPTIONS response of the service.
+	 * @return the capabilities announced in the response.
+	 */
+	public static ServiceCapabilities fromOptionsResponse(String serviceUri, IcapResponse response) {
+		return new ServiceCapabilities(serviceUri,response);
+	}
+
+	public String getServiceUri() {
+		return serviceUri;
+	}
+
+	/**
+	 * @return the ISTag of the service or null if none was sent.
+	 */
+	public String getIsTag() {
+		return isTag;
+	}
+
+	public List<IcapMethod> getMethods() {
+		return methods;
+	}
+
+	public boolean isMethodSupported(IcapMethod method) {
+		return methods.contains(method);
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	/**
+	 * @return amount of preview bytes the service asks for or @see {@link #NOT_ANNOUNCED} if the service does not support previews.
+	 */
+	public int getPreview() {
+		return preview;
+	}
+
+	public boolean isAllow204() {
+		return allow204;
+	}
+
+	/**
+	 * @return true if the service answers with use-original-body when the request allows 206.
+	 */
+	public boolean isAllow206() {
+		return allow206;
+	}
+
+	/**
+	 * @return maximum amount of connections the service accepts or @see {@link #NOT_ANNOUNCED}.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return seconds the capabilities are valid or @see {@link #NOT_ANNOUNCED} if they do not expire.
+	 */
+	public int getOptionsTtl() {
+		return optionsTtl;
+	}
+
+	public List<String> getTransferPreview() {
+		return transferPreview;
+	}
+
+	public List<String> getTransferIgnore() {
+		return transferIgnore;
+	}
+
+	public List<String> getTransferComplete() {
+		return transferComplete;
+	}
+
+	public TransferMatcher getTransferMatcher() {
+		return transferMatcher;
+	}
+
+	/**
+	 * @param request request to this service.
+	 * @return how the body of the request is transferred according to the URI of its encapsulated HTTP request.
+	 */
+	public TransferMode getTransferMode(IcapRequest request) {
+		return transferMatcher.match(request.getHttpRequest());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ServiceCapabilities[").append(serviceUri);
+		builder.append(", isTag=").append(isTag);
+		builder.append(", methods=").append(methods);
+		builder.append(", preview=").append(preview);
+		builder.append(", allow204=").append(allow204);
+		builder.append(", allow206=").append(allow206);
+		builder.append(", maxConnections=").append(maxConnections);
+		builder.append(", optionsTtl=").append(optionsTtl);
+		builder.append("]");
+		return builder.toString();
+	}
+
+	/**
+	 * a service that lists the wildcard more than once is treated as if it did not announce transfer lists.
+	 */
+	private static TransferMatcher compileTransferMatcher(List<String> preview, List<String> ignore, List<String> complete) {
+		try {
+			return new TransferMatcher(preview,ignore,complete);
+		} catch(IllegalArgumentException e) {
+			List<String> none = Collections.emptyList();
+			return new TransferMatcher(none,none,none);
+		}
+	}
+
+	private static List<IcapMethod> parseMethods(String value) {
+		List<IcapMethod> methods = new ArrayList<IcapMethod>();
+		for(String name : parseList(value)) {
+			methods.add(IcapMethod.valueOf(name));
+		}
+		return methods;
+	}
+
+	private static List<String> parseList(String value) {
+		if(value == null) {
+			return Collections.emptyList();
+		}
+		List<String> values = new ArrayList<String>();
+		for(String element : value.split(",")) {
+			element = element.trim();
+			if(element.length() > 0) {
+				values.add(element);
+			}
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	private static int parseNumber(String value) {
+		if(value == null) {
+			return NOT_ANNOUNCED;
+		}
+		try {
+			int number = Integer.parseInt(value.trim());
+			return number < 0 ? NOT_ANNOUNCED : number;
+		} catch(NumberFormatException e) {
+			return NOT_ANNOUNCED;
+		}
+	}
+}
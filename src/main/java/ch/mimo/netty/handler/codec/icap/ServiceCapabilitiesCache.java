@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Client side cache of the OPTIONS responses of ICAP services.
+ * <p/>
+ * The OPTIONS request is sent once per service URI through the @see {@link IcapClient}. The capabilities are kept
+ * until the Options-TTL of the service expires or until a response of the service carries a different ISTag.
+ * Before they expire they are refreshed in the background, so that requests never wait for an OPTIONS round trip.
+ * The Max-Connections of a service limits the connections the client opens to it.
+ * <p/>
+ * @see {@link #get(String)} never blocks. Until the first OPTIONS response of a service arrived it returns null and
+ * requests are sent without negotiated capabilities.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see ServiceCapabilities
+ */
+public class ServiceCapabilitiesCache implements Closeable {
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(ServiceCapabilitiesCache.class);
+
+	/**
+	 * validity of capabilities of services that do not announce an Options-TTL.
+	 */
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * shortest validity of capabilities. A service that announces a lower Options-TTL, e.g. 0, would otherwise be
+	 * asked for its OPTIONS in a tight loop.
+	 */
+	public static final long MIN_TTL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	/**
+	 * share of the validity after which the capabilities are refreshed.
+	 */
+	private static final double REFRESH_AHEAD_RATIO = 0.8;
+
+	private final IcapClient client;
+	private final ScheduledExecutorService scheduler;
+	private final long defaultTtlNanos;
+	private final LongSupplier nanoClock;
+	private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+	private volatile boolean closed;
+
+	/**
+	 * @param client the client OPTIONS requests are sent with.
+	 * @param scheduler runs the background refreshes, e.g. the event loop group of the client.
+	 */
+	public ServiceCapabilitiesCache(IcapClient client, ScheduledExecutorService scheduler) {
+		this(client,scheduler,DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param client the client OPTIONS requests are sent with.
+	 * @param scheduler runs the background refreshes, e.g. the event loop group of the client.
+	 * @param defaultTtlMillis validity of capabilities of services that do not announce an Options-TTL.
+	 */
+	public ServiceCapabilitiesCache(IcapClient client, ScheduledExecutorService scheduler, long defaultTtlMillis) {
+		this(client,scheduler,defaultTtlMillis,new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return System.nanoTime();
+			}
+		});
+	}
+
+	ServiceCapabilitiesCache(IcapClient client, ScheduledExecutorService scheduler, long defaultTtlMillis, LongSupplier nanoClock) {
+		if(defaultTtlMillis <= 0) {
+			throw new IllegalArgumentException("defaultTtlMillis: " + defaultTtlMillis + " (expected: > 0)");
+		}
+		this.client = client;
+		this.scheduler = scheduler;
+		this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(defaultTtlMillis);
+		this.nanoClock = nanoClock;
+	}
+
+	/**
+	 * returns the cached capabilities without waiting. Missing or expired capabilities are fetched in the background.
+	 *
+	 * @param serviceUri ICAP URI of the service.
+	 * @return the valid capabilities or null if they are not known yet.
+	 */
+	public ServiceCapabilities get(String serviceUri) {
+		Entry entry = getEntry(serviceUri);
+		synchronized(entry) {
+			if(entry.isValid()) {
+				return entry.capabilities;
+			}
+			entry.capabilities = null;
+		}
+		refresh(entry);
+		return null;
+	}
+
+	/**
+	 * @param serviceUri ICAP URI of the service.
+	 * @return future of the capabilities, completed already if the capabilities are cached.
+	 */
+	public CompletableFuture<ServiceCapabilities> fetch(String serviceUri) {
+		Entry entry = getEntry(serviceUri);
+		synchronized(entry) {
+			if(entry.isValid()) {
+				return CompletableFuture.completedFuture(entry.capabilities);
+			}
+			entry.capabilities = null;
+		}
+		return refresh(entry);
+	}
+
+	/**
+	 * applies the cached capabilities of the service to the request. 204 and 206 responses are allowed if the service
+	 * supports them, @see {@link IcapClient} completes a 206 response with the original body. The announced preview size
+	 * is available through the returned capabilities for requests that are sent with preview.
+	 *
+	 * @param request request to the service.
+	 * @return the applied capabilities or null if they are not known yet.
+	 */
+	public ServiceCapabilities prepare(IcapRequest request) {
+		ServiceCapabilities capabilities = get(request.getUri());
+		if(capabilities != null && !request.containsHeader(IcapHeaders.Names.ALLOW)) {
+			if(capabilities.isAllow204() && capabilities.isAllow206()) {
+				request.addHeader(IcapHeaders.Names.ALLOW,"204, 206");
+			} else if(capabilities.isAllow204()) {
+				request.addHeader(IcapHeaders.Names.ALLOW,"204");
+			} else if(capabilities.isAllow206()) {
+				request.addHeader(IcapHeaders.Names.ALLOW,"206");
+			}
+		}
+		return capabilities;
+	}
+
+	/**
+	 * prepares the request, sends it with the client and checks the ISTag of the response.
+	 * <p/>
+	 * A request whose HTTP request URI has an extension of the Transfer-Ignore list of the service is not sent at all.
+	 * It is answered right away with a 204 No Content carrying the ISTag of the service.
+	 *
+	 * @see IcapClient#send(IcapRequest)
+	 */
+	public CompletableFuture<IcapResponse> send(IcapRequest request) {
+		final String serviceUri = request.getUri();
+		ServiceCapabilities capabilities = prepare(request);
+		if(capabilities != null && !IcapMethod.OPTIONS.equals(request.getMethod()) && capabilities.getTransferMode(request) == TransferMode.IGNORE) {
+			LOG.debug("skipping request to [{}] with ignored transfer type",serviceUri);
+			request.release();
+			IcapResponse response = new DefaultIcapResponse(request.getProtocolVersion(),IcapResponseStatus.NO_CONTENT);
+			if(capabilities.getIsTag() != null) {
+				response.addHeader(IcapHeaders.Names.ISTAG,capabilities.getIsTag());
+			}
+			return CompletableFuture.completedFuture(response);
+		}
+		return client.send(request).thenApply(new Function<IcapResponse,IcapResponse>() {
+			@Override
+			public IcapResponse apply(IcapResponse response) {
+				observe(serviceUri,response);
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * drops the capabilities of the service and fetches them again if the response carries a different ISTag.
+	 *
+	 * @param serviceUri ICAP URI of the service.
+	 * @param response any response of the service.
+	 */
+	public void observe(String serviceUri, IcapResponse response) {
+		String isTag = response.getIsTag();
+		Entry entry = entries.get(serviceUri);
+		if(isTag == null || entry == null) {
+			return;
+		}
+		synchronized(entry) {
+			if(entry.capabilities == null || isTag.equals(entry.capabilities.getIsTag())) {
+				return;
+			}
+			LOG.debug("ISTag of [{}] changed to [{}], refreshing capabilities",serviceUri,isTag);
+			entry.capabilities = null;
+		}
+		refresh(entry);
+	}
+
+	/**
+	 * drops the capabilities of the service.
+	 */
+	public void invalidate(String serviceUri) {
+		Entry entry = entries.remove(serviceUri);
+		if(entry != null) {
+			synchronized(entry) {
+				entry.capabilities = null;
+				entry.cancelRefresh();
+			}
+		}
+	}
+
+	/**
+	 * stops all background refreshes. The client is not closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for(String serviceUri : entries.keySet()) {
+			invalidate(serviceUri);
+		}
+	}
+
+	private Entry getEntry(String serviceUri) {
+		Entry entry = entries.get(serviceUri);
+		if(entry == null) {
+			Entry created = new Entry(serviceUri);
+			entry = entries.putIfAbsent(serviceUri,created);
+			if(entry == null) {
+				entry = created;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * sends an OPTIONS request unless one is in progress. The cached capabilities stay in use until the response arrives.
+	 */
+	private CompletableFuture<ServiceCapabilities> refresh(final Entry entry) {
+		final CompletableFuture<ServiceCapabilities> pending;
+		synchronized(entry) {
+			if(entry.pending != null) {
+				return entry.pending;
+			}
+			pending = new CompletableFuture<ServiceCapabilities>();
+			entry.pending = pending;
+		}
+		IcapRequest request;
+		try {
+			request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.OPTIONS,entry.serviceUri,IcapClient.getEndpoint(entry.serviceUri).getHostString());
+		} catch(IllegalArgumentException e) {
+			failed(entry,pending,e);
+			return pending;
+		}
+		client.send(request).whenComplete(new BiConsumer<IcapResponse,Throwable>() {
+			@Override
+			public void accept(IcapResponse response, Throwable cause) {
+				if(cause != null) {
+					failed(entry,pending,cause);
+					return;
+				}
+				try {
+					if(!IcapResponseStatus.OK.equals(response.getStatus())) {
+						failed(entry,pending,new IllegalStateException("OPTIONS of [" + entry.serviceUri + "] answered with [" + response.getStatus() + "]"));
+						return;
+					}
+					completed(entry,pending,ServiceCapabilities.fromOptionsResponse(entry.serviceUri,response));
+				} finally {
+					response.release();
+				}
+			}
+		});
+		return pending;
+	}
+
+	private void completed(final Entry entry, CompletableFuture<ServiceCapabilities> pending, ServiceCapabilities capabilities) {
+		long ttlNanos = capabilities.getOptionsTtl() == ServiceCapabilities.NOT_ANNOUNCED ? defaultTtlNanos : TimeUnit.SECONDS.toNanos(capabilities.getOptionsTtl());
+		ttlNanos = Math.max(ttlNanos,TimeUnit.MILLISECONDS.toNanos(MIN_TTL_MILLIS));
+		synchronized(entry) {
+			entry.pending = null;
+			entry.capabilities = capabilities;
+			entry.expiresAt = nanoClock.getAsLong() + ttlNanos;
+			entry.cancelRefresh();
+			if(!closed && entries.get(entry.serviceUri) == entry) {
+				entry.refresh = scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						refresh(entry);
+					}
+				},(long)(ttlNanos * REFRESH_AHEAD_RATIO),TimeUnit.NANOSECONDS);
+			}
+		}
+		if(capabilities.getMaxConnections() > 0) {
+			client.setMaxConnections(IcapClient.getEndpoint(entry.serviceUri),capabilities.getMaxConnections());
+		}
+		LOG.debug("capabilities of [{}] are [{}]",entry.serviceUri,capabilities);
+		pending.complete(capabilities);
+	}
+
+	/**
+	 * a failed refresh keeps the cached capabilities until they expire. The next access retries.
+	 */
+	private void failed(Entry entry, CompletableFuture<ServiceCapabilities> pending, Throwable cause) {
+		LOG.debug("unable to fetch capabilities of [{}]",entry.serviceUri,cause);
+		synchronized(entry) {
+			entry.pending = null;
+		}
+		pending.completeExceptionally(cause);
+	}
+
+	private final class Entry {
+
+		private final String serviceUri;
+		private ServiceCapabilities capabilities;
+		private long expiresAt;
+		private CompletableFuture<ServiceCapabilities> pending;
+		private ScheduledFuture<?> refresh;
+
+		Entry(String serviceUri) {
+			this.serviceUri = serviceUri;
+		}
+
+		boolean isValid() {
+			return capabilities != null && nanoClock.getAsLong() - expiresAt < 0;
+		}
+
+		void cancelRefresh() {
+			if(refresh != null) {
+				refresh.cancel(false);
+				refresh = null;
+			}
+		}
+	}
+}
@@ -39,7 +39,9 @@ public class SkipControlCharsState extends State<Object> {
 
 	@Override
 	public StateReturnValue execute(ByteBuf buffer, IcapMessageDecoder icapMessageDecoder) throws DecodingException {
-		IcapDecoderUtil.skipControlCharacters(buffer);
+		if(!IcapDecoderUtil.skipControlCharacters(buffer)) {
+			return StateReturnValue.createIncompleteResult();
+		}
 		return StateReturnValue.createIrrelevantResult();
 	}
 
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Temporary file that takes a message body which is too large to be kept in memory.
+ *
+ * The completed body is exposed as memory mapped @see {@link ByteBuf}. Releasing that buffer unmaps
+ * it and deletes the file.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapChunkAggregator
+ */
+final class SpillFile {
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(SpillFile.class);
+
+	private final Path path;
+	private final FileChannel channel;
+	private long size;
+
+	private SpillFile(Path path, FileChannel channel) {
+		this.path = path;
+		this.channel = channel;
+	}
+
+	static SpillFile create(Path directory) throws IOException {
+		Path path = Files.createTempFile(directory,"icap-body-",".tmp");
+		try {
+			return new SpillFile(path,FileChannel.open(path,StandardOpenOption.READ,StandardOpenOption.WRITE));
+		} catch(IOException e) {
+			Files.deleteIfExists(path);
+			throw e;
+		}
+	}
+
+	/**
+	 * appends the readable bytes of the buffer without changing its reader index.
+	 */
+	void write(ByteBuf buffer) throws IOException {
+		for(ByteBuffer nioBuffer : buffer.nioBuffers()) {
+			while(nioBuffer.hasRemaining()) {
+				size += channel.write(nioBuffer,size);
+			}
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * maps the written body. The file belongs to the returned buffer from now on.
+	 */
+	ByteBuf map(ByteBufAllocator allocator) throws IOException {
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("spilled body of [" + size + "] bytes is too large to be mapped");
+		}
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE,0,size);
+		return new MappedFileByteBuf(allocator,mapped,this);
+	}
+
+	/**
+	 * closes and deletes the file.
+	 */
+	void delete() {
+		try {
+			channel.close();
+		} catch(IOException e) {
+			LOG.warn("unable to close spill file [{}]",path,e);
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch(IOException e) {
+			LOG.warn("unable to delete spill file [{}]",path,e);
+		}
+	}
+
+	private static final class MappedFileByteBuf extends UnpooledDirectByteBuf {
+
+		private final MappedByteBuffer mapped;
+		private final SpillFile file;
+
+		MappedFileByteBuf(ByteBufAllocator allocator, MappedByteBuffer mapped, SpillFile file) {
+			super(allocator,mapped,Integer.MAX_VALUE);
+			this.mapped = mapped;
+			this.file = file;
+		}
+
+		@Override
+		protected void deallocate() {
+			super.deallocate();
+			PlatformDependent.freeDirectBuffer(mapped);
+			file.delete();
+		}
+	}
+}
@@ -25,14 +25,30 @@ package ch.mimo.netty.handler.codec.icap;
  */
 public class StateReturnValue {
 	
+	private static final StateReturnValue INCOMPLETE_RESULT = new StateReturnValue(false,null,null,true);
+	
 	private boolean relevance;
 	private Object value;
 	private Object decisionInformation;
+	private boolean incomplete;
 	
 	public StateReturnValue(boolean relevance, Object value, Object decisionInformation) {
+		this(relevance,value,decisionInformation,false);
+	}
+	
+	private StateReturnValue(boolean relevance, Object value, Object decisionInformation, boolean incomplete) {
 		this.relevance = relevance;
 		this.value = value;
 		this.decisionInformation = decisionInformation;
+		this.incomplete = incomplete;
+	}
+	
+	/**
+	 * @return result that reports that the buffer does not yet contain enough data to complete the state.
+	 * The decoder will stay in the current state and execute it again once more data was received.
+	 */
+	public static StateReturnValue createIncompleteResult() {
+		return INCOMPLETE_RESULT;
 	}
 	
 	public static StateReturnValue createIrrelevantResult() {
@@ -51,6 +67,10 @@ public class StateReturnValue {
 		return new StateReturnValue(true,result,decisionInformation);
 	}
 	
+	public boolean isIncomplete() {
+		return incomplete;
+	}
+	
 	public boolean isRelevant() {
 		return relevance;
 	}
@@ -68,7 +88,7 @@ public class StateReturnValue {
 		if(value != null) {
 			printValue = value.getClass().getCanonicalName();
 		}
-		return "StateReturnValue: [relevance=" + relevance + 
+		return "StateReturnValue: [incomplete=" + incomplete + "] [relevance=" + relevance + 
 				"] [value=" + printValue + "] [decision information=" + decisionInformation + "]";
 	}
 }
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Builds the Transfer-Preview, Transfer-Ignore and Transfer-Complete headers of an OPTIONS response from the
+ * configuration of a service.
+ * <p/>
+ * Every extension can be listed once. The wildcard * is added to the list of the default mode, which is PREVIEW
+ * unless configured otherwise.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see TransferMatcher
+ */
+public final class TransferHeadersBuilder {
+
+	private final Map<String,TransferMode> extensions = new LinkedHashMap<String,TransferMode>();
+	private TransferMode defaultMode = TransferMode.PREVIEW;
+
+	/**
+	 * @param extensions extensions that are sent with preview, e.g. html or .js
+	 */
+	public TransferHeadersBuilder preview(String... extensions) {
+		return add(TransferMode.PREVIEW,extensions);
+	}
+
+	/**
+	 * @param extensions extensions that are not sent to the service, e.g. jpg or mp4
+	 */
+	public TransferHeadersBuilder ignore(String... extensions) {
+		return add(TransferMode.IGNORE,extensions);
+	}
+
+	/**
+	 * @param extensions extensions that are sent without preview, e.g. exe or zip
+	 */
+	public TransferHeadersBuilder complete(String... extensions) {
+		return add(TransferMode.COMPLETE,extensions);
+	}
+
+	/**
+	 * @param mode mode of all extensions that are not listed.
+	 */
+	public TransferHeadersBuilder defaultMode(TransferMode mode) {
+		if(mode == null) {
+			throw new NullPointerException("mode");
+		}
+		this.defaultMode = mode;
+		return this;
+	}
+
+	/**
+	 * @return the header value of the given mode or null if the mode lists no extension.
+	 */
+	public String getHeaderValue(TransferMode mode) {
+		List<String> values = getExtensions(mode);
+		if(mode == defaultMode) {
+			values.add(TransferMatcher.WILDCARD);
+		}
+		if(values.isEmpty()) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder();
+		for(String value : values) {
+			if(builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * sets the transfer headers of the OPTIONS response.
+	 */
+	public void applyTo(IcapResponse response) {
+		for(TransferMode mode : TransferMode.values()) {
+			response.removeHeader(mode.getHeaderName());
+			String value = getHeaderValue(mode);
+			if(value != null) {
+				response.addHeader(mode.getHeaderName(),value);
+			}
+		}
+	}
+
+	/**
+	 * @return matcher of the configured extensions, the same a client compiles from the generated headers.
+	 */
+	public TransferMatcher buildMatcher() {
+		List<String> preview = getExtensions(TransferMode.PREVIEW);
+		List<String> ignore = getExtensions(TransferMode.IGNORE);
+		List<String> complete = getExtensions(TransferMode.COMPLETE);
+		switch(defaultMode) {
+		case IGNORE:
+			ignore.add(TransferMatcher.WILDCARD);
+			break;
+		case COMPLETE:
+			complete.add(TransferMatcher.WILDCARD);
+			break;
+		default:
+			preview.add(TransferMatcher.WILDCARD);
+		}
+		return new TransferMatcher(preview,ignore,complete);
+	}
+
+	private List<String> getExtensions(TransferMode mode) {
+		List<String> values = new ArrayList<String>();
+		for(Entry<String,TransferMode> entry : extensions.entrySet()) {
+			if(entry.getValue() == mode) {
+				values.add(entry.getKey());
+			}
+		}
+		return values;
+	}
+
+	private TransferHeadersBuilder add(TransferMode mode, String... values) {
+		for(String value : values) {
+			String extension = normalize(value);
+			TransferMode previous = extensions.get(extension);
+			if(previous != null && previous != mode) {
+				throw new IllegalArgumentException("extension [" + extension + "] is already listed for [" + previous + "]");
+			}
+			extensions.put(extension,mode);
+		}
+		return this;
+	}
+
+	private static String normalize(String value) {
+		if(value == null) {
+			throw new NullPointerException("extension");
+		}
+		String extension = value.trim().toLowerCase(Locale.ENGLISH);
+		if(extension.startsWith(".")) {
+			extension = extension.substring(1);
+		}
+		if(extension.length() == 0 || extension.equals(TransferMatcher.WILDCARD)) {
+			throw new IllegalArgumentException("invalid extension [" + value + "], use defaultMode for the wildcard");
+		}
+		for(int index = 0 ; index < extension.length() ; index++) {
+			char c = extension.charAt(index);
+			if(c == ',' || c == '/' || Character.isWhitespace(c)) {
+				throw new IllegalArgumentException("invalid extension [" + value + "]");
+			}
+		}
+		return extension;
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Compiled Transfer-Preview, Transfer-Ignore and Transfer-Complete lists of an ICAP service.
+ * <p/>
+ * The extensions are stored reversed in a suffix trie. A request URI is matched by walking its path backwards from
+ * the end, so neither the path nor the extension is copied or lower cased. Extensions containing dots like tar.gz
+ * are supported, the longest configured extension wins.
+ * <p/>
+ * URIs without extension and unlisted extensions get the mode of the list that contains the wildcard *.
+ * If no list contains it the default is PREVIEW, the behaviour of a service that announces no transfer lists.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see ServiceCapabilities
+ */
+public final class TransferMatcher {
+
+	public static final String WILDCARD = "*";
+
+	private final Node root = new Node();
+	private final TransferMode defaultMode;
+
+	/**
+	 * @param preview extensions of the Transfer-Preview header.
+	 * @param ignore extensions of the Transfer-Ignore header.
+	 * @param complete extensions of the Transfer-Complete header.
+	 */
+	public TransferMatcher(List<String> preview, List<String> ignore, List<String> complete) {
+		TransferMode wildcardMode = null;
+		wildcardMode = add(preview,TransferMode.PREVIEW,wildcardMode);
+		wildcardMode = add(ignore,TransferMode.IGNORE,wildcardMode);
+		wildcardMode = add(complete,TransferMode.COMPLETE,wildcardMode);
+		this.defaultMode = wildcardMode != null ? wildcardMode : TransferMode.PREVIEW;
+	}
+
+	public TransferMode getDefaultMode() {
+		return defaultMode;
+	}
+
+	/**
+	 * @param request the encapsulated HTTP request, may be null.
+	 * @return the transfer mode of the request URI or the default mode if there is no request.
+	 */
+	public TransferMode match(HttpRequest request) {
+		if(request == null) {
+			return defaultMode;
+		}
+		return match(request.uri());
+	}
+
+	/**
+	 * @param uri absolute or relative request URI. Query and fragment are ignored.
+	 * @return the transfer mode of the extension of the last path segment.
+	 */
+	public TransferMode match(CharSequence uri) {
+		int end = pathEnd(uri);
+		Node node = root;
+		TransferMode mode = defaultMode;
+		for(int index = end - 1 ; index >= 0 ; index--) {
+			char c = uri.charAt(index);
+			if(c == '/') {
+				break;
+			}
+			if(c == '.' && node.mode != null) {
+				mode = node.mode;
+			}
+			node = node.child(toLowerCase(c));
+			if(node == null) {
+				break;
+			}
+		}
+		return mode;
+	}
+
+	private TransferMode add(List<String> extensions, TransferMode mode, TransferMode wildcardMode) {
+		for(String extension : extensions) {
+			String value = extension.trim();
+			if(value.equals(WILDCARD)) {
+				if(wildcardMode != null && wildcardMode != mode) {
+					throw new IllegalArgumentException("wildcard is listed for [" + wildcardMode + "] and [" + mode + "]");
+				}
+				wildcardMode = mode;
+				continue;
+			}
+			if(value.startsWith(".")) {
+				value = value.substring(1);
+			}
+			if(value.length() == 0) {
+				continue;
+			}
+			Node node = root;
+			for(int index = value.length() - 1 ; index >= 0 ; index--) {
+				node = node.addChild(toLowerCase(value.charAt(index)));
+			}
+			if(node.mode == null) {
+				node.mode = mode;
+			}
+		}
+		return wildcardMode;
+	}
+
+	private static int pathEnd(CharSequence uri) {
+		int length = uri.length();
+		for(int index = 0 ; index < length ; index++) {
+			char c = uri.charAt(index);
+			if(c == '?' || c == '#') {
+				return index;
+			}
+		}
+		return length;
+	}
+
+	private static char toLowerCase(char c) {
+		return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * trie node, the children are kept in arrays since extensions share only few characters.
+	 */
+	private static final class Node {
+
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private TransferMode mode;
+
+		Node child(char key) {
+			for(int index = 0 ; index < keys.length ; index++) {
+				if(keys[index] == key) {
+					return children[index];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char key) {
+			Node child = child(key);
+			if(child == null) {
+				child = new Node();
+				keys = Arrays.copyOf(keys,keys.length + 1);
+				children = Arrays.copyOf(children,children.length + 1);
+				keys[keys.length - 1] = key;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+}
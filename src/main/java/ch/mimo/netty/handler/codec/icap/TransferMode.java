@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+/**
+ * How a message body is transferred to an ICAP service according to the Transfer-Preview, Transfer-Ignore and
+ * Transfer-Complete headers of its OPTIONS response.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see TransferMatcher
+ */
+public enum TransferMode {
+
+	/**
+	 * the body is sent with a preview.
+	 */
+	PREVIEW(IcapHeaders.Names.TRANSFER_PREVIEW),
+	/**
+	 * the message is not sent to the service at all.
+	 */
+	IGNORE(IcapHeaders.Names.TRANSFER_IGNORE),
+	/**
+	 * the whole body is sent without preview.
+	 */
+	COMPLETE(IcapHeaders.Names.TRANSFER_COMPLETE);
+
+	private final String headerName;
+
+	TransferMode(String headerName) {
+		this.headerName = headerName;
+	}
+
+	/**
+	 * @return name of the OPTIONS header that lists the extensions of this mode.
+	 */
+	public String getHeaderName() {
+		return headerName;
+	}
+}
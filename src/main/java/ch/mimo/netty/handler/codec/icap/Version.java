@@ -0,0 +1,12 @@
+// DO NOT MODIFY - WILL BE OVERWRITTEN DURING THE BUILD PROCESS
+package ch.mimo.netty.handler.codec.icap;
+/**
+ * Provides the version information of this Project.
+ */
+public final class Version {
+ /** The version identifier. */
+ public static final String ID = "2.1.5-9cde6b6";
+ /** Prints out the version identifier to stdout. */
+ public static void main(String[] args) { System.out.println(ID); }
+ private Version() { super(); }
+}
@@ -62,6 +62,15 @@ public final class DataMockery extends Assert {
 		return buffer;
 	}
 	
+	public static final ByteBuf createLowerCaseOPTIONSRequest() throws UnsupportedEncodingException {
+		ByteBuf buffer = Unpooled.buffer();
+		addLine(buffer,"options icap://icap.mimo.ch:1344/reqmod icap/1.0 ");
+		addLine(buffer,"Host: icap.google.com:1344");
+		addLine(buffer,"Encapsulated: null-body=0");
+		addLine(buffer,null);
+		return buffer;
+	}
+	
 	public static final ByteBuf createOPTIONSRequestWithoutEncapsulatedHeader() throws UnsupportedEncodingException {
 		ByteBuf buffer = Unpooled.buffer();
 		addLine(buffer,"OPTIONS icap://icap.mimo.ch:1344/reqmod ICAP/1.0");
@@ -521,7 +530,7 @@ public final class DataMockery extends Assert {
 		ByteBuf buffer = Unpooled.buffer();
 		addLine(buffer,"RESPMOD icap://icap.mimo.ch:1344/reqmod ICAP/1.0");
 		addLine(buffer,"Host: icap-server.net");
-		addLine(buffer,"Encapsulated: res-hdr=0, req-hdr=137, null-body=296");
+		addLine(buffer,"Encapsulated: res-hdr=0, req-hdr=159, null-body=296");
 		addLine(buffer,null);
 		addLine(buffer,"HTTP/1.1 200 OK");
 		addLine(buffer,"Date: Mon, 10 Jan 2000 09:52:22 GMT");
@@ -541,7 +550,7 @@ public final class DataMockery extends Assert {
 	public static final void assertCreateRESPMODWithGetRequestNoBodyAndReverseRequestAlignement(IcapRequest message) {
 		assertEquals("Uri is wrong","icap://icap.mimo.ch:1344/reqmod",message.getUri());
 		assertHeaderValue("Host","icap-server.net",message);
-		assertHeaderValue("Encapsulated","res-hdr=0, req-hdr=137, null-body=296",message);
+		assertHeaderValue("Encapsulated","res-hdr=0, req-hdr=159, null-body=296",message);
 		assertNotNull("http request was null",message.getHttpRequest());
 		assertEquals("http request method was wrong",HttpMethod.GET,message.getHttpRequest().getMethod());
 		assertHttpMessageHeaderValue("Host","www.origin-server.com",message.getHttpRequest());
@@ -576,11 +585,29 @@ public final class DataMockery extends Assert {
 		return buffer;
 	}
 	
+	public static final ByteBuf createREQMODWithWrongEncapsulatedOffset() throws UnsupportedEncodingException {
+		ByteBuf buffer = Unpooled.buffer();
+		addLine(buffer,"REQMOD icap://icap.mimo.ch:1344/reqmod ICAP/1.0");
+		addLine(buffer,"Host: icap-server.net");
+		addLine(buffer,"Encapsulated: req-hdr=0, req-body=150");
+		addLine(buffer,null);
+		addLine(buffer,"POST / HTTP/1.1");
+		addLine(buffer,"Host: www.origin-server.com");
+		addLine(buffer,"Accept: text/html, text/plain");
+		addLine(buffer,"Accept-Encoding: compress");
+		addLine(buffer,"Cookie: ff39fk3jur@4ii0e02i");
+		addLine(buffer,"If-None-Match: \"xyzzy\", \"r2d2xxxx\"");
+		addLine(buffer,null);
+		addChunk(buffer,"This is data that was returned by an origin server.");
+		addLastChunk(buffer);
+		return buffer;
+	}
+	
 	public static final ByteBuf createREQMODWithImplicitTwoChunkBodyResponse() throws UnsupportedEncodingException {
 		ByteBuf buffer = Unpooled.buffer();
 		addLine(buffer,"ICAP/1.0 200 OK");
 		addLine(buffer,"Host: icap-server.net");
-		addLine(buffer,"Encapsulated: req-hdr=0, req-body=169");
+		addLine(buffer,"Encapsulated: req-hdr=0, req-body=171");
 		addLine(buffer,null);
 		addLine(buffer,"POST / HTTP/1.1");
 		addLine(buffer,"Host: www.origin-server.com");
@@ -599,7 +626,7 @@ public final class DataMockery extends Assert {
 		assertEquals("response was of wrong version",IcapVersion.ICAP_1_0,message.getProtocolVersion());
 		assertEquals("response had wrong code",IcapResponseStatus.OK,message.getStatus());
 		assertHeaderValue("Host","icap-server.net",message);
-		assertHeaderValue("Encapsulated","req-hdr=0, req-body=169",message);
+		assertHeaderValue("Encapsulated","req-hdr=0, req-body=171",message);
 		assertNotNull("http request was null",message.getHttpRequest());
 		assertEquals("http request method was wrong",HttpMethod.POST,message.getHttpRequest().getMethod());
 		assertHttpMessageHeaderValue("Host","www.origin-server.com",message.getHttpRequest());
@@ -947,7 +974,7 @@ public final class DataMockery extends Assert {
 		addLine(buffer,"REQMOD icap://icap.mimo.ch:1344/reqmod ICAP/1.0");
 		addLine(buffer,"Host: icap-server.net");
 		addLine(buffer,"Preview: 151");
-		addLine(buffer,"Encapsulated: req-hdr=0, req-body=169");
+		addLine(buffer,"Encapsulated: req-hdr=0, req-body=171");
 		addLine(buffer,null);
 		addLine(buffer,"POST / HTTP/1.1");
 		addLine(buffer,"Host: www.origin-server.com");
@@ -1025,7 +1052,7 @@ public final class DataMockery extends Assert {
 	public static final void assertCreateREQMODWithEarlyTerminatedPreview(IcapRequest message) {
 		assertEquals("Uri is wrong","icap://icap.mimo.ch:1344/reqmod",message.getUri());
 		assertHeaderValue("Host","icap-server.net",message);
-		assertHeaderValue("Encapsulated","req-hdr=0, req-body=169",message);
+		assertHeaderValue("Encapsulated","req-hdr=0, req-body=171",message);
 		assertHeaderValue("Preview","151",message);
 		assertNotNull("http request was null",message.getHttpRequest());
 		assertEquals("http request method was wrong",HttpMethod.POST,message.getHttpRequest().getMethod());
@@ -1055,7 +1082,7 @@ public final class DataMockery extends Assert {
 		ByteBuf buffer = Unpooled.buffer();
 		addLine(buffer,"RESPMOD icap://icap.mimo.ch:1344/reqmod ICAP/1.0");
 		addLine(buffer,"Host: icap-server.net");
-		addLine(buffer,"Encapsulated: req-hdr=0, res-hdr=137, res-body=296");
+		addLine(buffer,"Encapsulated: req-hdr=0, res-hdr=137, res-body=297");
 		addLine(buffer,"Preview: 51");
 		addLine(buffer,null);
 		addLine(buffer,"GET /origin-resource HTTP/1.1");
@@ -1079,7 +1106,7 @@ public final class DataMockery extends Assert {
 		ByteBuf buffer = Unpooled.buffer();
 		addLine(buffer,"RESPMOD icap://icap.mimo.ch:1344/reqmod ICAP/1.0");
 		addLine(buffer,"Host: icap-server.net");
-		addLine(buffer,"Encapsulated: req-hdr=0, res-hdr=137, res-body=296");
+		addLine(buffer,"Encapsulated: req-hdr=0, res-hdr=137, res-body=297");
 		addLine(buffer,"Preview: 0");
 		addLine(buffer,"Allow: 204");
 		addLine(buffer,null);
@@ -1100,7 +1127,7 @@ public final class DataMockery extends Assert {
 	
 	public static final IcapRequest createRESPMODWithGetRequestAndPreviewIncludingEncapsulationHeaderIcapRequest() {
 		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.RESPMOD,"icap://icap.mimo.ch:1344/reqmod","icap-server.net");
-		request.addHeader("Encapsulated","req-hdr=0, res-hdr=137, res-body=296");
+		request.addHeader("Encapsulated","req-hdr=0, res-hdr=137, res-body=297");
 		request.addHeader("Preview","51");
 		request.setBody(IcapMessageElementEnum.RESBODY);
 		FullHttpRequest httpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.GET,"/origin-resource");
@@ -1147,7 +1174,7 @@ public final class DataMockery extends Assert {
 	public static final void assertCreateRESPMODWithGetRequestAndPreview(IcapRequest message) {
 		assertEquals("Uri is wrong","icap://icap.mimo.ch:1344/reqmod",message.getUri());
 		assertHeaderValue("Host","icap-server.net",message);
-		assertHeaderValue("Encapsulated","req-hdr=0, res-hdr=137, res-body=296",message);
+		assertHeaderValue("Encapsulated","req-hdr=0, res-hdr=137, res-body=297",message);
 		assertHeaderValue("Preview","51",message);
 		assertNotNull("http request was null",message.getHttpRequest());
 		assertEquals("http request method was wrong",HttpMethod.GET,message.getHttpRequest().getMethod());
@@ -1167,7 +1194,7 @@ public final class DataMockery extends Assert {
 		ByteBuf buffer = Unpooled.buffer();
 		addLine(buffer,"ICAP/1.0 200 OK");
 		addLine(buffer,"Host: icap-server.net");
-		addLine(buffer,"Encapsulated: req-hdr=0, res-hdr=137, res-body=296");
+		addLine(buffer,"Encapsulated: req-hdr=0, res-hdr=137, res-body=297");
 		addLine(buffer,"Preview: 51");
 		addLine(buffer,null);
 		addLine(buffer,"GET /origin-resource HTTP/1.1");
@@ -1191,7 +1218,7 @@ public final class DataMockery extends Assert {
 		assertEquals("wrong response version",IcapVersion.ICAP_1_0,message.getProtocolVersion());
 		assertEquals("wrong resonse status",IcapResponseStatus.OK,message.getStatus());
 		assertHeaderValue("Host","icap-server.net",message);
-		assertHeaderValue("Encapsulated","req-hdr=0, res-hdr=137, res-body=296",message);
+		assertHeaderValue("Encapsulated","req-hdr=0, res-hdr=137, res-body=297",message);
 		assertHeaderValue("Preview","51",message);
 		assertNotNull("http request was null",message.getHttpRequest());
 		assertEquals("http request method was wrong",HttpMethod.GET,message.getHttpRequest().getMethod());
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecoderStatisticsTest extends AbstractIcapTest {
+
+	private DecoderStatistics statistics;
+	private EmbeddedChannel embeddedChannel;
+	
+	@Before
+	public void setUp() {
+		statistics = new DecoderStatistics();
+		IcapRequestDecoder decoder = new IcapRequestDecoder();
+		decoder.setDecoderListener(statistics);
+		embeddedChannel = new EmbeddedChannel(decoder);
+	}
+	
+	@Test
+	public void countSingleBufferMessage() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createREQMODWithTwoChunkBody();
+		int length = buffer.readableBytes();
+		embeddedChannel.writeInbound(buffer);
+		embeddedChannel.finishAndReleaseAll();
+		assertEquals("wrong amount of decoded messages",1,statistics.getMessages());
+		assertEquals("wrong amount of consumed bytes",length,sumBytes());
+		assertEquals("icap header state was not executed once",1,statistics.getExecutions(StateEnum.READ_ICAP_HEADER_STATE));
+		assertEquals("chunk state was not entered twice",2,statistics.getTransitionsInto(StateEnum.READ_CHUNK_STATE));
+		assertEquals("header state was incomplete",0,statistics.getIncompleteExecutions(StateEnum.READ_ICAP_HEADER_STATE));
+	}
+	
+	@Test
+	public void countIncompleteExecutions() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createREQMODWithTwoChunkBody();
+		int length = buffer.readableBytes();
+		while(buffer.isReadable()) {
+			embeddedChannel.writeInbound(buffer.readRetainedSlice(1));
+		}
+		buffer.release();
+		embeddedChannel.finishAndReleaseAll();
+		assertEquals("wrong amount of decoded messages",1,statistics.getMessages());
+		assertEquals("wrong amount of consumed bytes",length,sumBytes());
+		assertTrue("header state was never incomplete",statistics.getIncompleteExecutions(StateEnum.READ_ICAP_HEADER_STATE) > 0);
+		assertTrue("no time was measured",statistics.getNanos(StateEnum.READ_ICAP_HEADER_STATE) > 0);
+	}
+	
+	@Test
+	public void countIgnoredEncapsulatedOffsets() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithWrongEncapsulatedOffset());
+		embeddedChannel.finishAndReleaseAll();
+		assertEquals("wrong amount of decoded messages",1,statistics.getMessages());
+		assertEquals("ignored offset was not counted",1,statistics.getIgnoredEncapsulatedOffsets());
+	}
+	
+	@Test
+	public void validEncapsulatedOffsetsAreNotCounted() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBody());
+		embeddedChannel.finishAndReleaseAll();
+		assertEquals("valid offset was counted",0,statistics.getIgnoredEncapsulatedOffsets());
+	}
+	
+	private long sumBytes() {
+		long bytes = 0;
+		for(StateEnum state : StateEnum.values()) {
+			bytes += statistics.getBytesConsumed(state);
+		}
+		return bytes;
+	}
+}
@@ -23,7 +23,6 @@ import io.netty.buffer.Unpooled;
 import junit.framework.Assert;
 
 import io.netty.buffer.ByteBuf;
-import org.junit.Ignore;
 import org.junit.Test;
 
 public class EncapsulatedTest extends Assert {
@@ -146,7 +145,6 @@ public class EncapsulatedTest extends Assert {
 	}
 	
 	@Test
-    @Ignore("fails upstream")
 	public void testEncodeEncapsulatedHeaderWithNullBodyThatHasZeroValue() {
 		ByteBuf buffer = Unpooled.buffer();
 		Encapsulated encapsulated = new Encapsulated();
@@ -163,4 +161,65 @@ public class EncapsulatedTest extends Assert {
 		assertEquals("encoded encapsulation header was wrong","Encapsulated: req-hdr=0, res-hdr=123, null-body=0\r\n\r\n",buffer.toString(Charset.defaultCharset()));
 		assertEquals("wrong body element found",IcapMessageElementEnum.NULLBODY,encapsulated.containsBodyEntry());
 	}
+	
+	@Test
+	public void testGetPosition() {
+		Encapsulated encapsulated = new Encapsulated("req-hdr=0, res-hdr=45, res-body=124");
+		assertEquals("req-hdr position is wrong",0,encapsulated.getPosition(IcapMessageElementEnum.REQHDR));
+		assertEquals("res-hdr position is wrong",45,encapsulated.getPosition(IcapMessageElementEnum.RESHDR));
+		assertEquals("res-body position is wrong",124,encapsulated.getPosition(IcapMessageElementEnum.RESBODY));
+		assertEquals("absent entry has a position",-1,encapsulated.getPosition(IcapMessageElementEnum.REQBODY));
+	}
+	
+	@Test
+	public void testUpperCaseAndTabSeparatedValue() {
+		Encapsulated encapsulated = new Encapsulated("REQ-HDR = 0,\tNull-Body=170");
+		assertEquals("null-body position is wrong",170,encapsulated.getPosition(IcapMessageElementEnum.NULLBODY));
+		assertEquals("wrong body element found",IcapMessageElementEnum.NULLBODY,encapsulated.containsBodyEntry());
+	}
+	
+	@Test(expected = IcapDecodingError.class)
+	public void testUnknownEntry() {
+		new Encapsulated("req-hdr=0, foo-body=124");
+	}
+	
+	@Test(expected = IcapDecodingError.class)
+	public void testMissingNumber() {
+		new Encapsulated("req-hdr=0, req-body=");
+	}
+	
+	@Test(expected = IcapDecodingError.class)
+	public void testNumberOverflow() {
+		new Encapsulated("req-hdr=0, req-body=99999999999");
+	}
+	
+	@Test
+	public void testAddEntryTwiceReplacesPosition() {
+		ByteBuf buffer = Unpooled.buffer();
+		Encapsulated encapsulated = new Encapsulated();
+		encapsulated.addEntry(IcapMessageElementEnum.REQHDR,0);
+		encapsulated.addEntry(IcapMessageElementEnum.REQBODY,100);
+		encapsulated.addEntry(IcapMessageElementEnum.REQBODY,170);
+		try {
+			encapsulated.encode(buffer);
+		} catch (UnsupportedEncodingException e) {
+			fail("Encapsualted encoding failed");
+		}
+		assertEquals("encoded encapsulation header was wrong","Encapsulated: req-hdr=0, req-body=170\r\n\r\n",buffer.toString(Charset.defaultCharset()));
+		buffer.release();
+	}
+	
+	@Test
+	public void testValidateSectionLength() throws DecodingException {
+		Encapsulated encapsulated = new Encapsulated("req-hdr=0, res-hdr=137, res-body=297");
+		encapsulated.validateSectionLength(IcapMessageElementEnum.REQHDR,137);
+		encapsulated.validateSectionLength(IcapMessageElementEnum.RESHDR,160);
+		boolean error = false;
+		try {
+			encapsulated.validateSectionLength(IcapMessageElementEnum.RESHDR,159);
+		} catch(DecodingException e) {
+			error = true;
+		}
+		assertTrue("Validation error did not occur",error);
+	}
 }
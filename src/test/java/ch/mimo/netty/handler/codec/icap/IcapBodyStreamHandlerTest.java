@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IcapBodyStreamHandlerTest extends AbstractIcapTest {
+
+	private EmbeddedChannel embeddedChannel;
+
+	@Before
+	public void setUp() {
+		embeddedChannel = new EmbeddedChannel(new IcapBodyStreamHandler());
+	}
+
+	@Test
+	public void messageWithoutBodyHasNoStream() {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithGetRequestNoBodyIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		assertNull("body stream was attached",request.getBodyStream());
+	}
+
+	@Test
+	public void chunksArePublishedOnDemand() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		IcapBodyStream stream = request.getBodyStream();
+		assertNotNull("no body stream",stream);
+		assertFalse("preview stream",stream.isPreview());
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		stream.subscribe(subscriber);
+
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkTwo());
+		assertNull("chunk was passed on",embeddedChannel.readInbound());
+		assertEquals("chunks published without demand",0,subscriber.chunks.size());
+
+		subscriber.subscription.request(1);
+		assertEquals("wrong amount of published chunks",1,subscriber.chunks.size());
+		assertEquals("wrong chunk","This is data that was returned by an origin server.",subscriber.chunks.get(0));
+		assertFalse("completed too early",subscriber.completed);
+
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyChunkThreeIcapChunkTrailer());
+		subscriber.subscription.request(1);
+		assertEquals("wrong amount of published chunks",2,subscriber.chunks.size());
+		assertEquals("wrong chunk","And this the second chunk which contains more information.",subscriber.chunks.get(1));
+		assertTrue("stream not completed",subscriber.completed);
+		assertTrue("not end of message",stream.isEndOfMessage());
+		assertEquals("wrong trailing header","TrailingHeaderValue1",stream.getTrailingHeaders().get("TrailingHeaderKey1"));
+	}
+
+	@Test
+	public void readingIsPausedWithoutDemand() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		request.getBodyStream().subscribe(subscriber);
+
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		assertFalse("auto read still enabled",embeddedChannel.config().isAutoRead());
+		subscriber.subscription.request(1);
+		assertFalse("auto read enabled without outstanding demand",embeddedChannel.config().isAutoRead());
+		subscriber.subscription.request(1);
+		assertTrue("auto read not enabled again",embeddedChannel.config().isAutoRead());
+
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkTwo());
+		assertFalse("auto read still enabled",embeddedChannel.config().isAutoRead());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		assertTrue("auto read disabled after the last chunk",embeddedChannel.config().isAutoRead());
+		subscriber.subscription.request(Long.MAX_VALUE);
+		assertTrue("stream not completed",subscriber.completed);
+	}
+
+	@Test
+	public void cancelReleasesQueuedChunks() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		request.getBodyStream().subscribe(subscriber);
+
+		IcapChunk first = DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne();
+		IcapChunk second = DataMockery.createREQMODWithTwoChunkBodyIcapChunkTwo();
+		embeddedChannel.writeInbound(first);
+		subscriber.subscription.cancel();
+		assertEquals("queued chunk not released",0,first.refCnt());
+		assertTrue("auto read not enabled again",embeddedChannel.config().isAutoRead());
+		embeddedChannel.writeInbound(second);
+		assertEquals("chunk after cancel not released",0,second.refCnt());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		assertNull("chunk was passed on",embeddedChannel.readInbound());
+		assertFalse("cancelled stream completed",subscriber.completed);
+	}
+
+	@Test
+	public void secondSubscriberIsRejected() {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		request.getBodyStream().subscribe(new RecordingSubscriber());
+		RecordingSubscriber second = new RecordingSubscriber();
+		request.getBodyStream().subscribe(second);
+		assertTrue("wrong error",second.error instanceof IllegalStateException);
+	}
+
+	@Test
+	public void previewContinuesAfter100Continue() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewAnnouncementIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		IcapBodyStream preview = request.getBodyStream();
+		assertTrue("not a preview stream",preview.isPreview());
+		RecordingSubscriber previewSubscriber = new RecordingSubscriber();
+		preview.subscribe(previewSubscriber);
+		previewSubscriber.subscription.request(Long.MAX_VALUE);
+
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewLastIcapChunk());
+		assertEquals("wrong preview chunk","This is data that was returned by an origin server.",previewSubscriber.chunks.get(0));
+		assertTrue("preview not completed",previewSubscriber.completed);
+		assertFalse("preview is end of message",preview.isEndOfMessage());
+
+		RecordingSubscriber continuationSubscriber = new RecordingSubscriber();
+		preview.getContinuation().subscribe(continuationSubscriber);
+		continuationSubscriber.subscription.request(Long.MAX_VALUE);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreview100ContinueIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreview100ContinueLastIcapChunk());
+		assertEquals("wrong continuation chunk","This is the second chunk that is received when 100 continue was sent.",continuationSubscriber.chunks.get(0));
+		assertTrue("continuation not completed",continuationSubscriber.completed);
+		assertTrue("continuation is not end of message",preview.getContinuation().isEndOfMessage());
+	}
+
+	@Test
+	public void earlyTerminatedPreviewCompletesContinuation() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithEarlyTerminatedPreviewAnnouncementIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		IcapBodyStream preview = request.getBodyStream();
+		RecordingSubscriber previewSubscriber = new RecordingSubscriber();
+		preview.subscribe(previewSubscriber);
+		previewSubscriber.subscription.request(Long.MAX_VALUE);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithEarlyTerminatedPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithEarlyTerminatedPreviewLastIcapChunk());
+		assertTrue("preview not completed",previewSubscriber.completed);
+		assertTrue("early terminated preview is not end of message",preview.isEndOfMessage());
+
+		RecordingSubscriber continuationSubscriber = new RecordingSubscriber();
+		preview.getContinuation().subscribe(continuationSubscriber);
+		assertTrue("continuation not completed",continuationSubscriber.completed);
+		assertEquals("continuation published chunks",0,continuationSubscriber.chunks.size());
+	}
+
+	@Test
+	public void closedChannelFailsStream() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		request.getBodyStream().subscribe(subscriber);
+		IcapChunk chunk = DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne();
+		embeddedChannel.writeInbound(chunk);
+		embeddedChannel.close();
+		subscriber.subscription.request(1);
+		assertEquals("queued chunk not published",1,subscriber.chunks.size());
+		assertTrue("wrong error",subscriber.error instanceof ClosedChannelException);
+	}
+
+	@Test
+	public void chunksWithoutMessageArePassedOn() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		IcapChunk chunk = (IcapChunk)embeddedChannel.readInbound();
+		assertNotNull("chunk was not passed on",chunk);
+		chunk.release();
+	}
+
+	private static final class RecordingSubscriber implements Flow.Subscriber<ByteBuf> {
+
+		private Flow.Subscription subscription;
+		private final List<String> chunks = new ArrayList<String>();
+		private boolean completed;
+		private Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(ByteBuf item) {
+			chunks.add(item.toString(Charset.defaultCharset()));
+			item.release();
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+}
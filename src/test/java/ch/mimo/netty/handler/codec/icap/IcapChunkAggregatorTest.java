@@ -16,14 +16,20 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
 
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.util.ReferenceCountUtil;
 import junit.framework.Assert;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.TooLongFrameException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -73,6 +79,269 @@ public class IcapChunkAggregatorTest extends AbstractIcapTest {
 		assertEquals("body was wrong","This is a options body chunk.",buffer.toString(Charset.defaultCharset()));
 	}
 
+	@Test
+	public void aggregatorReleasesRetainedSliceChunks() throws UnsupportedEncodingException {
+		embeddedChannel = new EmbeddedChannel(new IcapRequestDecoder(4000,4000,4000,10,true),new IcapChunkAggregator(4012));
+		ByteBuf buffer = DataMockery.createREQMODWithTwoChunkBody();
+		embeddedChannel.writeInbound(buffer);
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		DataMockery.assertCreateREQMODWithTwoChunkBody(request);
+		assertEquals("body was wrong","This is data that was returned by an origin server.And this the second chunk which contains more information.",
+				request.getHttpRequest().content().toString(IcapCodecUtil.ASCII_CHARSET));
+		assertTrue("body does not share the received buffer",buffer.refCnt() > 0);
+		request.release();
+		assertEquals("received buffer was not released",0,buffer.refCnt());
+	}
+
+	@Test
+	public void aggregatorCollectsChunksWithoutCopying() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		IcapChunk chunk = DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne();
+		ByteBuf chunkContent = chunk.content();
+		embeddedChannel.writeInbound(chunk);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkTwo());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest request = readInbound();
+		ByteBuf content = request.getHttpRequest().content();
+		assertTrue("body is not a composite buffer",content instanceof CompositeByteBuf);
+		assertEquals("wrong amount of components",2,((CompositeByteBuf)content).numComponents());
+		assertEquals("chunk content was not handed over",1,chunkContent.refCnt());
+	}
+
+	@Test
+	public void aggregatorConsolidatesComponents() throws UnsupportedEncodingException {
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,2));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		for(int i = 0 ; i < 3 ; i++) {
+			embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		}
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest request = readInbound();
+		CompositeByteBuf content = (CompositeByteBuf)request.getHttpRequest().content();
+		assertTrue("components were not consolidated",content.numComponents() <= 2);
+		assertEquals("wrong body length",3 * "This is data that was returned by an origin server.".length(),content.readableBytes());
+	}
+
+	@Test
+	public void aggregatorRejectsContentLengthAboveMaximumBeforeChunks() throws UnsupportedEncodingException {
+		IcapMessage message = DataMockery.createREQMODWithTwoChunkBodyIcapMessage();
+		message.getHttpRequest().headers().set("Content-Length","5000");
+		try {
+			embeddedChannel.writeInbound(message);
+			fail("oversized content length was not rejected");
+		} catch(TooLongFrameException e) {
+			// expected
+		}
+		IcapChunk chunk = DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne();
+		embeddedChannel.writeInbound(chunk);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		assertEquals("chunk of rejected message was not released",0,chunk.refCnt());
+		assertNull("rejected message produced output",embeddedChannel.readInbound());
+		
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest request = readInbound();
+		assertEquals("body of following message is wrong","This is data that was returned by an origin server.",
+				request.getHttpRequest().content().toString(IcapCodecUtil.ASCII_CHARSET));
+	}
+
+	@Test
+	public void aggregatorPreSizesBodyFromContentLength() throws UnsupportedEncodingException {
+		int length = "This is data that was returned by an origin server.".length();
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,2));
+		IcapMessage message = DataMockery.createREQMODWithTwoChunkBodyIcapMessage();
+		message.getHttpRequest().headers().set("Content-Length",Integer.toString(3 * length));
+		embeddedChannel.writeInbound(message);
+		for(int i = 0 ; i < 3 ; i++) {
+			embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		}
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest request = readInbound();
+		ByteBuf content = request.getHttpRequest().content();
+		assertFalse("body was collected as composite",content instanceof CompositeByteBuf);
+		assertEquals("body buffer was not sized from content length",3 * length,content.capacity());
+		assertEquals("wrong body length",3 * length,content.readableBytes());
+		assertEquals("content length header is missing",Integer.toString(3 * length),request.getHttpRequest().headers().get("Content-Length"));
+	}
+
+	@Test
+	public void aggregatorKeepsCompositeForSmallContentLength() throws UnsupportedEncodingException {
+		IcapMessage message = DataMockery.createREQMODWithTwoChunkBodyIcapMessage();
+		message.getHttpRequest().headers().set("Content-Length","109");
+		embeddedChannel.writeInbound(message);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkTwo());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest request = readInbound();
+		assertTrue("body is not a composite buffer",request.getHttpRequest().content() instanceof CompositeByteBuf);
+		assertEquals("wrong body length",109,request.getHttpRequest().content().readableBytes());
+	}
+
+	@Test
+	public void aggregatorSpillsBodyAboveThreshold() throws IOException {
+		Path directory = Files.createTempDirectory("icap-spill");
+		MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,16,60,budget,directory));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		assertEquals("first chunk was not kept in memory",0,countFiles(directory));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkTwo());
+		assertEquals("body was not spilled",1,countFiles(directory));
+		assertEquals("spilled body still occupies the budget",0,budget.getUsed());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		ByteBuf content = request.getHttpRequest().content();
+		assertFalse("spilled body is a composite buffer",content instanceof CompositeByteBuf);
+		assertEquals("body was wrong","This is data that was returned by an origin server.And this the second chunk which contains more information.",
+				content.toString(IcapCodecUtil.ASCII_CHARSET));
+		request.release();
+		assertEquals("spill file was not deleted",0,countFiles(directory));
+		Files.delete(directory);
+	}
+
+	@Test
+	public void aggregatorSpillsBodyWhenBudgetIsExhausted() throws IOException {
+		Path directory = Files.createTempDirectory("icap-spill");
+		MemoryBudget budget = new MemoryBudget(60);
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,16,4000,budget,directory));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest inMemory = (IcapRequest)embeddedChannel.readInbound();
+		assertTrue("body is not kept in memory",inMemory.getHttpRequest().content() instanceof CompositeByteBuf);
+		assertEquals("wrong reserved budget",51,budget.getUsed());
+		
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		assertEquals("body was not spilled",1,countFiles(directory));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		IcapRequest spilled = (IcapRequest)embeddedChannel.readInbound();
+		assertEquals("body was wrong","This is data that was returned by an origin server.",
+				spilled.getHttpRequest().content().toString(IcapCodecUtil.ASCII_CHARSET));
+		
+		inMemory.release();
+		assertEquals("budget was not released",0,budget.getUsed());
+		spilled.release();
+		assertEquals("spill file was not deleted",0,countFiles(directory));
+		Files.delete(directory);
+	}
+
+	@Test
+	public void aggregatorSpillsAnnouncedLargeBodyRightAway() throws IOException {
+		Path directory = Files.createTempDirectory("icap-spill");
+		MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,16,60,budget,directory));
+		IcapMessage message = DataMockery.createREQMODWithTwoChunkBodyIcapMessage();
+		message.getHttpRequest().headers().set("Content-Length","109");
+		embeddedChannel.writeInbound(message);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		assertEquals("body was not spilled",1,countFiles(directory));
+		assertEquals("budget was used",0,budget.getUsed());
+		embeddedChannel.close();
+		assertEquals("spill file was not deleted on close",0,countFiles(directory));
+		Files.delete(directory);
+	}
+
+	@Test
+	public void aggregatorSpillsContinuationOfPreview() throws IOException {
+		Path directory = Files.createTempDirectory("icap-spill");
+		MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,16,60,budget,directory));
+		IcapMessage message = DataMockery.createRESPMODWithGetRequestAndPreviewIncludingEncapsulationHeaderIcapRequest();
+		message.getHttpResponse().headers().remove("Content-Length");
+		embeddedChannel.writeInbound(message);
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewLastIcapChunk());
+		IcapRequest preview = (IcapRequest)embeddedChannel.readInbound();
+		assertEquals("preview is not kept in memory",51,budget.getUsed());
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewIcapChunkFullMessageChunk());
+		assertEquals("continuation was not spilled",1,countFiles(directory));
+		assertEquals("only the passed on preview occupies the budget",51,budget.getUsed());
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewChunkTrailer());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		assertNotSame("continuation is passed on with the previewed message",preview,request);
+		assertEquals("passed on preview was changed","This is data that was returned by an origin server.",
+				preview.getHttpResponse().content().toString(IcapCodecUtil.ASCII_CHARSET));
+		ByteBuf content = request.getHttpResponse().content();
+		assertFalse("spilled body is a composite buffer",content instanceof CompositeByteBuf);
+		assertEquals("body was wrong","This is data that was returned by an origin server.And this the second chunk which contains more information.",
+				content.toString(IcapCodecUtil.ASCII_CHARSET));
+		assertTrue("preview header was not copied",request.isPreviewMessage());
+		assertEquals("http request was not copied","GET",request.getHttpRequest().method().name());
+		preview.release();
+		assertEquals("budget was not returned",0,budget.getUsed());
+		request.release();
+		assertEquals("spill file was not deleted",0,countFiles(directory));
+		Files.delete(directory);
+	}
+
+	@Test
+	public void aggregatorKeepsPassedOnPreviewWhenChannelCloses() throws IOException {
+		Path directory = Files.createTempDirectory("icap-spill");
+		MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,16,60,budget,directory));
+		IcapMessage message = DataMockery.createRESPMODWithGetRequestAndPreviewIncludingEncapsulationHeaderIcapRequest();
+		message.getHttpResponse().headers().remove("Content-Length");
+		embeddedChannel.writeInbound(message);
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewLastIcapChunk());
+		IcapRequest preview = (IcapRequest)embeddedChannel.readInbound();
+		ByteBuf content = preview.getHttpResponse().content();
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewIcapChunkFullMessageChunk());
+		assertEquals("continuation was not spilled",1,countFiles(directory));
+		embeddedChannel.close();
+		assertEquals("continuation spill file was not deleted on close",0,countFiles(directory));
+		assertEquals("passed on preview was released",1,preview.refCnt());
+		assertEquals("passed on preview body was released",1,content.refCnt());
+		assertEquals("passed on preview body was changed","This is data that was returned by an origin server.",
+				content.toString(IcapCodecUtil.ASCII_CHARSET));
+		preview.release();
+		assertEquals("passed on preview body was not released",0,content.refCnt());
+		assertEquals("budget was not returned",0,budget.getUsed());
+		Files.delete(directory);
+	}
+
+	@Test
+	public void aggregatorKeepsPassedOnPreviewWhenChannelClosesBeforeContinuation() {
+		IcapMessage message = DataMockery.createRESPMODWithGetRequestAndPreviewIncludingEncapsulationHeaderIcapRequest();
+		embeddedChannel.writeInbound(message);
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createRESPMODWithGetRequestAndPreviewLastIcapChunk());
+		IcapRequest preview = (IcapRequest)embeddedChannel.readInbound();
+		ByteBuf content = preview.getHttpResponse().content();
+		embeddedChannel.close();
+		assertEquals("passed on preview was released",1,preview.refCnt());
+		assertEquals("passed on preview body was released",1,content.refCnt());
+		preview.release();
+		assertEquals("passed on preview body was not released",0,content.refCnt());
+	}
+
+	@Test
+	public void aggregatorReleasesBudgetWhenChannelClosesMidBody() throws IOException {
+		Path directory = Files.createTempDirectory("icap-spill");
+		MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		embeddedChannel = new EmbeddedChannel(new IcapChunkAggregator(4012,false,16,4000,budget,directory));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		assertEquals("body is not kept in memory",51,budget.getUsed());
+		embeddedChannel.close();
+		assertEquals("budget was not returned",0,budget.getUsed());
+		assertEquals("spill file was created",0,countFiles(directory));
+		Files.delete(directory);
+	}
+
+	private long countFiles(Path directory) throws IOException {
+		try(Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aggregatorRejectsTooFewComponents() {
+		new IcapChunkAggregator(4012,false,1);
+	}
+
 	@Test
 	public void aggregatorREQMODWithGetRequestWithoutChunks() throws UnsupportedEncodingException {
 		embeddedChannel.writeInbound(DataMockery.createREQMODWithGetRequestNoBodyAndEncapsulationHeaderIcapMessage());
@@ -18,7 +18,17 @@ package ch.mimo.netty.handler.codec.icap;
 
 import java.io.UnsupportedEncodingException;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
 import io.netty.util.ReferenceCountUtil;
 import org.junit.Before;
 import org.junit.Test;
@@ -214,6 +224,111 @@ public class IcapChunkSeparatorTest extends AbstractIcapTest {
 		assertNotNull("chunk trailer was null",trailer);
 	}
 
+	@Test
+	public void separateREQMODWithGetRequestAndDataStreaming() {
+		embeddedChannel = new EmbeddedChannel(new IcapChunkSeparator(20,40));
+		embeddedChannel.writeOutbound(DataMockery.createREQMODWithGetRequestAndDataIcapMessage());
+		IcapMessage message = readOutbound();
+		assertNotNull("message was null",message);
+		assertEquals("message body indicator is wrong",IcapMessageElementEnum.REQBODY,message.getBodyType());
+		assertEquals("chunk 1 content is wrong","This is data that wa",((IcapChunk)readOutbound()).content().toString(IcapCodecUtil.ASCII_CHARSET));
+		assertEquals("chunk 2 content is wrong","s returned by an ori",((IcapChunk)readOutbound()).content().toString(IcapCodecUtil.ASCII_CHARSET));
+		assertEquals("chunk 3 content is wrong","gin server.",((IcapChunk)readOutbound()).content().toString(IcapCodecUtil.ASCII_CHARSET));
+		assertTrue("chunk trailer is missing",readOutbound() instanceof IcapChunkTrailer);
+		assertNull("still some elements in the pipeline",readOutbound());
+	}
+	
+	@Test
+	public void streamingFlushesAtWatermark() {
+		SlowPeer peer = new SlowPeer(false);
+		embeddedChannel = new EmbeddedChannel(peer,new IcapChunkSeparator(100,1000));
+		embeddedChannel.writeOutbound(createREQMODWithBody(10000));
+		assertEquals("wrong amount of written messages",1 + 100 + 1,peer.writes);
+		assertTrue("body was not flushed at the watermark",peer.maxUnflushedBytes <= 1000);
+		embeddedChannel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void streamingWaitsForWritability() {
+		SlowPeer peer = new SlowPeer(true);
+		embeddedChannel = new EmbeddedChannel(peer,new IcapChunkSeparator(100,100000));
+		embeddedChannel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(200,500));
+		ChannelFuture future = embeddedChannel.write(createREQMODWithBody(10000));
+		ChannelFuture next = embeddedChannel.write("queued");
+		assertTrue("body was not held back",peer.writes < 10);
+		assertFalse("channel is writable",embeddedChannel.isWritable());
+		assertFalse("write completed before the body was written",future.isDone());
+		peer.release();
+		assertEquals("wrong amount of written messages",1 + 100 + 1 + 1,peer.writes);
+		assertTrue("write was not completed",future.isSuccess());
+		assertTrue("queued write was not completed",next.isSuccess());
+		embeddedChannel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void streamingReleasesBodyWhenChannelCloses() {
+		SlowPeer peer = new SlowPeer(true);
+		embeddedChannel = new EmbeddedChannel(peer,new IcapChunkSeparator(100,100000));
+		embeddedChannel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(200,500));
+		IcapRequest request = createREQMODWithBody(10000);
+		ByteBuf content = request.getHttpRequest().content();
+		ChannelFuture future = embeddedChannel.write(request);
+		embeddedChannel.close();
+		assertFalse("write was completed",future.isSuccess());
+		assertEquals("body was not released",0,content.refCnt());
+		embeddedChannel.finishAndReleaseAll();
+	}
+	
+	private IcapRequest createREQMODWithBody(int size) {
+		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.REQMOD,"icap://icap.mimo.ch:1344/reqmod","icap-server.net");
+		request.setHttpRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.POST,"/",Unpooled.buffer(size).writeZero(size)));
+		return request;
+	}
+	
+	/**
+	 * records writes and holds flushes back while it is blocked.
+	 */
+	private static class SlowPeer extends ChannelOutboundHandlerAdapter {
+		
+		private boolean blocked;
+		private ChannelHandlerContext ctx;
+		private int writes;
+		private int unflushedBytes;
+		private int maxUnflushedBytes;
+		
+		SlowPeer(boolean blocked) {
+			this.blocked = blocked;
+		}
+		
+		@Override
+		public void handlerAdded(ChannelHandlerContext ctx) {
+			this.ctx = ctx;
+		}
+		
+		@Override
+		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+			writes++;
+			if(msg instanceof IcapChunk) {
+				unflushedBytes += ((IcapChunk)msg).content().readableBytes();
+				maxUnflushedBytes = Math.max(maxUnflushedBytes,unflushedBytes);
+			}
+			ctx.write(msg,promise);
+		}
+		
+		@Override
+		public void flush(ChannelHandlerContext ctx) {
+			if(!blocked) {
+				unflushedBytes = 0;
+				ctx.flush();
+			}
+		}
+		
+		void release() {
+			blocked = false;
+			flush(ctx);
+		}
+	}
+
 	private <T> T readOutbound() {
 		return ReferenceCountUtil.releaseLater((T) embeddedChannel.readOutbound());
 	}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IcapClientTest extends AbstractIcapTest {
+
+	private EventLoopGroup group;
+	private Channel serverChannel;
+	private LocalAddress address;
+	private ServerHandler serverHandler;
+	private IcapClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		group = new DefaultEventLoopGroup(2);
+		address = new LocalAddress("icap-client-test-" + UUID.randomUUID());
+		serverHandler = new ServerHandler();
+		serverChannel = new ServerBootstrap().group(group).channel(LocalServerChannel.class).childHandler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) {
+				ch.pipeline().addLast(new IcapRequestDecoder(),new IcapResponseEncoder(),new IcapChunkSeparator(4096),new IcapChunkAggregator(4096),serverHandler);
+			}
+		}).bind(address).sync().channel();
+		client = new IcapClient(new Bootstrap().group(group).channel(LocalChannel.class),2,4096,2000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		serverChannel.close().sync();
+		group.shutdownGracefully(0,1,TimeUnit.SECONDS).sync();
+	}
+
+	@Test
+	public void connectionIsReusedAcrossRequests() throws Exception {
+		for(int i = 0 ; i < 3 ; i++) {
+			IcapResponse response = client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS);
+			assertEquals("wrong response status",IcapResponseStatus.NO_CONTENT,response.getStatus());
+			response.release();
+		}
+		assertEquals("wrong amount of requests",3,serverHandler.requests.get());
+		assertEquals("connection was not reused",1,serverHandler.connections.get());
+	}
+
+	@Test
+	public void concurrentRequestsAreLimitedPerEndpoint() throws Exception {
+		List<CompletableFuture<IcapResponse>> futures = new ArrayList<CompletableFuture<IcapResponse>>();
+		for(int i = 0 ; i < 10 ; i++) {
+			futures.add(client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()));
+		}
+		for(CompletableFuture<IcapResponse> future : futures) {
+			future.get(5,TimeUnit.SECONDS).release();
+		}
+		assertEquals("wrong amount of requests",10,serverHandler.requests.get());
+		assertTrue("too many connections: " + serverHandler.connections.get(),serverHandler.connections.get() <= 2);
+	}
+
+	@Test
+	public void requestTimesOutAndConnectionIsReplaced() throws Exception {
+		serverHandler.silent = true;
+		CompletableFuture<IcapResponse> future = client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage(),100,TimeUnit.MILLISECONDS);
+		try {
+			future.get(5,TimeUnit.SECONDS);
+			fail("request did not time out");
+		} catch(ExecutionException e) {
+			assertTrue("wrong cause " + e.getCause(),e.getCause() instanceof TimeoutException);
+		}
+		serverHandler.silent = false;
+		client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS).release();
+		assertEquals("timed out connection was reused",2,serverHandler.connections.get());
+	}
+
+	@Test
+	public void requestTimesOutWhileWaitingForConnection() throws Exception {
+		client.setMaxConnections(address,1);
+		serverHandler.silent = true;
+		CompletableFuture<IcapResponse> first = client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage(),5,TimeUnit.SECONDS);
+		long start = System.nanoTime();
+		CompletableFuture<IcapResponse> second = client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage(),100,TimeUnit.MILLISECONDS);
+		try {
+			second.get(5,TimeUnit.SECONDS);
+			fail("waiting request did not time out");
+		} catch(ExecutionException e) {
+			assertTrue("wrong cause " + e.getCause(),e.getCause() instanceof TimeoutException);
+		}
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("request waited for the client timeout [" + waited + "] ms",waited < 1000);
+		assertFalse("request holding the connection failed",first.isDone());
+		serverHandler.silent = false;
+		first.cancel(false);
+		client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS).release();
+		assertEquals("wrong amount of requests",2,serverHandler.requests.get());
+	}
+
+	@Test
+	public void connectionCloseIsHonoured() throws Exception {
+		serverHandler.closeConnection = true;
+		client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS).release();
+		client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS).release();
+		assertEquals("closed connection was reused",2,serverHandler.connections.get());
+	}
+
+	@Test
+	public void closedConnectionFailsRequest() throws Exception {
+		serverHandler.closeWithoutResponse = true;
+		try {
+			client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS);
+			fail("request did not fail");
+		} catch(ExecutionException e) {
+			assertTrue("wrong cause " + e.getCause(),e.getCause() instanceof ClosedChannelException);
+		}
+	}
+
+	@Test
+	public void previewRequestIsRejected() throws Exception {
+		try {
+			client.send(address,(IcapRequest)DataMockery.createREQMODWithPreviewAnnouncementIcapMessage()).get(5,TimeUnit.SECONDS);
+			fail("preview request was accepted");
+		} catch(ExecutionException e) {
+			assertTrue("wrong cause " + e.getCause(),e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+	@Test
+	public void endpointIsTakenFromIcapUri() {
+		InetSocketAddress endpoint = IcapClient.getEndpoint(DataMockery.createREQMODWithGetRequestNoBodyIcapMessage());
+		assertEquals("wrong host","icap.mimo.ch",endpoint.getHostString());
+		assertEquals("wrong port",1344,endpoint.getPort());
+		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.OPTIONS,"icap://icap-server.net/options","icap-server.net");
+		assertEquals("wrong default port",IcapClient.DEFAULT_PORT,IcapClient.getEndpoint(request).getPort());
+	}
+
+	@Test
+	public void useOriginalBodyIsSplicedWithoutCopy() throws Exception {
+		serverHandler.prefix = "BANNER ";
+		serverHandler.useOriginalBody = 6;
+		IcapResponse response = client.send(address,createRESPMODRequest("Hello original world")).get(5,TimeUnit.SECONDS);
+		ByteBuf body = response.getHttpResponse().content();
+		assertEquals("wrong body","BANNER original world",body.toString(Charset.defaultCharset()));
+		assertTrue("body was copied",body instanceof CompositeByteBuf);
+		assertNull("use-original-body still set",response.getUseOriginalBody());
+		assertEquals("wrong content length",21,HttpUtil.getContentLength(response.getHttpResponse()));
+		response.release();
+	}
+
+	@Test
+	public void useOriginalBodyWithout206FailsRequest() throws Exception {
+		serverHandler.prefix = "BANNER ";
+		serverHandler.useOriginalBody = 0;
+		IcapRequest request = createRESPMODRequest("Hello original world");
+		request.removeHeader(IcapHeaders.Names.ALLOW);
+		try {
+			client.send(address,request).get(5,TimeUnit.SECONDS);
+			fail("use-original-body was accepted without Allow: 206");
+		} catch(ExecutionException e) {
+			assertTrue("wrong cause " + e.getCause(),e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void useOriginalBodyBeyondOriginalFailsRequest() throws Exception {
+		serverHandler.prefix = "BANNER ";
+		serverHandler.useOriginalBody = 100;
+		try {
+			client.send(address,createRESPMODRequest("Hello original world")).get(5,TimeUnit.SECONDS);
+			fail("invalid use-original-body offset was accepted");
+		} catch(ExecutionException e) {
+			assertTrue("wrong cause " + e.getCause(),e.getCause() instanceof IllegalStateException);
+		}
+		serverHandler.useOriginalBody = null;
+		client.send(address,DataMockery.createREQMODWithGetRequestNoBodyIcapMessage()).get(5,TimeUnit.SECONDS).release();
+		assertEquals("connection was not reused",1,serverHandler.connections.get());
+	}
+
+	private IcapRequest createRESPMODRequest(String body) {
+		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.RESPMOD,"icap://icap.mimo.ch:1344/respmod","icap.mimo.ch");
+		request.setHttpRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.GET,"/origin-resource"));
+		FullHttpResponse httpResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK,Unpooled.copiedBuffer(body,Charset.defaultCharset()));
+		request.setHttpResponse(httpResponse);
+		request.addHeader(IcapHeaders.Names.ALLOW,"206");
+		return request;
+	}
+
+	@ChannelHandler.Sharable
+	private static final class ServerHandler extends ChannelInboundHandlerAdapter {
+
+		private final AtomicInteger connections = new AtomicInteger();
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile boolean silent;
+		private volatile boolean closeConnection;
+		private volatile boolean closeWithoutResponse;
+		private volatile String prefix;
+		private volatile Integer useOriginalBody;
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			connections.incrementAndGet();
+			ctx.fireChannelActive();
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+			requests.incrementAndGet();
+			if(closeWithoutResponse) {
+				ctx.close();
+			} else if(!silent) {
+				IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.NO_CONTENT);
+				response.addHeader(IcapHeaders.Names.ISTAG,"\"client-test\"");
+				if(useOriginalBody != null) {
+					response.setHttpResponse(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK,Unpooled.copiedBuffer(prefix,Charset.defaultCharset())));
+					HttpUtil.setContentLength(response.getHttpResponse(),prefix.length());
+					response.setUseOriginalBody(useOriginalBody);
+				}
+				if(closeConnection) {
+					response.addHeader(IcapHeaders.Names.CONNECTION,"close");
+				}
+				ctx.writeAndFlush(response);
+			}
+		}
+	}
+}
@@ -15,6 +15,9 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import org.junit.Test;
 
 public class IcapCodecUtilTest extends AbstractIcapTest {
@@ -148,4 +151,15 @@ public class IcapCodecUtilTest extends AbstractIcapTest {
 		}
 		assertTrue("no exception was thrown",exception);
 	}
+	
+	@Test
+	public void writeHex() {
+		int[] values = new int[]{0,1,15,16,255,8192,65536,2 * 1024 * 1024,Integer.MAX_VALUE,-1};
+		for(int value : values) {
+			ByteBuf buffer = Unpooled.buffer();
+			IcapCodecUtil.writeHex(buffer,value);
+			assertEquals("wrong hex value",Integer.toHexString(value),buffer.toString(IcapCodecUtil.ASCII_CHARSET));
+			buffer.release();
+		}
+	}
 }
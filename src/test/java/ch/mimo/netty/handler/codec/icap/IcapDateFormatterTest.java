@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class IcapDateFormatterTest extends AbstractIcapTest {
+
+	private static final long DATE = 784111777000L;
+	
+	@Test
+	public void formatRfc1123() {
+		assertEquals("wrong date format","Sun, 06 Nov 1994 08:49:37 GMT",IcapDateFormatter.format(new Date(DATE)).toString());
+	}
+	
+	@Test
+	public void formatReusesValueWithinSameSecond() {
+		assertSame("value was not cached",IcapDateFormatter.format(DATE),IcapDateFormatter.format(DATE + 999));
+		assertEquals("wrong date format","Sun, 06 Nov 1994 08:49:38 GMT",IcapDateFormatter.format(DATE + 1000).toString());
+	}
+	
+	@Test
+	public void formatBeforeEpoch() {
+		assertEquals("wrong date format","Wed, 31 Dec 1969 23:59:59 GMT",IcapDateFormatter.format(-1).toString());
+	}
+	
+	@Test
+	public void parseRfc1123() {
+		assertEquals("wrong date",new Date(DATE),IcapDateFormatter.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+	}
+	
+	@Test
+	public void parseLegacyFormatWithTimeZone() {
+		assertEquals("wrong date",new Date(DATE),IcapDateFormatter.parse("Sun, 06 Nov 1994 09:49:37 CET"));
+	}
+	
+	@Test
+	public void parseInvalidValues() {
+		assertNull("null accepted",IcapDateFormatter.parse(null));
+		assertNull("garbage accepted",IcapDateFormatter.parse("yesterday"));
+		assertNull("invalid day accepted",IcapDateFormatter.parse("Sun, 31 Nov 1994 08:49:37 GMT"));
+		assertNull("invalid hour accepted",IcapDateFormatter.parse("Sun, 06 Nov 1994 24:49:37 GMT"));
+		assertNull("invalid month accepted",IcapDateFormatter.parse("Sun, 06 Nox 1994 08:49:37 GMT"));
+		assertNull("trailing garbage accepted",IcapDateFormatter.parse("Sun, 06 Nov 1994 08:49:37 GMT and more"));
+	}
+	
+	@Test
+	public void roundTrip() {
+		long now = System.currentTimeMillis() / 1000 * 1000;
+		assertEquals("round trip failed",new Date(now),IcapDateFormatter.parse(IcapDateFormatter.format(now)));
+	}
+}
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 
 import io.netty.buffer.Unpooled;
+import io.netty.util.AsciiString;
 import junit.framework.Assert;
 
 import io.netty.buffer.ByteBuf;
@@ -130,6 +131,50 @@ public class IcapDecoderUtilTest extends Assert {
 		assertTrue("No maximum length reached exception was thrown!",exception);
 	}
 	
+	@Test
+	public void testPreviewLineWithAdvancedReaderIndex() throws DecodingException {
+		StringBuilder builder = new StringBuilder("FIRST LINE").append(new String(IcapCodecUtil.CRLF)).append("SECOND LINE").append(new String(IcapCodecUtil.CRLF));
+		ByteBuf buffer = Unpooled.copiedBuffer(builder.toString().getBytes());
+		assertEquals("first line was not read","FIRST LINE",IcapDecoderUtil.readLine(buffer,100));
+		assertEquals("second line was not previewed","SECOND LINE",IcapDecoderUtil.previewLine(buffer,100));
+		assertEquals("reader index was changed","SECOND LINE",IcapDecoderUtil.readLine(buffer,100));
+	}
+	
+	@Test
+	public void testPreviewLineWithoutLineBreak() throws DecodingException {
+		ByteBuf buffer = Unpooled.copiedBuffer("INCOMPLETE".getBytes());
+		assertEquals("incomplete line was not previewed","INCOMPLETE",IcapDecoderUtil.previewLine(buffer,100));
+		assertEquals("reader index was changed",0,buffer.readerIndex());
+	}
+	
+	@Test
+	public void testReadLineWithoutLineBreak() throws DecodingException {
+		ByteBuf buffer = Unpooled.copiedBuffer("INCOMPLETE".getBytes());
+		boolean exception = false;
+		try {
+			IcapDecoderUtil.readLine(buffer,100);
+		} catch(IndexOutOfBoundsException e) {
+			exception = true;
+		}
+		assertTrue("incomplete line was read",exception);
+		assertEquals("reader index was changed",0,buffer.readerIndex());
+	}
+	
+	@Test
+	public void testFindLineFeed() {
+		ByteBuf buffer = Unpooled.copiedBuffer(new byte[]{'A',IcapCodecUtil.CR,IcapCodecUtil.LF,'B',IcapCodecUtil.LF});
+		assertEquals("first line feed not found",2,IcapDecoderUtil.findLineFeed(buffer,0));
+		assertEquals("second line feed not found",4,IcapDecoderUtil.findLineFeed(buffer,3));
+		assertEquals("line feed found beyond writer index",-1,IcapDecoderUtil.findLineFeed(buffer,5));
+	}
+	
+	@Test
+	public void testSkipControlCharactersOnlyWhitespaces() {
+		ByteBuf buffer = Unpooled.copiedBuffer(new byte[]{' ',IcapCodecUtil.CR,IcapCodecUtil.LF});
+		assertFalse("beginning of message found",IcapDecoderUtil.skipControlCharacters(buffer));
+		assertFalse("whitespaces were not skipped",buffer.isReadable());
+	}
+	
 	@Test
 	public void testFindNonWhitespace() {
 		String line = "  TESTSTRING";
@@ -151,6 +196,40 @@ public class IcapDecoderUtilTest extends Assert {
 		assertEquals("End of String position is wrong",23,end);
 	}
 	
+	@Test
+	public void testFindWhitespacesInBuffer() {
+		ByteBuf buffer = Unpooled.copiedBuffer("XX  TESTSTRING1\tTESTSTRING2   ".getBytes());
+		int end = buffer.writerIndex();
+		int start = IcapDecoderUtil.findNonWhitespace(buffer,2,end);
+		assertEquals("Position of first non whitespace is wrong",4,start);
+		assertEquals("Position of first whitespace is wrong",15,IcapDecoderUtil.findWhitespace(buffer,start,end));
+		assertEquals("End of content position is wrong",27,IcapDecoderUtil.findEndOfContent(buffer,start,end));
+		buffer.release();
+	}
+	
+	@Test
+	public void testFindEndOfLine() throws DecodingException {
+		ByteBuf buffer = Unpooled.copiedBuffer("ICAP/1.0 200 OK\r\n".getBytes());
+		assertEquals("End of line is wrong",15,IcapDecoderUtil.findEndOfLine(buffer,0,16,100));
+		boolean exception = false;
+		try {
+			IcapDecoderUtil.findEndOfLine(buffer,0,16,10);
+		} catch(DecodingException de) {
+			exception = true;
+		}
+		assertTrue("line length was not validated",exception);
+		buffer.release();
+	}
+	
+	@Test
+	public void testEqualsIgnoreCase() {
+		ByteBuf buffer = Unpooled.copiedBuffer("xxrespMod".getBytes());
+		assertTrue("region was not equal",IcapDecoderUtil.equalsIgnoreCase(buffer,2,7,new AsciiString("RESPMOD")));
+		assertFalse("region of different length was equal",IcapDecoderUtil.equalsIgnoreCase(buffer,2,6,new AsciiString("RESPMOD")));
+		assertFalse("different region was equal",IcapDecoderUtil.equalsIgnoreCase(buffer,2,7,new AsciiString("RESPMOX")));
+		buffer.release();
+	}
+	
 	@Test
 	public void testParseInitialLine() {
 		String initialLine = "REQMOD icap://icap.mimo.ch:1344/reqmod ICAP/1.0";
@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 
 import org.junit.Test;
 
@@ -152,7 +153,7 @@ public class IcapHeaderTest extends AbstractIcapTest {
 		values.add("JOGGEL13");
 		headers.setHeader("MIMO",values);
 		assertEquals("unexpected value for header","JOGGEL11",headers.getHeader("MIMO"));
-		Set<String> headerValues = headers.getHeaders("MIMO");
+		List<String> headerValues = headers.getHeaders("MIMO");
 		assertEquals("wrong number of values",3,values.size());
 		Iterator<String> valueIterator = headerValues.iterator();
 		assertEquals("wrong value","JOGGEL11",valueIterator.next());
@@ -178,7 +179,7 @@ public class IcapHeaderTest extends AbstractIcapTest {
 		headers.addHeader("MIMO2","JOGGEL22");
 		headers.addHeader("MIMO2","JOGGEL23");
 		headers.addHeader("MIMO3","JOGGEL2");
-		Set<String> values = headers.getHeaders("MIMO2");
+		List<String> values = headers.getHeaders("MIMO2");
 		assertEquals("wrong number of values",3,values.size());
 		Iterator<String> valueIterator = values.iterator();
 		assertEquals("wrong value","JOGGEL21",valueIterator.next());
@@ -186,6 +187,86 @@ public class IcapHeaderTest extends AbstractIcapTest {
 		assertEquals("wrong value","JOGGEL23",valueIterator.next());
 	}
 	
+	@Test
+	public void getDuplicateHeaderValues() {
+		IcapHeaders headers = new IcapHeaders();
+		headers.addHeader("MIMO","JOGGEL");
+		headers.addHeader("mimo","JOGGEL");
+		headers.addHeader("Mimo","JOGGEL1");
+		List<String> values = headers.getHeaders("MIMO");
+		assertEquals("duplicate values were dropped",3,values.size());
+		assertEquals("wrong value","JOGGEL",values.get(0));
+		assertEquals("wrong value","JOGGEL",values.get(1));
+		assertEquals("wrong value","JOGGEL1",values.get(2));
+	}
+	
+	@Test
+	public void removeHeaderKeepsInsertionOrderOfOthers() {
+		IcapHeaders headers = new IcapHeaders();
+		for(int i = 0 ; i < 40 ; i++) {
+			headers.addHeader("MIMO" + i,"JOGGEL" + i);
+			headers.addHeader("SHARED","VALUE" + i);
+		}
+		headers.removeHeader("shared");
+		assertEquals("wrong amount of headers",40,headers.size());
+		assertNull("removed header still present",headers.getHeader("SHARED"));
+		int index = 0;
+		for(Map.Entry<String, String> entry : headers) {
+			assertEquals("wrong header order","MIMO" + index,entry.getKey());
+			assertEquals("wrong header value","JOGGEL" + index,headers.getHeader(entry.getKey().toLowerCase()));
+			index++;
+		}
+		assertEquals("wrong amount of iterated headers",40,index);
+	}
+	
+	@Test
+	public void clearAndReuse() {
+		IcapHeaders headers = new IcapHeaders();
+		headers.addHeader("MIMO","JOGGEL");
+		headers.clearHeaders();
+		assertEquals("headers not cleared",0,headers.getHeaders().size());
+		headers.addHeader("MIMO","JOGGEL1");
+		assertEquals("wrong header value","JOGGEL1",headers.getHeader("MIMO"));
+		assertEquals("wrong amount of headers",1,headers.getHeaders().size());
+	}
+	
+	@Test
+	public void cachedPreviewValueIsInvalidated() {
+		IcapHeaders headers = new IcapHeaders();
+		assertEquals("preview without header",-1,headers.getPreviewHeaderValue());
+		headers.addHeader("preview","10");
+		assertEquals("preview value not updated after add",10,headers.getPreviewHeaderValue());
+		headers.setHeader(IcapHeaders.Names.PREVIEW,"20");
+		assertEquals("preview value not updated after set",20,headers.getPreviewHeaderValue());
+		headers.removeHeader("PREVIEW");
+		assertEquals("preview value not updated after remove",-1,headers.getPreviewHeaderValue());
+		headers.addHeader(IcapHeaders.Names.PREVIEW,"30");
+		headers.clearHeaders();
+		assertEquals("preview value not updated after clear",-1,headers.getPreviewHeaderValue());
+	}
+	
+	@Test
+	public void cachedIstagValueIsInvalidated() {
+		IcapHeaders headers = new IcapHeaders();
+		assertNull("ISTag without header",headers.getIstagHeaderValue());
+		headers.addHeader(IcapHeaders.Names.ISTAG,"\"TAG-1\"");
+		assertEquals("wrong ISTag value","\"TAG-1\"",headers.getIstagHeaderValue());
+		headers.setHeader("istag","\"TAG-2\"");
+		assertEquals("ISTag value not updated after set","\"TAG-2\"",headers.getIstagHeaderValue());
+	}
+	
+	@Test
+	public void cachedAllow204IsInvalidated() {
+		IcapHeaders headers = new IcapHeaders();
+		assertFalse("Allow 204 without header",headers.isAllow204());
+		headers.addHeader(IcapHeaders.Names.ALLOW,"trailers");
+		assertFalse("Allow 204 without 204 token",headers.isAllow204());
+		headers.addHeader(IcapHeaders.Names.ALLOW,"206, 204");
+		assertTrue("Allow 204 not found in second header",headers.isAllow204());
+		headers.removeHeader(IcapHeaders.Names.ALLOW);
+		assertFalse("Allow 204 not updated after remove",headers.isAllow204());
+	}
+	
 	@Test
 	public void retrieveHeaderNames() {
 		IcapHeaders headers = new IcapHeaders();
@@ -319,6 +400,7 @@ public class IcapHeaderTest extends AbstractIcapTest {
 		headers.addDateHeader(IcapHeaders.Names.DATE,date);
 		String dateValue = headers.getHeader(IcapHeaders.Names.DATE);
 		SimpleDateFormat format = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z",Locale.ENGLISH);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
 		assertEquals("Date is not as expected",format.format(date),dateValue);
 	}
 	
@@ -330,6 +412,19 @@ public class IcapHeaderTest extends AbstractIcapTest {
 		Date returnedDate = headers.getDateHeader(IcapHeaders.Names.DATE);
 		assertNotNull("The returned date was null",returnedDate);
 	}
+	
+	@Test
+	public void getInvalidDateHeader() {
+		IcapHeaders headers = new IcapHeaders();
+		headers.addHeader(IcapHeaders.Names.DATE,"yesterday");
+		boolean exception = false;
+		try {
+			headers.getDateHeader(IcapHeaders.Names.DATE);
+		} catch(IllegalArgumentException iae) {
+			exception = true;
+		}
+		assertTrue("invalid date was accepted",exception);
+	}
 
 	@Test
 	public void removeAddHead() {
@@ -343,4 +438,20 @@ public class IcapHeaderTest extends AbstractIcapTest {
 		assertTrue("Header 'FOO' should exist (2)", headers.containsHeader("foo"));
 		assertEquals("Header 'FOO' should be 'baz'", "baz", headers.getHeader("foo"));
 	}
+
+	@Test
+	public void iterateRawHeaderValues() {
+		IcapHeaders headers = new IcapHeaders();
+		Date date = new Date(1000000000000L);
+		headers.addHeader("MIMO","JOGGEL");
+		headers.addDateHeader(IcapHeaders.Names.DATE,date);
+		Iterator<Map.Entry<String,CharSequence>> iterator = headers.iteratorCharSequence();
+		Map.Entry<String,CharSequence> entry = iterator.next();
+		assertEquals("wrong name","MIMO",entry.getKey());
+		assertEquals("wrong value","JOGGEL",entry.getValue().toString());
+		entry = iterator.next();
+		assertEquals("wrong name",IcapHeaders.Names.DATE,entry.getKey());
+		assertSame("cached date value was copied",IcapDateFormatter.format(date),entry.getValue());
+		assertFalse("more headers",iterator.hasNext());
+	}
 }
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Test;
+
+/**
+ * Feeds messages split at every possible byte boundary into the decoders and validates
+ * that the produced messages are identical to the ones decoded from a single buffer.
+ */
+public class IcapMessageDecoderFragmentationTest extends AbstractIcapTest {
+
+	private EmbeddedChannel embeddedChannel;
+
+	@Test
+	public void decodeOPTIONSRequestSplitAtEveryByte() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createOPTIONSRequest();
+		for(int split = 1 ; split < buffer.readableBytes() ; split++) {
+			writeSplit(new IcapRequestDecoder(),buffer,split);
+			DataMockery.assertCreateOPTIONSRequest((IcapRequest)readInbound());
+			assertNull("unexpected message at split " + split,embeddedChannel.readInbound());
+		}
+		buffer.release();
+	}
+
+	@Test
+	public void decodeWhiteSpacePrefixedOPTIONSRequestByteByByte() throws UnsupportedEncodingException {
+		writeByteByByte(new IcapRequestDecoder(),DataMockery.createWhiteSpacePrefixedOPTIONSRequest());
+		DataMockery.assertCreateWhiteSpacePrefixedOPTIONSRequest((IcapRequest)readInbound());
+	}
+
+	@Test
+	public void decodeRESPMODRequestWithNullBodySplitAtEveryByte() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createRESPMODWithGetRequestNoBody();
+		for(int split = 1 ; split < buffer.readableBytes() ; split++) {
+			writeSplit(new IcapRequestDecoder(),buffer,split);
+			DataMockery.assertCreateRESPMODWithGetRequestNoBody((IcapRequest)readInbound());
+			assertNull("unexpected message at split " + split,embeddedChannel.readInbound());
+		}
+		buffer.release();
+	}
+
+	@Test
+	public void decodeREQMODRequestWithTwoChunkBodyAndTrailingHeadersSplitAtEveryByte() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createREQMODWithTwoChunkBodyAndTrailingHeaders();
+		for(int split = 1 ; split < buffer.readableBytes() ; split++) {
+			writeSplit(new IcapRequestDecoder(),buffer,split);
+			DataMockery.assertCreateREQMODWithTwoChunkBody((IcapRequest)readInbound());
+			DataMockery.assertCreateREQMODWithTwoChunkBodyFirstChunk((IcapChunk)readInbound());
+			DataMockery.assertCreateREQMODWithTwoChunkBodySecondChunk((IcapChunk)readInbound());
+			DataMockery.assertCreateREQMODWithTwoChunkBodyTrailingHeaderChunk((IcapChunkTrailer)readInbound());
+			assertNull("unexpected message at split " + split,embeddedChannel.readInbound());
+		}
+		buffer.release();
+	}
+
+	@Test
+	public void decodeREQMODRequestWithPreviewSplitAtEveryByte() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createREQMODWithPreview();
+		for(int split = 1 ; split < buffer.readableBytes() ; split++) {
+			writeSplit(new IcapRequestDecoder(),buffer,split);
+			DataMockery.assertCreateREQMODWithPreview((IcapRequest)readInbound());
+			DataMockery.assertCreateREQMODWithPreviewChunk((IcapChunk)readInbound());
+			DataMockery.assertCreateREQMODWithPreviewChunkLastChunk((IcapChunk)readInbound());
+			assertNull("unexpected message at split " + split,embeddedChannel.readInbound());
+		}
+		buffer.release();
+	}
+
+	@Test
+	public void decodeREQMODRequestWithEarlyTerminatedPreviewByteByByte() throws UnsupportedEncodingException {
+		writeByteByByte(new IcapRequestDecoder(),DataMockery.createREQMODWithEarlyTerminatedPreview());
+		assertNotNull("The decoded icap request instance is null",readInbound());
+		DataMockery.assertCreateREQMODWithEarlyTerminatedPreview((IcapChunk)readInbound());
+		DataMockery.assertCreateREQMODWithEarlyTerminatedPreviewLastChunk((IcapChunk)readInbound());
+	}
+
+	@Test
+	public void decodeOPTIONSResponseSplitAtEveryByte() throws UnsupportedEncodingException {
+		ByteBuf buffer = DataMockery.createOPTIONSResponse();
+		for(int split = 1 ; split < buffer.readableBytes() ; split++) {
+			writeSplit(new IcapResponseDecoder(),buffer,split);
+			DataMockery.assertOPTIONSResponse((IcapResponse)readInbound());
+			assertNull("unexpected message at split " + split,embeddedChannel.readInbound());
+		}
+		buffer.release();
+	}
+
+	@Test
+	public void decodeREQMODResponseContainingHttpResponseByteByByte() throws UnsupportedEncodingException {
+		writeByteByByte(new IcapResponseDecoder(),DataMockery.createREQMODResponseContainingHttpResponse());
+		DataMockery.assertREQMODResponseContainingHttpResponse((IcapResponse)readInbound());
+	}
+
+	private void writeSplit(ChannelHandler decoder, ByteBuf buffer, int split) {
+		embeddedChannel = new EmbeddedChannel(decoder);
+		embeddedChannel.writeInbound(buffer.retainedSlice(buffer.readerIndex(),split));
+		embeddedChannel.writeInbound(buffer.retainedSlice(buffer.readerIndex() + split,buffer.readableBytes() - split));
+	}
+
+	private void writeByteByByte(ChannelHandler decoder, ByteBuf buffer) {
+		embeddedChannel = new EmbeddedChannel(decoder);
+		while(buffer.isReadable()) {
+			embeddedChannel.writeInbound(buffer.readRetainedSlice(1));
+		}
+		buffer.release();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T readInbound() {
+		return ReferenceCountUtil.releaseLater((T)embeddedChannel.readInbound());
+	}
+}
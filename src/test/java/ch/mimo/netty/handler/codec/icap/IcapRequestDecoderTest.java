@@ -17,7 +17,9 @@ package ch.mimo.netty.handler.codec.icap;
 
 import java.io.UnsupportedEncodingException;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
 import io.netty.util.ReferenceCountUtil;
 import org.junit.Before;
 import org.junit.Test;
@@ -80,6 +82,16 @@ public class IcapRequestDecoderTest extends AbstractIcapTest {
 		DataMockery.assertCreateOPTIONSRequest(result);
 	}
 	
+	@Test
+	public void decodeLowerCaseOPTIONSRequest() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createLowerCaseOPTIONSRequest());
+		IcapRequest result = readInbound();
+		assertNotNull("The decoded icap request instance is null",result);
+		assertSame("wrong method",IcapMethod.OPTIONS,result.getMethod());
+		assertSame("wrong version",IcapVersion.ICAP_1_0,result.getProtocolVersion());
+		DataMockery.assertCreateOPTIONSRequest(result);
+	}
+	
 	@Test
 	public void decodeOPTIONSRequestWithoutEncapsulatedHeader() throws UnsupportedEncodingException {
 		embeddedChannel.writeInbound(DataMockery.createOPTIONSRequestWithoutEncapsulatedHeader());
@@ -237,6 +249,35 @@ public class IcapRequestDecoderTest extends AbstractIcapTest {
 		assertTrue("last chunk is not marked as such",chunk13.isLast());
 	}
 	
+	@Test
+	public void decodeREQMODRequestWithTwoChunkBodyAsRetainedSlices() throws UnsupportedEncodingException {
+		embeddedChannel = new EmbeddedChannel(new IcapRequestDecoder(4000,4000,4000,4000,true));
+		ByteBuf buffer = DataMockery.createREQMODWithTwoChunkBody();
+		embeddedChannel.writeInbound(buffer);
+		DataMockery.assertCreateREQMODWithTwoChunkBody((IcapRequest)readInbound());
+		IcapChunk chunk1 = readInbound();
+		DataMockery.assertCreateREQMODWithTwoChunkBodyFirstChunk(chunk1);
+		assertSame("chunk content is not a slice of the received buffer",buffer,chunk1.content().unwrap());
+		IcapChunk chunk2 = readInbound();
+		DataMockery.assertCreateREQMODWithTwoChunkBodySecondChunk(chunk2);
+		assertSame("chunk content is not a slice of the received buffer",buffer,chunk2.content().unwrap());
+		DataMockery.assertCreateREQMODWithTwoChunkBodyThirdChunk((IcapChunk)readInbound());
+	}
+	
+	@Test
+	public void decodeREQMODWithGetRequestAndHugeChunkAsRetainedSlices() throws UnsupportedEncodingException {
+		embeddedChannel = new EmbeddedChannel(new IcapRequestDecoder(4000,4000,4000,10,true));
+		ByteBuf buffer = DataMockery.createREQMODWithTwoChunkBody();
+		embeddedChannel.writeInbound(buffer);
+		DataMockery.assertCreateREQMODWithTwoChunkBody((IcapRequest)readInbound());
+		IcapChunk chunk1 = readInbound();
+		assertEquals("chunk 1 has wrong contents","This is da",chunk1.content().toString(IcapCodecUtil.ASCII_CHARSET));
+		assertSame("chunk content is not a slice of the received buffer",buffer,chunk1.content().unwrap());
+		IcapChunk chunk2 = readInbound();
+		assertEquals("chunk 2 has wrong contents","ta that wa",chunk2.content().toString(IcapCodecUtil.ASCII_CHARSET));
+		assertSame("chunk content is not a slice of the received buffer",buffer,chunk2.content().unwrap());
+	}
+	
 	@Test
 	public void decodeRESPMODWithGetRequestAndPreviewAndHugeChunk() throws UnsupportedEncodingException {
 	    embeddedChannel = new EmbeddedChannel(new IcapRequestDecoder(4000,4000,4000,10));
@@ -368,6 +409,37 @@ public class IcapRequestDecoderTest extends AbstractIcapTest {
 		assertEquals("wrong request method",IcapMethod.OPTIONS,optionsRequest.getMethod());
 	}
 
+	@Test
+	public void decodeREQMODRequestWithWrongEncapsulatedOffset() throws UnsupportedEncodingException {
+		IcapRequestDecoder decoder = new IcapRequestDecoder();
+		decoder.setStrictEncapsulatedOffsets(true);
+		embeddedChannel = new EmbeddedChannel(decoder);
+		boolean error = false;
+		try {
+			embeddedChannel.writeInbound(DataMockery.createREQMODWithWrongEncapsulatedOffset());
+		} catch(DecoderException de) {
+			error = de.getCause() instanceof DecodingException;
+		}
+		assertTrue("Encapsulated offset validation did not fail",error);
+		assertNull("message of the rejected request was passed on",embeddedChannel.readInbound());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBody());
+		IcapRequest result = readInbound();
+		DataMockery.assertCreateREQMODWithTwoChunkBody(result);
+		DataMockery.assertCreateREQMODWithTwoChunkBodyFirstChunk((IcapChunk)readInbound());
+		DataMockery.assertCreateREQMODWithTwoChunkBodySecondChunk((IcapChunk)readInbound());
+		DataMockery.assertCreateREQMODWithTwoChunkBodyThirdChunk((IcapChunk)readInbound());
+	}
+
+	@Test
+	public void decodeREQMODRequestWithWrongEncapsulatedOffsetLeniently() throws UnsupportedEncodingException {
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithWrongEncapsulatedOffset());
+		IcapRequest result = readInbound();
+		assertNotNull("request with wrong offset was rejected",result);
+		assertEquals("wrong http method","POST",result.getHttpRequest().method().name());
+		IcapChunk chunk = readInbound();
+		assertEquals("chunk content is wrong","This is data that was returned by an origin server.",chunk.content().toString(IcapCodecUtil.ASCII_CHARSET));
+	}
+
 	private <T> T readInbound() {
 		return ReferenceCountUtil.releaseLater((T)embeddedChannel.readInbound());
 	}
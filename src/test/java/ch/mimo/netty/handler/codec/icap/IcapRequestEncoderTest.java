@@ -145,6 +145,20 @@ public class IcapRequestEncoderTest extends AbstractEncoderTest {
 		assertTrue("No Encapsulated header found",buffer.toString(Charset.defaultCharset()).indexOf("Encapsulated") > 0);
 	}
 
+	@Test
+	public void encodeRESPMODWithHttpRequestAndResponseAndDecodeItWithValidatedOffsets() {
+		embeddedChannel.writeOutbound(DataMockery.createRESPMODWithGetRequestAndPreviewIncludingEncapsulationHeaderIcapRequest());
+		ByteBuf buffer = embeddedChannel.readOutbound();
+		EmbeddedChannel decoderChannel = new EmbeddedChannel(new IcapRequestDecoder());
+		decoderChannel.writeInbound(buffer);
+		IcapRequest request = ReferenceCountUtil.releaseLater((IcapRequest)decoderChannel.readInbound());
+		assertNotNull("no request decoded",request);
+		assertEquals("wrong encapsulated header","req-hdr=0, res-hdr=137, res-body=297",request.getHeader(IcapHeaders.Names.ENCAPSULATED));
+		assertEquals("wrong http request uri","/origin-resource",request.getHttpRequest().uri());
+		assertEquals("wrong http response header","151",request.getHttpResponse().headers().get("Content-Length"));
+		decoderChannel.finishAndReleaseAll();
+	}
+
 	private <T> T readOutbound() {
 		return ReferenceCountUtil.releaseLater((T)embeddedChannel.readOutbound());
 	}
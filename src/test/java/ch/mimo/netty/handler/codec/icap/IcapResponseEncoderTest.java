@@ -16,6 +16,9 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.util.ReferenceCountUtil;
 import org.junit.Before;
@@ -137,6 +140,94 @@ public class IcapResponseEncoderTest extends AbstractEncoderTest {
 		assertResponse(DataMockery.createREQMODWithPartialContentReplacingOriginalBodyTrailerEncodedChunkTrailer(), trailer);
 	}
 
+	@Test
+	public void encodeWithEncoderListener() throws UnsupportedEncodingException {
+		final int[] written = new int[1];
+		final Object[] encoded = new Object[1];
+		IcapResponseEncoder encoder = new IcapResponseEncoder();
+		encoder.setEncoderListener(new EncoderListener() {
+			@Override
+			public void encoded(Object msg, int bytesWritten, long nanos) {
+				encoded[0] = msg;
+				written[0] += bytesWritten;
+			}
+		});
+		embeddedChannel = new EmbeddedChannel(encoder);
+		IcapResponse message = DataMockery.create100ContinueIcapResponse();
+		embeddedChannel.writeOutbound(message);
+		String response = getBufferContent(readOutbound());
+		assertSame("listener was not called with the message",message,encoded[0]);
+		assertEquals("wrong amount of written bytes",response.length(),written[0]);
+	}
+
+	@Test
+	public void encodeLargeMessageWithoutBufferExpansion() throws UnsupportedEncodingException {
+		IcapResponseEncoder encoder = new IcapResponseEncoder();
+		embeddedChannel = new EmbeddedChannel(encoder);
+		IcapResponse message = DataMockery.createREQMODWithDataIcapResponse();
+		for(int i = 0 ; i < 100 ; i++) {
+			message.addHeader("X-Header-" + i,"a rather long header value that makes the message grow beyond the default capacity");
+			message.getHttpRequest().headers().add("X-Http-Header-" + i,"another rather long header value for the http section");
+		}
+		embeddedChannel.writeOutbound(message);
+		ByteBuf encoded = readOutbound();
+		assertTrue("message is too small for this test",encoded.readableBytes() > 10000);
+		embeddedChannel.writeOutbound(DataMockery.createREQMODWithTwoChunkBodyChunkThreeIcapChunkTrailer());
+		readOutbound();
+		assertEquals("output buffer was expanded",0,encoder.getBufferExpansions());
+	}
+
+	@Test
+	public void encodeSmallChunkIntoSingleBuffer() {
+		ByteBuf content = Unpooled.copiedBuffer("This is data that was returned by an origin server.",IcapCodecUtil.ASCII_CHARSET);
+		embeddedChannel.writeOutbound(new DefaultIcapChunk(content));
+		ByteBuf encoded = (ByteBuf)embeddedChannel.readOutbound();
+		assertFalse("small chunk was encoded as composite buffer",encoded instanceof CompositeByteBuf);
+		assertEquals("chunk content was not released",0,content.refCnt());
+		assertEquals("encoded chunk is wrong","33\r\nThis is data that was returned by an origin server.\r\n",encoded.toString(IcapCodecUtil.ASCII_CHARSET));
+		encoded.release();
+	}
+
+	@Test
+	public void encodeLargeChunkWithoutCopyingContent() {
+		ByteBuf content = Unpooled.buffer(IcapMessageEncoder.DEFAULT_CHUNK_COPY_THRESHOLD).writeZero(IcapMessageEncoder.DEFAULT_CHUNK_COPY_THRESHOLD);
+		embeddedChannel.writeOutbound(new DefaultIcapChunk(content));
+		ByteBuf encoded = (ByteBuf)embeddedChannel.readOutbound();
+		assertTrue("chunk was not encoded as composite buffer",encoded instanceof CompositeByteBuf);
+		assertEquals("chunk content is not shared",1,content.refCnt());
+		assertEquals("encoded chunk size line is wrong","4000\r\n",encoded.toString(0,6,IcapCodecUtil.ASCII_CHARSET));
+		assertEquals("encoded chunk length is wrong",6 + IcapMessageEncoder.DEFAULT_CHUNK_COPY_THRESHOLD + 2,encoded.readableBytes());
+		encoded.release();
+		assertEquals("chunk content was not released",0,content.refCnt());
+	}
+
+	@Test
+	public void encodeChunkWithoutCopyingContent() {
+		IcapResponseEncoder encoder = new IcapResponseEncoder();
+		encoder.setChunkCopyThreshold(0);
+		embeddedChannel = new EmbeddedChannel(encoder);
+		ByteBuf content = Unpooled.copiedBuffer("This is data that was returned by an origin server.",IcapCodecUtil.ASCII_CHARSET);
+		embeddedChannel.writeOutbound(new DefaultIcapChunk(content));
+		ByteBuf encoded = (ByteBuf)embeddedChannel.readOutbound();
+		assertTrue("chunk was not encoded as composite buffer",encoded instanceof CompositeByteBuf);
+		assertEquals("chunk content is not shared",1,content.refCnt());
+		assertEquals("encoded chunk is wrong","33\r\nThis is data that was returned by an origin server.\r\n",encoded.toString(IcapCodecUtil.ASCII_CHARSET));
+		encoded.release();
+		assertEquals("chunk content was not released",0,content.refCnt());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectNegativeChunkCopyThreshold() {
+		new IcapResponseEncoder().setChunkCopyThreshold(-1);
+	}
+	
+	@Test
+	public void passThroughUnknownMessage() {
+		ByteBuf buffer = Unpooled.copiedBuffer("raw",IcapCodecUtil.ASCII_CHARSET);
+		embeddedChannel.writeOutbound(buffer);
+		assertSame("unknown message was not passed through",buffer,readOutbound());
+	}
+
 	private <T> T readOutbound() {
 		return ReferenceCountUtil.releaseLater((T)embeddedChannel.readOutbound());
 	}
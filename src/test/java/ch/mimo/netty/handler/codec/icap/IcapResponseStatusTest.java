@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+public class IcapResponseStatusTest extends AbstractIcapTest {
+
+	@Test
+	public void fromCodeResolvesEveryStatus() {
+		for(IcapResponseStatus status : IcapResponseStatus.values()) {
+			assertSame("wrong status for code " + status.getCode(),status,IcapResponseStatus.fromCode(status.getCode()));
+			assertSame("wrong status for code " + status.getCode(),status,IcapResponseStatus.fromCode(Integer.toString(status.getCode())));
+		}
+	}
+	
+	@Test
+	public void multiStatusAndMultipleChoicesHaveDistinctCodes() {
+		assertEquals("wrong multi status code",207,IcapResponseStatus.MULTI_STATUS.getCode());
+		assertEquals("wrong multiple choices code",300,IcapResponseStatus.MULTIPLE_CHIOCES.getCode());
+		assertSame("wrong status for 207",IcapResponseStatus.MULTI_STATUS,IcapResponseStatus.fromCode(207));
+	}
+	
+	@Test
+	public void fromUnknownCode() {
+		boolean exception = false;
+		try {
+			IcapResponseStatus.fromCode(299);
+		} catch(IllegalArgumentException iae) {
+			exception = true;
+		}
+		assertTrue("no iae was thrown",exception);
+	}
+	
+	@Test
+	public void fromInvalidCodeString() {
+		boolean exception = false;
+		try {
+			IcapResponseStatus.fromCode("2O4");
+		} catch(IllegalArgumentException iae) {
+			exception = true;
+		}
+		assertTrue("no iae was thrown",exception);
+	}
+	
+	@Test
+	public void fromCodeInBuffer() {
+		ByteBuf buffer = Unpooled.copiedBuffer("ICAP/1.0 204 No Content".getBytes(IcapCodecUtil.ASCII_CHARSET));
+		assertSame("wrong status",IcapResponseStatus.NO_CONTENT,IcapResponseStatus.fromCode(buffer,9,3));
+		boolean exception = false;
+		try {
+			IcapResponseStatus.fromCode(buffer,9,4);
+		} catch(IllegalArgumentException iae) {
+			exception = true;
+		}
+		assertTrue("no iae was thrown",exception);
+		buffer.release();
+	}
+	
+	@Test
+	public void encodeInitialLine() {
+		ByteBuf buffer = Unpooled.buffer();
+		IcapResponseStatus.NO_CONTENT.toIcap10ResponseInitialLine(buffer);
+		assertEquals("wrong initial line","ICAP/1.0 204 No Content\r\n",buffer.toString(IcapCodecUtil.ASCII_CHARSET));
+		buffer.release();
+	}
+}
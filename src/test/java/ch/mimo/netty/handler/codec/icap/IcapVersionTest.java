@@ -15,6 +15,9 @@
  ******************************************************************************/
 package ch.mimo.netty.handler.codec.icap;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import org.junit.Test;
 
 public class IcapVersionTest extends AbstractIcapTest {
@@ -45,4 +48,19 @@ public class IcapVersionTest extends AbstractIcapTest {
 		}
 		assertTrue("no iae was thrown",exception);
 	}
+	
+	@Test
+	public void getValueOfBuffer() {
+		ByteBuf buffer = Unpooled.copiedBuffer("200 icap/1.0".getBytes(IcapCodecUtil.ASCII_CHARSET));
+		assertSame("no version found",IcapVersion.ICAP_1_0,IcapVersion.valueOf(buffer,4,8));
+		buffer.release();
+	}
+	
+	@Test
+	public void getValueOfBufferWithOtherVersion() {
+		ByteBuf buffer = Unpooled.copiedBuffer("ICAP/1.1".getBytes(IcapCodecUtil.ASCII_CHARSET));
+		IcapVersion version = IcapVersion.valueOf(buffer,0,8);
+		assertEquals("wrong minor version",1,version.getMinorVersion());
+		buffer.release();
+	}
 }
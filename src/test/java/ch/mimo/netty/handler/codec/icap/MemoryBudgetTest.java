@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest extends AbstractIcapTest {
+
+	@Test
+	public void reserveWithinLimit() {
+		MemoryBudget budget = new MemoryBudget(100);
+		assertTrue("reservation within the limit failed",budget.tryReserve(60));
+		assertTrue("reservation up to the limit failed",budget.tryReserve(40));
+		assertEquals("wrong used amount",100,budget.getUsed());
+	}
+
+	@Test
+	public void rejectReservationAboveLimit() {
+		MemoryBudget budget = new MemoryBudget(100);
+		assertTrue("reservation within the limit failed",budget.tryReserve(60));
+		assertFalse("reservation above the limit succeeded",budget.tryReserve(41));
+		assertEquals("rejected reservation changed the used amount",60,budget.getUsed());
+	}
+
+	@Test
+	public void releaseMakesMemoryAvailableAgain() {
+		MemoryBudget budget = new MemoryBudget(100);
+		budget.tryReserve(100);
+		budget.release(50);
+		assertTrue("released memory is not available",budget.tryReserve(50));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectNegativeLimit() {
+		new MemoryBudget(-1);
+	}
+}
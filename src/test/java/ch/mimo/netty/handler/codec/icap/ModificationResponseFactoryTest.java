@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModificationResponseFactoryTest extends AbstractIcapTest {
+
+	private ModificationResponseFactory factory;
+
+	@Before
+	public void setUp() {
+		factory = new ModificationResponseFactory("Test-1.0");
+	}
+
+	@Test
+	public void unmodifiedResponseIsNoContent() {
+		IcapRequest request = createRESPMODRequest("204, 206","This is the original body");
+		IcapResponse response = factory.createResponse(request,request.getHttpResponse().retainedDuplicate());
+		assertEquals("wrong status",IcapResponseStatus.NO_CONTENT,response.getStatus());
+		assertEquals("wrong istag","Test-1.0",response.getHeader(IcapHeaders.Names.ISTAG));
+		assertNull("http response was echoed",response.getHttpResponse());
+		assertEquals("modified message was not released",1,request.getHttpResponse().content().refCnt());
+		request.release();
+	}
+
+	@Test
+	public void unmodifiedResponseWithout204UsesOriginalBody() {
+		IcapRequest request = createRESPMODRequest("206","This is the original body");
+		IcapResponse response = factory.createUnmodifiedResponse(request);
+		assertEquals("wrong status",IcapResponseStatus.PARTIAL_CONTENT,response.getStatus());
+		assertEquals("wrong use-original-body",Integer.valueOf(0),response.getUseOriginalBody());
+		assertEquals("body was echoed",0,response.getHttpResponse().content().readableBytes());
+		response.release();
+		request.release();
+	}
+
+	@Test
+	public void headerModificationUsesCompleteOriginalBody() {
+		IcapRequest request = createRESPMODRequest("204, 206","This is the original body");
+		FullHttpResponse modified = request.getHttpResponse().retainedDuplicate();
+		modified.headers().set("X-Scanned","clean");
+		IcapResponse response = factory.createResponse(request,modified);
+		assertEquals("wrong status",IcapResponseStatus.PARTIAL_CONTENT,response.getStatus());
+		assertEquals("wrong use-original-body",Integer.valueOf(0),response.getUseOriginalBody());
+		assertEquals("modified header is missing","clean",response.getHttpResponse().headers().get("X-Scanned"));
+		assertEquals("body was echoed",0,response.getHttpResponse().content().readableBytes());
+
+		EmbeddedChannel channel = new EmbeddedChannel(new IcapChunkSeparator(20));
+		channel.writeOutbound(response);
+		IcapResponse message = channel.readOutbound();
+		assertEquals("wrong body type",IcapMessageElementEnum.RESBODY,message.getBodyType());
+		IcapChunkTrailer trailer = channel.readOutbound();
+		assertNotNull("body chunks were sent",trailer);
+		assertEquals("trailer misses use-original-body",Integer.valueOf(0),trailer.getUseOriginalBody());
+		assertNull("still some elements in the pipeline",channel.readOutbound());
+		message.release();
+		request.release();
+	}
+
+	@Test
+	public void prefixModificationSendsOnlyPrefix() {
+		IcapRequest request = createRESPMODRequest("206","This is the original body");
+		FullHttpResponse modified = request.getHttpResponse().replace(Unpooled.copiedBuffer("[checked] the original body",IcapCodecUtil.ASCII_CHARSET));
+		IcapResponse response = factory.createResponse(request,modified);
+		assertEquals("wrong status",IcapResponseStatus.PARTIAL_CONTENT,response.getStatus());
+		assertEquals("wrong use-original-body",Integer.valueOf(7),response.getUseOriginalBody());
+		assertEquals("wrong body prefix","[checked]",response.getHttpResponse().content().toString(IcapCodecUtil.ASCII_CHARSET));
+		response.release();
+		request.release();
+	}
+
+	@Test
+	public void modificationWithout206SendsCompleteBody() {
+		IcapRequest request = createRESPMODRequest("204","This is the original body");
+		FullHttpResponse modified = request.getHttpResponse().replace(Unpooled.copiedBuffer("[checked] the original body",IcapCodecUtil.ASCII_CHARSET));
+		IcapResponse response = factory.createResponse(request,modified);
+		assertEquals("wrong status",IcapResponseStatus.OK,response.getStatus());
+		assertNull("use-original-body is set",response.getUseOriginalBody());
+		assertEquals("wrong body","[checked] the original body",response.getHttpResponse().content().toString(IcapCodecUtil.ASCII_CHARSET));
+		response.release();
+		request.release();
+	}
+
+	@Test
+	public void changedEndSendsCompleteBody() {
+		IcapRequest request = createRESPMODRequest("204, 206","This is the original body");
+		FullHttpResponse modified = request.getHttpResponse().replace(Unpooled.copiedBuffer("This is the original body!",IcapCodecUtil.ASCII_CHARSET));
+		IcapResponse response = factory.createResponse(request,modified);
+		assertEquals("wrong status",IcapResponseStatus.OK,response.getStatus());
+		assertNull("use-original-body is set",response.getUseOriginalBody());
+		response.release();
+		request.release();
+	}
+
+	@Test
+	public void modifiedRequestOfREQMOD() {
+		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.REQMOD,"icap://icap.mimo.ch:1344/reqmod","icap.mimo.ch");
+		request.addHeader(IcapHeaders.Names.ALLOW,"206");
+		request.setHttpRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.POST,"/upload",
+				Unpooled.copiedBuffer("name=value",IcapCodecUtil.ASCII_CHARSET)));
+		request.setBody(IcapMessageElementEnum.REQBODY);
+		IcapResponse response = factory.createResponse(request,request.getHttpRequest().replace(
+				Unpooled.copiedBuffer("name=value",IcapCodecUtil.ASCII_CHARSET)).setUri("/moved"));
+		assertEquals("wrong status",IcapResponseStatus.PARTIAL_CONTENT,response.getStatus());
+		assertEquals("wrong use-original-body",Integer.valueOf(0),response.getUseOriginalBody());
+		assertEquals("wrong uri","/moved",response.getHttpRequest().uri());
+		response.release();
+		request.release();
+	}
+
+	@Test
+	public void commonSuffixLength() {
+		assertEquals("wrong suffix",0,ModificationResponseFactory.commonSuffixLength(Unpooled.EMPTY_BUFFER,Unpooled.EMPTY_BUFFER));
+		assertEquals("wrong suffix",19,ModificationResponseFactory.commonSuffixLength(
+				Unpooled.copiedBuffer("0123456789abcdefghij",IcapCodecUtil.ASCII_CHARSET),
+				Unpooled.copiedBuffer("X123456789abcdefghij",IcapCodecUtil.ASCII_CHARSET)));
+		assertEquals("wrong suffix",3,ModificationResponseFactory.commonSuffixLength(
+				Unpooled.copiedBuffer("abc",IcapCodecUtil.ASCII_CHARSET),
+				Unpooled.copiedBuffer("0123456789abc",IcapCodecUtil.ASCII_CHARSET)));
+	}
+
+	private static IcapRequest createRESPMODRequest(String allow, String body) {
+		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.RESPMOD,"icap://icap.mimo.ch:1344/respmod","icap.mimo.ch");
+		request.addHeader(IcapHeaders.Names.ALLOW,allow);
+		request.setHttpResponse(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK,
+				Unpooled.copiedBuffer(body,IcapCodecUtil.ASCII_CHARSET)));
+		request.setBody(IcapMessageElementEnum.RESBODY);
+		return request;
+	}
+}
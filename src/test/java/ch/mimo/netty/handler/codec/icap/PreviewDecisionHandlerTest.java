@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+
+import org.junit.Test;
+
+public class PreviewDecisionHandlerTest extends AbstractIcapTest {
+
+	private EmbeddedChannel embeddedChannel;
+	private RecordingInspector inspector;
+
+	private void setUp(PreviewDecision decision) {
+		inspector = new RecordingInspector(decision);
+		embeddedChannel = new EmbeddedChannel(new PreviewDecisionHandler("Test-1.0",inspector));
+	}
+
+	@Test
+	public void accept204AfterPreview() throws UnsupportedEncodingException {
+		setUp(PreviewDecision.ACCEPT_204);
+		IcapMessage request = DataMockery.createREQMODWithPreviewAnnouncementIcapMessage();
+		IcapChunk chunk = DataMockery.createREQMODWithPreviewIcapChunk();
+		embeddedChannel.writeInbound(request);
+		embeddedChannel.writeInbound(chunk);
+		assertNull("request was not held back",embeddedChannel.readInbound());
+		assertEquals("inspector was called too early",0,inspector.calls);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewLastIcapChunk());
+		assertEquals("inspector was not called",1,inspector.calls);
+		assertEquals("wrong preview","This is data that was returned by an origin server.",inspector.preview);
+		assertFalse("preview is complete",inspector.complete);
+		IcapResponse response = (IcapResponse)embeddedChannel.readOutbound();
+		assertEquals("wrong response status",IcapResponseStatus.NO_CONTENT,response.getStatus());
+		assertEquals("wrong istag","Test-1.0",response.getHeader(IcapHeaders.Names.ISTAG));
+		assertNull("additional response",embeddedChannel.readOutbound());
+		assertNull("request was passed on",embeddedChannel.readInbound());
+		assertEquals("preview chunk was not released",0,chunk.refCnt());
+	}
+
+	@Test
+	public void respondAfterPreview() throws UnsupportedEncodingException {
+		IcapResponse blocked = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+		setUp(PreviewDecision.respond(blocked));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewAnnouncementIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewLastIcapChunk());
+		assertSame("wrong response",blocked,embeddedChannel.readOutbound());
+		assertNull("request was passed on",embeddedChannel.readInbound());
+	}
+
+	@Test
+	public void continueAfterPreview() throws UnsupportedEncodingException {
+		setUp(PreviewDecision.CONTINUE);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewAnnouncementIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreviewLastIcapChunk());
+		IcapResponse response = (IcapResponse)embeddedChannel.readOutbound();
+		assertEquals("wrong response status",IcapResponseStatus.CONTINUE,response.getStatus());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		assertFalse("preview header was not removed",request.isPreviewMessage());
+		IcapChunk chunk = (IcapChunk)embeddedChannel.readInbound();
+		assertEquals("wrong chunk","This is data that was returned by an origin server.",chunk.content().toString(Charset.defaultCharset()));
+		assertFalse("chunk still marked as preview",chunk.isPreviewChunk());
+		chunk.release();
+		assertNull("preview trailer was passed on",embeddedChannel.readInbound());
+
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreview100ContinueIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreview100ContinueLastIcapChunk());
+		chunk = (IcapChunk)embeddedChannel.readInbound();
+		assertEquals("wrong chunk","This is the second chunk that is received when 100 continue was sent.",chunk.content().toString(Charset.defaultCharset()));
+		chunk.release();
+		assertTrue("last chunk was not passed on",((IcapChunk)embeddedChannel.readInbound()).isLast());
+		assertNull("additional response",embeddedChannel.readOutbound());
+	}
+
+	@Test
+	public void earlyTerminatedPreviewContinuesWithout100Continue() throws UnsupportedEncodingException {
+		setUp(PreviewDecision.CONTINUE);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithEarlyTerminatedPreviewAnnouncementIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithEarlyTerminatedPreviewIcapChunk());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithEarlyTerminatedPreviewLastIcapChunk());
+		assertTrue("preview was not complete",inspector.complete);
+		assertNull("100 continue was sent",embeddedChannel.readOutbound());
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		assertFalse("preview header was not removed",request.isPreviewMessage());
+		((IcapChunk)embeddedChannel.readInbound()).release();
+		IcapChunkTrailer trailer = (IcapChunkTrailer)embeddedChannel.readInbound();
+		assertFalse("trailer is early terminated",trailer.isEarlyTerminated());
+		assertFalse("trailer is preview",trailer.isPreviewChunk());
+	}
+
+	@Test
+	public void requestWithoutPreviewIsPassedOn() throws UnsupportedEncodingException {
+		setUp(PreviewDecision.ACCEPT_204);
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapMessage());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkOne());
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithTwoChunkBodyIcapChunkThree());
+		assertNotNull("request was not passed on",embeddedChannel.readInbound());
+		((IcapChunk)embeddedChannel.readInbound()).release();
+		assertNotNull("last chunk was not passed on",embeddedChannel.readInbound());
+		assertEquals("inspector was called",0,inspector.calls);
+		assertNull("response was sent",embeddedChannel.readOutbound());
+	}
+
+	@Test
+	public void previewLongerThanAnnouncedIsRejected() throws UnsupportedEncodingException {
+		setUp(PreviewDecision.ACCEPT_204);
+		IcapMessage request = DataMockery.createREQMODWithPreviewAnnouncementIcapMessage();
+		request.setHeader(IcapHeaders.Names.PREVIEW,"10");
+		embeddedChannel.writeInbound(request);
+		IcapChunk chunk = DataMockery.createREQMODWithPreviewIcapChunk();
+		try {
+			embeddedChannel.writeInbound(chunk);
+			fail("preview above the announced amount was accepted");
+		} catch(TooLongFrameException e) {
+			assertEquals("chunk was not released",0,chunk.refCnt());
+		}
+	}
+
+	@Test
+	public void decidesEveryPreviewOfKeepAliveConnection() throws UnsupportedEncodingException {
+		inspector = new RecordingInspector(PreviewDecision.CONTINUE);
+		embeddedChannel = new EmbeddedChannel(new IcapRequestDecoder(),new PreviewDecisionHandler("Test-1.0",inspector),new IcapChunkAggregator(4012));
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreview());
+		IcapResponse response = (IcapResponse)embeddedChannel.readOutbound();
+		assertEquals("wrong response status",IcapResponseStatus.CONTINUE,response.getStatus());
+		assertNull("request was passed on before the rest of the body",embeddedChannel.readInbound());
+
+		embeddedChannel.writeInbound(Unpooled.copiedBuffer("3\r\nabc\r\n0\r\n\r\n",Charset.forName("ASCII")));
+		IcapRequest request = (IcapRequest)embeddedChannel.readInbound();
+		assertEquals("wrong body","This is data that was returned by an origin server.abc",request.getHttpRequest().content().toString(Charset.defaultCharset()));
+		request.release();
+
+		inspector.decision = PreviewDecision.ACCEPT_204;
+		embeddedChannel.writeInbound(DataMockery.createREQMODWithPreview());
+		response = (IcapResponse)embeddedChannel.readOutbound();
+		assertEquals("wrong response status",IcapResponseStatus.NO_CONTENT,response.getStatus());
+		assertNull("request was passed on",embeddedChannel.readInbound());
+		assertEquals("wrong amount of inspections",2,inspector.calls);
+	}
+
+	private static final class RecordingInspector implements PreviewInspector {
+
+		private PreviewDecision decision;
+		private int calls;
+		private String preview;
+		private boolean complete;
+
+		RecordingInspector(PreviewDecision decision) {
+			this.decision = decision;
+		}
+
+		@Override
+		public PreviewDecision inspect(IcapRequest request, ByteBuf preview, boolean complete) {
+			calls++;
+			this.preview = preview.toString(Charset.defaultCharset());
+			this.complete = complete;
+			return decision;
+		}
+	}
+}
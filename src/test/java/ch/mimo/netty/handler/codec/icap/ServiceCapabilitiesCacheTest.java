@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServiceCapabilitiesCacheTest extends AbstractIcapTest {
+
+	private EventLoopGroup group;
+	private Channel serverChannel;
+	private OptionsServer server;
+	private IcapClient client;
+	private AtomicLong clock;
+	private ServiceCapabilitiesCache cache;
+	private String serviceUri;
+
+	@Before
+	public void setUp() throws Exception {
+		group = new NioEventLoopGroup(2);
+		server = new OptionsServer();
+		serverChannel = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) {
+				ch.pipeline().addLast(new IcapRequestDecoder(),new IcapResponseEncoder(),new IcapChunkAggregator(4096),server);
+			}
+		}).bind("127.0.0.1",0).sync().channel();
+		serviceUri = "icap://127.0.0.1:" + ((InetSocketAddress)serverChannel.localAddress()).getPort() + "/reqmod";
+		client = new IcapClient(new Bootstrap().group(group).channel(NioSocketChannel.class),8,4096,5000);
+		clock = new AtomicLong();
+		cache = new ServiceCapabilitiesCache(client,group,60000,new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return clock.get();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cache.close();
+		client.close();
+		serverChannel.close().sync();
+		group.shutdownGracefully(0,1,TimeUnit.SECONDS).sync();
+	}
+
+	@Test
+	public void optionsAreFetchedOnce() throws Exception {
+		assertNull("capabilities known before fetching",cache.get(serviceUri));
+		ServiceCapabilities capabilities = cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		assertEquals("wrong ISTag","\"tag-1\"",capabilities.getIsTag());
+		assertEquals("wrong preview",1024,capabilities.getPreview());
+		assertTrue("204 not allowed",capabilities.isAllow204());
+		assertSame("capabilities not cached",capabilities,cache.get(serviceUri));
+		assertSame("capabilities not cached",capabilities,cache.fetch(serviceUri).get(5,TimeUnit.SECONDS));
+		assertEquals("wrong amount of OPTIONS requests",1,server.options.get());
+	}
+
+	@Test
+	public void maxConnectionsLimitsPool() throws Exception {
+		cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		assertEquals("wrong connection limit",3,client.getMaxConnections(IcapClient.getEndpoint(serviceUri)));
+	}
+
+	@Test
+	public void requestIsPreparedWithCapabilities() throws Exception {
+		cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		IcapRequest request = createRequest();
+		assertNotNull("no capabilities applied",cache.prepare(request));
+		assertTrue("204 not allowed",request.isAllow204());
+		assertTrue("206 not allowed",request.isAllow206());
+		request.release();
+	}
+
+	@Test
+	public void expiredCapabilitiesAreFetchedAgain() throws Exception {
+		cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(601));
+		assertNull("expired capabilities returned",cache.get(serviceUri));
+		ServiceCapabilities capabilities = cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		assertNotNull("capabilities not fetched again",capabilities);
+		assertEquals("wrong amount of OPTIONS requests",2,server.options.get());
+	}
+
+	@Test
+	public void changedIsTagRefreshesCapabilities() throws Exception {
+		cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		server.isTag = "\"tag-2\"";
+		IcapResponse response = cache.send(createRequest()).get(5,TimeUnit.SECONDS);
+		response.release();
+		ServiceCapabilities capabilities = cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		assertEquals("capabilities not refreshed","\"tag-2\"",capabilities.getIsTag());
+		assertEquals("wrong amount of OPTIONS requests",2,server.options.get());
+	}
+
+	@Test
+	public void capabilitiesAreRefreshedBeforeExpiry() throws Exception {
+		server.optionsTtl = 1;
+		ServiceCapabilities first = cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(server.options.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals("capabilities were not refreshed",2,server.options.get());
+		Thread.sleep(100);
+		ServiceCapabilities second = cache.get(serviceUri);
+		assertNotNull("no capabilities during refresh",second);
+		assertNotSame("refreshed capabilities not used",first,second);
+	}
+
+	@Test
+	public void zeroTtlIsRaisedToMinimum() throws Exception {
+		server.optionsTtl = 0;
+		ServiceCapabilities capabilities = cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		assertSame("capabilities not cached",capabilities,cache.get(serviceUri));
+		Thread.sleep(300);
+		assertEquals("OPTIONS were refreshed right away",1,server.options.get());
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(ServiceCapabilitiesCache.MIN_TTL_MILLIS));
+		assertNull("capabilities valid beyond the minimum ttl",cache.get(serviceUri));
+	}
+
+	@Test
+	public void ignoredTransferTypeIsNotSent() throws Exception {
+		cache.fetch(serviceUri).get(5,TimeUnit.SECONDS);
+		IcapRequest request = createRequest();
+		request.setHttpRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.GET,"http://www.origin-server.com/logo.JPG?size=large"));
+		IcapResponse response = cache.send(request).get(5,TimeUnit.SECONDS);
+		assertEquals("wrong response status",IcapResponseStatus.NO_CONTENT,response.getStatus());
+		assertEquals("wrong ISTag","\"tag-1\"",response.getIsTag());
+		assertEquals("request was not released",0,request.refCnt());
+		assertEquals("request was sent",0,server.requests.get());
+
+		request = createRequest();
+		request.setHttpRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.GET,"http://www.origin-server.com/index.html"));
+		cache.send(request).get(5,TimeUnit.SECONDS).release();
+		assertEquals("request was not sent",1,server.requests.get());
+	}
+
+	private IcapRequest createRequest() {
+		return new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.REQMOD,serviceUri,"127.0.0.1");
+	}
+
+	@ChannelHandler.Sharable
+	private static final class OptionsServer extends ChannelInboundHandlerAdapter {
+
+		private final AtomicInteger options = new AtomicInteger();
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile String isTag = "\"tag-1\"";
+		private volatile int optionsTtl = 600;
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			IcapRequest request = (IcapRequest)msg;
+			IcapResponse response;
+			if(IcapMethod.OPTIONS.equals(request.getMethod())) {
+				options.incrementAndGet();
+				response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+				response.addHeader(IcapHeaders.Names.METHODS,"REQMOD, RESPMOD");
+				response.addHeader(IcapHeaders.Names.PREVIEW,"1024");
+				response.addHeader(IcapHeaders.Names.ALLOW,"204, 206");
+				response.addHeader(IcapHeaders.Names.MAX_CONNECTIONS,"3");
+				response.addHeader(IcapHeaders.Names.OPTIONS_TTL,Integer.toString(optionsTtl));
+				new TransferHeadersBuilder().ignore("jpg","gif","mp4").complete("exe").applyTo(response);
+			} else {
+				requests.incrementAndGet();
+				response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.NO_CONTENT);
+			}
+			response.addHeader(IcapHeaders.Names.ISTAG,isTag);
+			ReferenceCountUtil.release(msg);
+			ctx.writeAndFlush(response);
+		}
+	}
+}
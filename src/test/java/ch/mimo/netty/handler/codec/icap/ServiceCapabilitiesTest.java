@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import org.junit.Test;
+
+public class ServiceCapabilitiesTest extends AbstractIcapTest {
+
+	@Test
+	public void parseOptionsResponse() {
+		IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+		response.addHeader(IcapHeaders.Names.ISTAG,"\"W3E4R7U9-L2E4-2\"");
+		response.addHeader(IcapHeaders.Names.METHODS,"RESPMOD,  REQMOD");
+		response.addHeader(IcapHeaders.Names.SERVICE,"FOO Tech Server 1.0");
+		response.addHeader(IcapHeaders.Names.PREVIEW,"2048");
+		response.addHeader(IcapHeaders.Names.ALLOW,"204");
+		response.addHeader(IcapHeaders.Names.MAX_CONNECTIONS,"1000");
+		response.addHeader(IcapHeaders.Names.OPTIONS_TTL,"7200");
+		response.addHeader(IcapHeaders.Names.TRANSFER_PREVIEW,"*");
+		response.addHeader(IcapHeaders.Names.TRANSFER_IGNORE,"jpg,jpeg,gif");
+		response.addHeader(IcapHeaders.Names.TRANSFER_COMPLETE,"asp, bat, exe, com");
+		ServiceCapabilities capabilities = ServiceCapabilities.fromOptionsResponse("icap://icap.server.net/sample-service",response);
+		assertEquals("wrong service uri","icap://icap.server.net/sample-service",capabilities.getServiceUri());
+		assertEquals("wrong ISTag","\"W3E4R7U9-L2E4-2\"",capabilities.getIsTag());
+		assertTrue("RESPMOD not supported",capabilities.isMethodSupported(IcapMethod.RESPMOD));
+		assertTrue("REQMOD not supported",capabilities.isMethodSupported(IcapMethod.REQMOD));
+		assertFalse("OPTIONS supported",capabilities.isMethodSupported(IcapMethod.OPTIONS));
+		assertEquals("wrong service","FOO Tech Server 1.0",capabilities.getService());
+		assertEquals("wrong preview",2048,capabilities.getPreview());
+		assertTrue("204 not allowed",capabilities.isAllow204());
+		assertEquals("wrong max connections",1000,capabilities.getMaxConnections());
+		assertEquals("wrong options ttl",7200,capabilities.getOptionsTtl());
+		assertEquals("wrong transfer preview","*",capabilities.getTransferPreview().get(0));
+		assertEquals("wrong transfer ignore",3,capabilities.getTransferIgnore().size());
+		assertEquals("wrong transfer complete","exe",capabilities.getTransferComplete().get(2));
+	}
+
+	@Test
+	public void missingCapabilitiesAreNotAnnounced() {
+		IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+		response.addHeader(IcapHeaders.Names.MAX_CONNECTIONS,"many");
+		ServiceCapabilities capabilities = ServiceCapabilities.fromOptionsResponse("icap://icap.server.net/sample-service",response);
+		assertNull("ISTag present",capabilities.getIsTag());
+		assertEquals("preview announced",ServiceCapabilities.NOT_ANNOUNCED,capabilities.getPreview());
+		assertEquals("max connections announced",ServiceCapabilities.NOT_ANNOUNCED,capabilities.getMaxConnections());
+		assertEquals("options ttl announced",ServiceCapabilities.NOT_ANNOUNCED,capabilities.getOptionsTtl());
+		assertFalse("204 allowed",capabilities.isAllow204());
+		assertTrue("methods present",capabilities.getMethods().isEmpty());
+		assertTrue("transfer preview present",capabilities.getTransferPreview().isEmpty());
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import org.junit.Test;
+
+public class TransferHeadersBuilderTest extends AbstractIcapTest {
+
+	@Test
+	public void buildHeaders() {
+		IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+		new TransferHeadersBuilder().ignore("jpg",".GIF").complete("exe").preview("html").applyTo(response);
+		assertEquals("wrong Transfer-Preview","html, *",response.getHeader(IcapHeaders.Names.TRANSFER_PREVIEW));
+		assertEquals("wrong Transfer-Ignore","jpg, gif",response.getHeader(IcapHeaders.Names.TRANSFER_IGNORE));
+		assertEquals("wrong Transfer-Complete","exe",response.getHeader(IcapHeaders.Names.TRANSFER_COMPLETE));
+	}
+
+	@Test
+	public void emptyListIsOmitted() {
+		IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+		new TransferHeadersBuilder().preview("html").defaultMode(TransferMode.IGNORE).applyTo(response);
+		assertEquals("wrong Transfer-Preview","html",response.getHeader(IcapHeaders.Names.TRANSFER_PREVIEW));
+		assertEquals("wrong Transfer-Ignore","*",response.getHeader(IcapHeaders.Names.TRANSFER_IGNORE));
+		assertFalse("Transfer-Complete present",response.containsHeader(IcapHeaders.Names.TRANSFER_COMPLETE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void extensionInTwoListsIsRejected() {
+		new TransferHeadersBuilder().ignore("jpg").complete("JPG");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wildcardExtensionIsRejected() {
+		new TransferHeadersBuilder().ignore("*");
+	}
+
+	@Test
+	public void generatedHeadersMatchLikeConfiguration() {
+		TransferHeadersBuilder builder = new TransferHeadersBuilder().ignore("jpg").complete("exe");
+		IcapResponse response = new DefaultIcapResponse(IcapVersion.ICAP_1_0,IcapResponseStatus.OK);
+		builder.applyTo(response);
+		TransferMatcher matcher = ServiceCapabilities.fromOptionsResponse("icap://icap.mimo.ch/reqmod",response).getTransferMatcher();
+		for(String uri : new String[] {"/a.jpg","/a.exe","/a.html","/a"}) {
+			assertEquals("different mode for " + uri,builder.buildMatcher().match(uri),matcher.match(uri));
+		}
+	}
+}
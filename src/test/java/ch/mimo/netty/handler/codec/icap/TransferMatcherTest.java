@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import org.junit.Test;
+
+public class TransferMatcherTest extends AbstractIcapTest {
+
+	private static final List<String> NONE = Collections.emptyList();
+
+	private final TransferMatcher matcher = new TransferMatcher(Arrays.asList("*"),Arrays.asList("jpg","JPEG","gif",".mp4","tar.gz"),Arrays.asList("exe","gz"));
+
+	@Test
+	public void matchExtensionOfPath() {
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match("http://www.origin-server.com/images/logo.jpg"));
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match("/video/clip.mp4"));
+		assertEquals("wrong mode",TransferMode.COMPLETE,matcher.match("/download/setup.exe"));
+		assertEquals("wrong mode",TransferMode.PREVIEW,matcher.match("/index.html"));
+	}
+
+	@Test
+	public void matchIgnoresCase() {
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match("/images/LOGO.JPG"));
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match("/images/logo.jpeg"));
+	}
+
+	@Test
+	public void matchIgnoresQueryAndFragment() {
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match("/images/logo.gif?version=1.exe"));
+		assertEquals("wrong mode",TransferMode.COMPLETE,matcher.match("/setup.exe#top.jpg"));
+	}
+
+	@Test
+	public void matchLongestExtension() {
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match("/archive/source.tar.gz"));
+		assertEquals("wrong mode",TransferMode.COMPLETE,matcher.match("/archive/source.gz"));
+		assertEquals("wrong mode",TransferMode.COMPLETE,matcher.match("/archive/tar.gz"));
+	}
+
+	@Test
+	public void pathWithoutExtensionGetsDefault() {
+		assertEquals("wrong mode",TransferMode.PREVIEW,matcher.match("/images.jpg/logo"));
+		assertEquals("wrong mode",TransferMode.PREVIEW,matcher.match("/"));
+		assertEquals("wrong mode",TransferMode.PREVIEW,matcher.match(""));
+		assertEquals("wrong mode",TransferMode.PREVIEW,matcher.match("/jpg"));
+		assertEquals("wrong mode",TransferMode.PREVIEW,matcher.match("/logo."));
+	}
+
+	@Test
+	public void wildcardDefinesDefault() {
+		TransferMatcher ignoreAll = new TransferMatcher(Arrays.asList("html"),Arrays.asList("*"),NONE);
+		assertEquals("wrong default",TransferMode.IGNORE,ignoreAll.getDefaultMode());
+		assertEquals("wrong mode",TransferMode.IGNORE,ignoreAll.match("/logo.png"));
+		assertEquals("wrong mode",TransferMode.PREVIEW,ignoreAll.match("/index.html"));
+		assertEquals("wrong default without wildcard",TransferMode.PREVIEW,new TransferMatcher(NONE,NONE,NONE).getDefaultMode());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wildcardInTwoListsIsRejected() {
+		new TransferMatcher(Arrays.asList("*"),NONE,Arrays.asList("*"));
+	}
+
+	@Test
+	public void matchHttpRequest() {
+		assertEquals("wrong mode",TransferMode.IGNORE,matcher.match(new DefaultHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.GET,"/logo.gif")));
+		assertEquals("wrong mode without request",TransferMode.PREVIEW,matcher.match((DefaultHttpRequest)null));
+	}
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.mimo.netty.handler.codec.icap.DefaultIcapChunk;
+import ch.mimo.netty.handler.codec.icap.DefaultIcapChunkTrailer;
+import ch.mimo.netty.handler.codec.icap.DefaultIcapRequest;
+import ch.mimo.netty.handler.codec.icap.IcapChunkAggregator;
+import ch.mimo.netty.handler.codec.icap.IcapMessageElementEnum;
+import ch.mimo.netty.handler.codec.icap.IcapMethod;
+import ch.mimo.netty.handler.codec.icap.IcapRequest;
+import ch.mimo.netty.handler.codec.icap.IcapVersion;
+
+/**
+ * Aggregates a 20 MB body from 8 KB chunks with @see {@link IcapChunkAggregator} and with the former
+ * aggregation that copied every chunk into a growing buffer. The chunks are slices of one source buffer,
+ * so the composite aggregation copies nothing while the former one copies the body at least once and
+ * reallocates the target buffer while it grows. Run with -prof gc to compare the allocated bytes.
+ *
+ * The body consists of 2560 chunks. With the default of 1024 components the composite is consolidated twice,
+ * with 4096 components no chunk is copied at all.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapChunkAggregator
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcapChunkAggregatorBenchmark {
+
+	private static final int BODY_SIZE = 20 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 8192;
+
+	@Param({"1024","4096"})
+	public int maxComponents;
+
+	private ByteBufAllocator allocator;
+	private ByteBuf body;
+	private EmbeddedChannel channel;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		allocator = new UnpooledByteBufAllocator(false);
+		body = allocator.heapBuffer(BODY_SIZE).writeZero(BODY_SIZE);
+		channel = new EmbeddedChannel(new IcapChunkAggregator(BODY_SIZE,false,maxComponents));
+		channel.config().setAllocator(allocator);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		body.release();
+	}
+
+	@Benchmark
+	public void composite(Blackhole blackhole) {
+		channel.writeInbound(createRequest());
+		for(int index = 0 ; index < BODY_SIZE ; index += CHUNK_SIZE) {
+			channel.writeInbound(new DefaultIcapChunk(body.retainedSlice(index,CHUNK_SIZE)));
+		}
+		channel.writeInbound(new DefaultIcapChunkTrailer());
+		IcapRequest request = (IcapRequest)channel.readInbound();
+		blackhole.consume(request.getHttpRequest().content().readableBytes());
+		request.release();
+	}
+
+	@Benchmark
+	public void copy(Blackhole blackhole) {
+		ByteBuf content = allocator.buffer();
+		for(int index = 0 ; index < BODY_SIZE ; index += CHUNK_SIZE) {
+			ByteBuf chunk = body.retainedSlice(index,CHUNK_SIZE);
+			content.writeBytes(chunk);
+			chunk.release();
+		}
+		blackhole.consume(content.readableBytes());
+		content.release();
+	}
+
+	private IcapRequest createRequest() {
+		IcapRequest request = new DefaultIcapRequest(IcapVersion.ICAP_1_0,IcapMethod.REQMOD,"icap://icap.mimo.ch:1344/reqmod","icap-server.net");
+		request.setHttpRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,HttpMethod.POST,"/"));
+		request.setBody(IcapMessageElementEnum.REQBODY);
+		return request;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(IcapChunkAggregatorBenchmark.class.getSimpleName()).build()).run();
+	}
+}
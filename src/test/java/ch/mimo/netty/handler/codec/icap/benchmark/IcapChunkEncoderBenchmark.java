@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.mimo.netty.handler.codec.icap.DefaultIcapChunk;
+import ch.mimo.netty.handler.codec.icap.IcapResponseEncoder;
+
+/**
+ * Compares the two chunk encodings of @see {@link IcapResponseEncoder}: the gathering encoding that shares the
+ * chunk content and the encoding that copies the chunk into the output buffer. Both go through the encoder,
+ * the copy threshold decides which one is used.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapResponseEncoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcapChunkEncoderBenchmark {
+
+	@Param({"1024","8192","16384","32768","65536","2097152"})
+	public int chunkSize;
+
+	private ByteBufAllocator allocator;
+	private ByteBuf content;
+	private EmbeddedChannel gatherChannel;
+	private EmbeddedChannel copyChannel;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		allocator = PooledByteBufAllocator.DEFAULT;
+		content = allocator.directBuffer(chunkSize).writeZero(chunkSize);
+		gatherChannel = newChannel(0);
+		copyChannel = newChannel(Integer.MAX_VALUE);
+	}
+
+	private EmbeddedChannel newChannel(int chunkCopyThreshold) {
+		IcapResponseEncoder encoder = new IcapResponseEncoder();
+		encoder.setChunkCopyThreshold(chunkCopyThreshold);
+		EmbeddedChannel channel = new EmbeddedChannel(encoder);
+		channel.config().setAllocator(allocator);
+		return channel;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		gatherChannel.finishAndReleaseAll();
+		copyChannel.finishAndReleaseAll();
+		content.release();
+	}
+
+	@Benchmark
+	public void gatherWrite(Blackhole blackhole) {
+		encode(gatherChannel,blackhole);
+	}
+
+	@Benchmark
+	public void copy(Blackhole blackhole) {
+		encode(copyChannel,blackhole);
+	}
+
+	private void encode(EmbeddedChannel channel, Blackhole blackhole) {
+		channel.writeOutbound(new DefaultIcapChunk(content.retainedDuplicate()));
+		ByteBuf encoded = (ByteBuf)channel.readOutbound();
+		blackhole.consume(encoded.readableBytes());
+		encoded.release();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(IcapChunkEncoderBenchmark.class.getSimpleName()).build()).run();
+	}
+}
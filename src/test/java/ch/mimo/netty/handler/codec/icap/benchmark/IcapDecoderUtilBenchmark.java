@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.mimo.netty.handler.codec.icap.DecodingException;
+import ch.mimo.netty.handler.codec.icap.IcapCodecUtil;
+import ch.mimo.netty.handler.codec.icap.IcapDecoderUtil;
+import ch.mimo.netty.handler.codec.icap.SizeDelimiter;
+
+/**
+ * Compares the scanning line and header readers of @see {@link IcapDecoderUtil} with the former
+ * byte by byte implementation on a typical REQMOD request as sent by Squid.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapDecoderUtil
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcapDecoderUtilBenchmark {
+
+	private static final String[] SQUID_REQMOD = new String[] {
+		"REQMOD icap://127.0.0.1:1344/request ICAP/1.0",
+		"Host: 127.0.0.1:1344",
+		"Date: Mon, 16 Oct 2023 09:12:44 GMT",
+		"Encapsulated: req-hdr=0, null-body=612",
+		"Preview: 0",
+		"Allow: 204",
+		"X-Client-IP: 192.168.1.20",
+		"X-Client-Username: alice",
+		"",
+		"GET http://www.example.com/assets/app.js?v=20231016 HTTP/1.1",
+		"Host: www.example.com",
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:118.0) Gecko/20100101 Firefox/118.0",
+		"Accept: */*",
+		"Accept-Language: en-US,en;q=0.5",
+		"Accept-Encoding: gzip, deflate",
+		"Referer: http://www.example.com/index.html",
+		"Cookie: session=4f8b2a61c0de4e0b9a7f; theme=dark; consent=yes; _ga=GA1.2.1234567890.1697440364",
+		"Connection: keep-alive",
+		"Cache-Control: no-cache",
+		""
+	};
+
+	private ByteBuf buffer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		StringBuilder builder = new StringBuilder();
+		for(String line : SQUID_REQMOD) {
+			builder.append(line).append("\r\n");
+		}
+		buffer = Unpooled.directBuffer().writeBytes(builder.toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		buffer.release();
+	}
+
+	@Benchmark
+	public Object scanning() throws DecodingException {
+		ByteBuf input = buffer.duplicate();
+		List<Object> result = new ArrayList<Object>(2);
+		IcapDecoderUtil.readLine(input,4096);
+		result.add(IcapDecoderUtil.readHeaders(input,8192));
+		IcapDecoderUtil.readLine(input,4096);
+		result.add(IcapDecoderUtil.readHeaders(input,8192));
+		return result;
+	}
+
+	@Benchmark
+	public Object byteByByte() throws DecodingException {
+		ByteBuf input = buffer.duplicate();
+		List<Object> result = new ArrayList<Object>(2);
+		legacyReadLine(input,4096);
+		result.add(legacyReadHeaders(input,8192));
+		legacyReadLine(input,4096);
+		result.add(legacyReadHeaders(input,8192));
+		return result;
+	}
+
+	private static String legacyReadLine(ByteBuf buffer, int maxLineLength) {
+		StringBuilder sb = new StringBuilder(64);
+		int lineLength = 0;
+		while (true) {
+			byte nextByte = buffer.readByte();
+			if (nextByte == IcapCodecUtil.CR) {
+				nextByte = buffer.readByte();
+				if (nextByte == IcapCodecUtil.LF) {
+					return sb.toString();
+				}
+			} else if (nextByte == IcapCodecUtil.LF) {
+				return sb.toString();
+			} else {
+				if (lineLength >= maxLineLength) {
+					throw new IllegalStateException("line too long");
+				}
+				lineLength ++;
+				sb.append((char) nextByte);
+			}
+		}
+	}
+
+	private static List<String[]> legacyReadHeaders(ByteBuf buffer, int maxSize) throws DecodingException {
+		List<String> lines = new ArrayList<String>();
+		SizeDelimiter sizeDelimiter = new SizeDelimiter(maxSize);
+		String line = legacyReadSingleHeaderLine(buffer,sizeDelimiter);
+		while(line.length() != 0) {
+			lines.add(line);
+			line = legacyReadSingleHeaderLine(buffer,sizeDelimiter);
+		}
+		return IcapDecoderUtil.parseHeaders(lines);
+	}
+
+	private static String legacyReadSingleHeaderLine(ByteBuf buffer, SizeDelimiter sizeDelimiter) throws DecodingException {
+		StringBuilder sb = new StringBuilder(64);
+		loop: for (;;) {
+			char nextByte = (char) buffer.readByte();
+			sizeDelimiter.increment();
+			if(nextByte == IcapCodecUtil.CR) {
+				nextByte = (char) buffer.readByte();
+				sizeDelimiter.increment();
+				if (nextByte == IcapCodecUtil.LF) {
+					break loop;
+				}
+			} else if(nextByte == IcapCodecUtil.LF) {
+				break loop;
+			}
+			sb.append(nextByte);
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(IcapDecoderUtilBenchmark.class.getSimpleName()).build()).run();
+	}
+}
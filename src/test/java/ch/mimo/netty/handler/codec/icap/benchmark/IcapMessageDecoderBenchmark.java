@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.mimo.netty.handler.codec.icap.DataMockery;
+import ch.mimo.netty.handler.codec.icap.IcapRequestDecoder;
+
+/**
+ * Measures the request decoder with messages that are split at every possible byte boundary.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=ch.mimo.netty.handler.codec.icap.benchmark.IcapMessageDecoderBenchmark
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapRequestDecoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IcapMessageDecoderBenchmark {
+
+	@Param({"OPTIONS","REQMOD_TRAILER","REQMOD_PREVIEW","RESPMOD"})
+	public String message;
+
+	private ByteBuf buffer;
+	private EmbeddedChannel channel;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		if(message.equals("OPTIONS")) {
+			buffer = DataMockery.createOPTIONSRequest();
+		} else if(message.equals("REQMOD_TRAILER")) {
+			buffer = DataMockery.createREQMODWithTwoChunkBodyAndTrailingHeaders();
+		} else if(message.equals("REQMOD_PREVIEW")) {
+			buffer = DataMockery.createREQMODWithPreview();
+		} else {
+			buffer = DataMockery.createRESPMODWithGetRequestNoBody();
+		}
+		channel = new EmbeddedChannel(new IcapRequestDecoder());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		buffer.release();
+	}
+
+	@Benchmark
+	public void singleBuffer(Blackhole blackhole) {
+		channel.writeInbound(buffer.retainedDuplicate());
+		drain(blackhole);
+	}
+
+	@Benchmark
+	public void splitAtEveryByte(Blackhole blackhole) {
+		int length = buffer.readableBytes();
+		for(int split = 1 ; split < length ; split++) {
+			channel.writeInbound(buffer.retainedSlice(0,split));
+			channel.writeInbound(buffer.retainedSlice(split,length - split));
+			drain(blackhole);
+		}
+	}
+
+	@Benchmark
+	public void byteByByte(Blackhole blackhole) {
+		int length = buffer.readableBytes();
+		for(int index = 0 ; index < length ; index++) {
+			channel.writeInbound(buffer.retainedSlice(index,1));
+		}
+		drain(blackhole);
+	}
+
+	private void drain(Blackhole blackhole) {
+		Object object;
+		while((object = channel.readInbound()) != null) {
+			blackhole.consume(object);
+			ReferenceCountUtil.release(object);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(IcapMessageDecoderBenchmark.class.getSimpleName()).build()).run();
+	}
+}
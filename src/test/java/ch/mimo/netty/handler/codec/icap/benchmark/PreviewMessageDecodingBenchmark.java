@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.mimo.netty.handler.codec.icap.IcapCodecUtil;
+import ch.mimo.netty.handler.codec.icap.IcapRequestDecoder;
+
+/**
+ * Decodes a RESPMOD preview message with a 1 MB body that is chunked into 4 KB chunks.
+ * Every decoded chunk asks the message whether it is a preview.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see IcapRequestDecoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreviewMessageDecodingBenchmark {
+
+	private static final int BODY_SIZE = 1024 * 1024;
+	private static final int CHUNK_SIZE = 4096;
+
+	private ByteBuf buffer;
+	private EmbeddedChannel channel;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String httpResponse = "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + BODY_SIZE + "\r\n\r\n";
+		StringBuilder header = new StringBuilder();
+		header.append("RESPMOD icap://icap.mimo.ch:1344/respmod ICAP/1.0\r\n");
+		header.append("Host: icap.mimo.ch\r\n");
+		header.append("Allow: 204\r\n");
+		header.append("Preview: ").append(BODY_SIZE).append("\r\n");
+		header.append("Encapsulated: res-hdr=0, res-body=").append(httpResponse.length()).append("\r\n\r\n");
+		header.append(httpResponse);
+		buffer = Unpooled.directBuffer(BODY_SIZE + BODY_SIZE / CHUNK_SIZE * 16 + header.length());
+		buffer.writeBytes(header.toString().getBytes(IcapCodecUtil.ASCII_CHARSET));
+		byte[] chunk = new byte[CHUNK_SIZE];
+		byte[] chunkHeader = (Integer.toHexString(CHUNK_SIZE) + "\r\n").getBytes(IcapCodecUtil.ASCII_CHARSET);
+		for(int written = 0 ; written < BODY_SIZE ; written += CHUNK_SIZE) {
+			buffer.writeBytes(chunkHeader).writeBytes(chunk).writeBytes(IcapCodecUtil.CRLF);
+		}
+		buffer.writeBytes("0\r\n\r\n".getBytes(IcapCodecUtil.ASCII_CHARSET));
+		channel = new EmbeddedChannel(new IcapRequestDecoder(4096,8192,8192,8192,true));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		buffer.release();
+	}
+
+	@Benchmark
+	public void decode(Blackhole blackhole) {
+		channel.writeInbound(buffer.retainedDuplicate());
+		Object object;
+		while((object = channel.readInbound()) != null) {
+			blackhole.consume(object);
+			ReferenceCountUtil.release(object);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(PreviewMessageDecodingBenchmark.class.getSimpleName()).build()).run();
+	}
+}
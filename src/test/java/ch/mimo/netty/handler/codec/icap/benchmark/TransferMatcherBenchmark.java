@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.benchmark;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.mimo.netty.handler.codec.icap.TransferMatcher;
+import ch.mimo.netty.handler.codec.icap.TransferMode;
+
+/**
+ * Matches typical request URIs with @see {@link TransferMatcher} and with the straightforward approach that cuts
+ * the extension out of the path, lower cases it and looks it up in a map. Run with -prof gc to compare the
+ * allocated bytes, the matcher allocates nothing.
+ *
+ * @author Michael Mimo Moratti (mimo@mimo.ch)
+ *
+ * @see TransferMatcher
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferMatcherBenchmark {
+
+	private static final List<String> PREVIEW = Arrays.asList("*");
+	private static final List<String> IGNORE = Arrays.asList("jpg","jpeg","gif","png","webp","svg","ico","mp4","webm","mp3","woff","woff2","css");
+	private static final List<String> COMPLETE = Arrays.asList("exe","msi","zip","rar","7z","dll","bat","com","js");
+
+	private static final String[] URIS = {
+		"http://www.origin-server.com/images/header/logo.PNG",
+		"http://cdn.origin-server.com/static/fonts/roboto-regular.woff2?v=4.7.0",
+		"http://www.origin-server.com/index.html",
+		"http://downloads.origin-server.com/releases/2.1/setup.exe",
+		"http://www.origin-server.com/api/v2/users/42/profile",
+		"http://media.origin-server.com/video/2012/06/clip-1080p.mp4#t=30",
+	};
+
+	private final TransferMatcher matcher = new TransferMatcher(PREVIEW,IGNORE,COMPLETE);
+	private final Map<String,TransferMode> modes = new HashMap<String,TransferMode>();
+
+	public TransferMatcherBenchmark() {
+		for(String extension : IGNORE) {
+			modes.put(extension,TransferMode.IGNORE);
+		}
+		for(String extension : COMPLETE) {
+			modes.put(extension,TransferMode.COMPLETE);
+		}
+	}
+
+	@Benchmark
+	public void trie(Blackhole blackhole) {
+		for(String uri : URIS) {
+			blackhole.consume(matcher.match(uri));
+		}
+	}
+
+	@Benchmark
+	public void substringLookup(Blackhole blackhole) {
+		for(String uri : URIS) {
+			blackhole.consume(lookup(uri));
+		}
+	}
+
+	private TransferMode lookup(String uri) {
+		int end = uri.length();
+		int query = uri.indexOf('?');
+		if(query >= 0) {
+			end = query;
+		}
+		int fragment = uri.indexOf('#');
+		if(fragment >= 0 && fragment < end) {
+			end = fragment;
+		}
+		String path = uri.substring(0,end);
+		String segment = path.substring(path.lastIndexOf('/') + 1);
+		int dot = segment.lastIndexOf('.');
+		if(dot < 0) {
+			return TransferMode.PREVIEW;
+		}
+		TransferMode mode = modes.get(segment.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+		return mode == null ? TransferMode.PREVIEW : mode;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(TransferMatcherBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -18,6 +18,7 @@ package ch.mimo.netty.handler.codec.icap.socket;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -109,20 +110,36 @@ public abstract class AbstractSocketTest extends AbstractJDKLoggerPreparation {
 	protected abstract EventLoopGroup newClientEventLoopGroup(Executor executor);
 	protected abstract Map<ChannelOption, Object> clientAdditionalChannelOptions();
 
+	/**
+	 * @return false for transports that do not support the TCP socket options.
+	 */
+	protected boolean isTcpTransport() {
+		return true;
+	}
+
+	protected SocketAddress newServerAddress() {
+		return new InetSocketAddress(0);
+	}
+
+	protected SocketAddress getConnectAddress(Channel serverChannel) {
+		return new InetSocketAddress(LOCALHOST,((ServerSocketChannel)serverChannel).localAddress().getPort());
+	}
+
     protected void runSocketTest(AbstractHandler serverHandler, AbstractHandler clientHandler, Object[] messages, PipelineType pipelineType) {
 		EventLoopGroup serverBossGroup = newServerEventLoopGroup(executor);
 		EventLoopGroup serverWorkerGroup = newServerEventLoopGroup(executor);
     	ServerBootstrap serverBootstrap  = new ServerBootstrap()
 			.channel(newServerSocketChannelFactory())
-			.childOption(ChannelOption.SO_REUSEADDR, true)
-			.childOption(ChannelOption.TCP_NODELAY, true)
 			.group(serverBossGroup, serverWorkerGroup);
 
     	EventLoopGroup clientGroup = newClientEventLoopGroup(executor);
         final Bootstrap clientBootstrap = new Bootstrap()
 			.channel(newClientSocketChannelFactory())
-			.option(ChannelOption.TCP_NODELAY, true)
 			.group(clientGroup);
+        if(isTcpTransport()) {
+        	serverBootstrap.childOption(ChannelOption.SO_REUSEADDR, true).childOption(ChannelOption.TCP_NODELAY, true);
+        	clientBootstrap.option(ChannelOption.TCP_NODELAY, true);
+        }
         for(Map.Entry<ChannelOption, Object> e : clientAdditionalChannelOptions().entrySet()) {
 			clientBootstrap.option(e.getKey(), e.getValue());
 		}
@@ -152,11 +169,10 @@ public abstract class AbstractSocketTest extends AbstractJDKLoggerPreparation {
 		serverBootstrap.childHandler(serverChannelInitializer);
         clientBootstrap.handler(clientChannelInitializer);
 
-        ChannelFuture serverChannel = serverBootstrap.bind(new InetSocketAddress(0));
+        ChannelFuture serverChannel = serverBootstrap.bind(newServerAddress());
         assertTrue(serverChannel.awaitUninterruptibly().isSuccess());
-        int port = ((ServerSocketChannel)serverChannel.channel()).localAddress().getPort();
         
-        ChannelFuture channelFuture = clientBootstrap.connect(new InetSocketAddress(LOCALHOST,port));
+        ChannelFuture channelFuture = clientBootstrap.connect(getConnectAddress(serverChannel.channel()));
         assertTrue(channelFuture.awaitUninterruptibly().isSuccess());
 
         Channel clientChannel = channelFuture.channel();
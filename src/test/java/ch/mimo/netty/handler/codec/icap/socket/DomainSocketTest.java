@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.socket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+
+import ch.mimo.netty.handler.codec.icap.IcapTransport;
+
+public class DomainSocketTest extends SocketTests {
+
+	private File socketFile;
+
+	@Before
+	public void assumeEpoll() throws IOException {
+		Assume.assumeTrue(IcapTransport.EPOLL_DOMAIN_SOCKET.isAvailable());
+		socketFile = File.createTempFile("icap-",".sock");
+		socketFile.delete();
+	}
+
+	@After
+	public void deleteSocketFile() {
+		if(socketFile != null) {
+			socketFile.delete();
+		}
+	}
+
+	@Override
+	protected Class<? extends ServerChannel> newServerSocketChannelFactory() {
+		return IcapTransport.EPOLL_DOMAIN_SOCKET.getServerChannelClass();
+	}
+
+	@Override
+	protected Class<? extends Channel> newClientSocketChannelFactory() {
+		return IcapTransport.EPOLL_DOMAIN_SOCKET.getChannelClass();
+	}
+
+	@Override
+	protected EventLoopGroup newServerEventLoopGroup(Executor executor) {
+		return IcapTransport.EPOLL_DOMAIN_SOCKET.newEventLoopGroup(1, executor);
+	}
+
+	@Override
+	protected EventLoopGroup newClientEventLoopGroup(Executor executor) {
+		return IcapTransport.EPOLL_DOMAIN_SOCKET.newEventLoopGroup(1, executor);
+	}
+
+	@Override
+	protected Map<ChannelOption, Object> clientAdditionalChannelOptions() {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	protected boolean isTcpTransport() {
+		return false;
+	}
+
+	@Override
+	protected SocketAddress newServerAddress() {
+		return new DomainSocketAddress(socketFile);
+	}
+
+	@Override
+	protected SocketAddress getConnectAddress(Channel serverChannel) {
+		return new DomainSocketAddress(socketFile);
+	}
+}
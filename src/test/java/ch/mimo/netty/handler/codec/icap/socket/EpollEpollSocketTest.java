@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2012 Michael Mimo Moratti
+ * Modifications Copyright (c) 2018 eBlocker GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package ch.mimo.netty.handler.codec.icap.socket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.Assume;
+import org.junit.Before;
+
+import ch.mimo.netty.handler.codec.icap.IcapTransport;
+
+public class EpollEpollSocketTest extends SocketTests {
+
+	@Before
+	public void assumeEpoll() {
+		Assume.assumeTrue(IcapTransport.EPOLL.isAvailable());
+	}
+
+	@Override
+	protected Class<? extends ServerChannel> newServerSocketChannelFactory() {
+		return IcapTransport.EPOLL.getServerChannelClass();
+	}
+
+	@Override
+	protected Class<? extends Channel> newClientSocketChannelFactory() {
+		return IcapTransport.EPOLL.getChannelClass();
+	}
+
+	@Override
+	protected EventLoopGroup newServerEventLoopGroup(Executor executor) {
+		return IcapTransport.EPOLL.newEventLoopGroup(1, executor);
+	}
+
+	@Override
+	protected EventLoopGroup newClientEventLoopGroup(Executor executor) {
+		return IcapTransport.EPOLL.newEventLoopGroup(1, executor);
+	}
+
+	@Override
+	protected Map<ChannelOption, Object> clientAdditionalChannelOptions() {
+		return Collections.emptyMap();
+	}
+}